@@ -1,14 +1,18 @@
 package ee.cyber.eid;
 
 import java.security.NoSuchAlgorithmException;
-import java.security.cert.CertificateExpiredException;
-import java.security.cert.CertificateNotYetValidException;
+import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.concurrent.TimeoutException;
 
 import javax.smartcardio.CardException;
 
 import ee.cyber.eid.card.CardUtil;
+import ee.cyber.eid.card.EstEID;
+import ee.cyber.eid.cert.CertificateChecker;
+import ee.cyber.eid.cert.ChainValidator;
+import ee.cyber.eid.trace.TokenEvent;
+import ee.cyber.eid.trace.Trace;
 import ee.cyber.eid.util.Util;
 import ee.sk.digidoc.DigiDocException;
 import ee.sk.digidoc.factory.DigiDocVerifyFactory;
@@ -34,24 +38,47 @@ public class Authenticator {
      * @return The authenticated user's certificate.
      */
     public static X509Certificate authenticate(int tokenIndex)
-            throws EidException, DigiDocException, CertificateExpiredException,
-            CertificateNotYetValidException, NoSuchAlgorithmException,
-            CardException, TimeoutException {
+            throws EidException, DigiDocException, CertificateException,
+            NoSuchAlgorithmException, CardException, TimeoutException {
         /* Get a signature factory instance. */
         SignatureFactory fac = ConfigManager.instance().getSignatureFactory();
 
-        /* Retrieve the authentication certificate and run an initial, local
-         * validity check based on the start and end dates on it.
-         * For some reason jdigidoc wants the PIN to retrieve a certificate,
-         * although it can be read without it. */
+        /* Read the authentication certificate from the card and run an
+         * initial, local validity check based on the start and end dates on
+         * it. This needs no PIN, so an expired card is turned down without
+         * asking the user for one. */
         CardUtil.waitForCard(tokenIndex);
-        X509Certificate cert = fac.getAuthCertificate(tokenIndex, Util.getPin(1));
+        X509Certificate cert = readAuthCertificate(tokenIndex);
         cert.checkValidity();
 
+        /* Log in. For some reason jdigidoc wants the PIN to retrieve a
+         * certificate, although it can be read without it. */
+        String pin = Util.getPin(1);
+        long start = Trace.start();
+        boolean success = false;
+        X509Certificate loggedIn;
+        try {
+            loggedIn = fac.getAuthCertificate(tokenIndex, pin);
+            success = true;
+        } finally {
+            traceToken(start, TokenEvent.GET_CERTIFICATE, tokenIndex, success);
+        }
+        if (!cert.equals(loggedIn)) {
+            throw new EidException("The token has a different certificate!");
+        }
+
         /* Generate and sign a nonce. Since we already logged in by asking for
          * the certificate, we don't need to provide the PIN anymore. */
         byte[] nonce = Util.generateRandom(NONCE_LENGTH);
-        byte[] signature = fac.sign(nonce, tokenIndex, null, null);
+        start = Trace.start();
+        success = false;
+        byte[] signature;
+        try {
+            signature = fac.sign(nonce, tokenIndex, null, null);
+            success = true;
+        } finally {
+            traceToken(start, TokenEvent.SIGN, tokenIndex, success);
+        }
 
         /* Verify the signature with the authentication certificate. */
         if (!DigiDocVerifyFactory.verify(nonce, signature, cert, false, null)) {
@@ -59,9 +86,72 @@ public class Authenticator {
         }
 
         /* Use OCSP to verify the certificate is valid. */
-        ConfigManager.instance().getNotaryFactory().checkCertificate(cert);
+        checkCertificate(cert);
 
         return cert;
     }
 
+    /**
+     * Authenticate the user using the identification certificate on the
+     * token of the given session. The PIN1 entered here is kept in the
+     * session for decrypting later.
+     * @param session The session with the token to use.
+     * @return The authenticated user's certificate.
+     */
+    public static X509Certificate authenticate(TokenSession session)
+            throws EidException, DigiDocException, CertificateException,
+            NoSuchAlgorithmException, CardException, TimeoutException {
+        /* Read the authentication certificate from the card and run an
+         * initial, local validity check based on the start and end dates on
+         * it, before asking for the PIN. */
+        CardUtil.waitForCard(session.getTokenIndex());
+        X509Certificate cert = session.readAuthCertificate();
+        cert.checkValidity();
+
+        /* Generate and sign a nonce. This logs in with PIN1. */
+        byte[] nonce = Util.generateRandom(NONCE_LENGTH);
+        byte[] signature = session.signAuth(nonce);
+
+        /* Verify the signature with the authentication certificate. */
+        if (!DigiDocVerifyFactory.verify(nonce, signature, cert, false, null)) {
+            throw new EidException("Signed nonce did not verify!");
+        }
+
+        /* Use OCSP to verify the certificate is valid. */
+        checkCertificate(cert);
+
+        return cert;
+    }
+
+    /** Reads the authentication certificate from the card, without a PIN. */
+    private static X509Certificate readAuthCertificate(int tokenIndex)
+            throws EidException, CertificateException,
+            NoSuchAlgorithmException, CardException, TimeoutException {
+        EstEID eid = new EstEID(tokenIndex);
+        try {
+            return eid.getAuthCertificate();
+        } finally {
+            eid.getCard().disconnect(false);
+        }
+    }
+
+    /**
+     * Checks that a trusted CA issued the certificate, if trust anchors are
+     * set, and then checks the certificate with OCSP. A recent answer about
+     * the same certificate is reused. A certificate on the CRLs, if any are
+     * loaded, is turned down without asking OCSP.
+     */
+    private static void checkCertificate(X509Certificate cert)
+            throws DigiDocException, CertificateException {
+        ChainValidator.getInstance().validate(cert);
+        CertificateChecker.getInstance().check(cert);
+    }
+
+    private static void traceToken(long start, String operation,
+            int tokenIndex, boolean success) {
+        if (start != 0) {
+            Trace.emit(new TokenEvent(start, operation, tokenIndex, success));
+        }
+    }
+
 }
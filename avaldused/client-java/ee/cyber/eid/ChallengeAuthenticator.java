@@ -0,0 +1,249 @@
+package ee.cyber.eid;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ee.cyber.eid.cert.CertificateChecker;
+import ee.cyber.eid.cert.ChainValidator;
+import ee.cyber.eid.util.LruCache;
+import ee.sk.digidoc.DigiDocException;
+import ee.sk.digidoc.factory.DigiDocVerifyFactory;
+
+/**
+ * The server side of authenticating with an EstEID token, for many users
+ * logging in at once: the server issues a nonce, the user's browser or
+ * client signs it with the authentication key and sends back the signature
+ * and the certificate, and the server verifies them.
+ * <p>
+ * The nonces are kept until they are used or expire. A nonce can be used
+ * only once: the first response to it consumes it, whether the response
+ * verifies or not, so a signature can't be replayed. While the signature is
+ * being checked, the certificate is checked on another thread, as asking
+ * OCSP takes much longer than the signature. The certificates are parsed
+ * once and cached, since the same people log in again and again.
+ * <p>
+ * The certificate chains are validated against the trust anchors of the
+ * ChainValidator, which must be set: without them the validator passes
+ * every certificate, so no response is accepted until they are.
+ * <p>
+ * All the methods are thread-safe.
+ */
+public class ChallengeAuthenticator {
+
+    /** Length of the nonce to sign, the same as for Authenticator. */
+    private static final int NONCE_LENGTH = 64;
+
+    /** How long a nonce can be used by default, in milliseconds. */
+    private static final long DEFAULT_TTL = 300000L;
+
+    /** The most nonces waiting for a response by default. */
+    private static final int DEFAULT_MAX_CHALLENGES = 100000;
+
+    /** How many issued nonces between sweeps of the expired ones. */
+    private static final int SWEEP_INTERVAL = 1024;
+
+    /** How often to sweep at most when full, in milliseconds. */
+    private static final long FULL_SWEEP_INTERVAL = 1000L;
+
+    /** How many parsed certificates are cached, and for how long. */
+    private static final int CERT_CACHE_SIZE = 4096;
+    private static final long CERT_CACHE_TTL = 3600000L;
+
+    /**
+     * The random number generators. SecureRandom is thread-safe, but
+     * generating from one instance serializes the threads.
+     */
+    private final SecureRandom[] prngs;
+
+    /** The nonces waiting for a response and when they expire. */
+    private final ConcurrentMap<ByteBuffer, Long> challenges =
+            new ConcurrentHashMap<ByteBuffer, Long>();
+
+    /** The parsed certificates by their encoding. */
+    private final LruCache<ByteBuffer, X509Certificate> certificates =
+            new LruCache<ByteBuffer, X509Certificate>(CERT_CACHE_SIZE,
+                    CERT_CACHE_TTL);
+
+    private final AtomicInteger issued = new AtomicInteger();
+    private volatile long lastSweep;
+    private final long ttl;
+    private final int maxChallenges;
+    private final ExecutorService executor;
+
+    /** Create an authenticator with the default limits. */
+    public ChallengeAuthenticator() {
+        this(DEFAULT_TTL, DEFAULT_MAX_CHALLENGES, 32);
+    }
+
+    /**
+     * Create an authenticator.
+     * @param ttl How long a nonce can be used, in milliseconds.
+     * @param maxChallenges The most nonces waiting for a response.
+     * @param threads The number of threads checking the certificates.
+     */
+    public ChallengeAuthenticator(long ttl, int maxChallenges, int threads) {
+        this.ttl = ttl;
+        this.maxChallenges = maxChallenges;
+        prngs = new SecureRandom[Runtime.getRuntime().availableProcessors()];
+        for (int i = 0; i < prngs.length; i++) {
+            prngs[i] = new SecureRandom();
+        }
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "auth-check-"
+                        + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Issues a new nonce for the user to sign.
+     * @throws EidException If too many nonces are waiting for a response.
+     */
+    public byte[] issueChallenge() throws EidException {
+        if (issued.incrementAndGet() % SWEEP_INTERVAL == 0) {
+            sweep();
+        }
+        if (challenges.size() >= maxChallenges) {
+            /* Sweeping a full store on every call would only make matters
+             * worse. */
+            if (System.currentTimeMillis() - lastSweep >= FULL_SWEEP_INTERVAL) {
+                sweep();
+            }
+            if (challenges.size() >= maxChallenges) {
+                throw new EidException("Too many logins in progress");
+            }
+        }
+
+        byte[] nonce = new byte[NONCE_LENGTH];
+        SecureRandom prng = prngs[(int) (Thread.currentThread().getId()
+                % prngs.length)];
+        prng.nextBytes(nonce);
+        challenges.put(ByteBuffer.wrap(nonce.clone()),
+                System.currentTimeMillis() + ttl);
+        return nonce;
+    }
+
+    /**
+     * Verifies the response to a nonce: that the nonce was issued here and
+     * has not been used or expired, that the signature of the nonce verifies
+     * with the certificate, and that the certificate is valid.
+     * @param nonce The nonce issued by issueChallenge().
+     * @param signature The signature of the nonce.
+     * @param certificate The encoded authentication certificate.
+     * @return The authenticated user's certificate.
+     * @throws EidException If no trust anchors are set in the ChainValidator.
+     */
+    public X509Certificate verifyResponse(byte[] nonce, byte[] signature,
+            byte[] certificate) throws EidException, DigiDocException,
+            CertificateException {
+        /* A self-signed certificate would pass the chain validation. */
+        if (ChainValidator.getInstance().getTrustAnchors() == null) {
+            throw new EidException("No trust anchors to validate the "
+                    + "certificate with");
+        }
+
+        /* Consume the nonce first, so it can't be tried again. */
+        Long expires = challenges.remove(ByteBuffer.wrap(nonce));
+        if (expires == null) {
+            throw new EidException("Unknown or used nonce");
+        }
+        if (expires < System.currentTimeMillis()) {
+            throw new EidException("The nonce has expired");
+        }
+
+        final X509Certificate cert = parseCertificate(certificate);
+        cert.checkValidity();
+
+        /* Check the certificate while verifying the signature. */
+        Future<Void> check = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws DigiDocException, CertificateException {
+                ChainValidator.getInstance().validate(cert);
+                CertificateChecker.getInstance().check(cert);
+                return null;
+            }
+        });
+        try {
+            if (!DigiDocVerifyFactory.verify(nonce, signature, cert, false,
+                    null)) {
+                throw new EidException("Signed nonce did not verify!");
+            }
+            check.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EidException("Interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DigiDocException) {
+                throw (DigiDocException) e.getCause();
+            } else if (e.getCause() instanceof CertificateException) {
+                throw (CertificateException) e.getCause();
+            }
+            throw new EidException("Could not check the certificate: "
+                    + e.getCause());
+        } finally {
+            /* Skip the check if it has not started yet. A running one is
+             * left alone, other logins may be waiting for the same OCSP
+             * request. */
+            check.cancel(false);
+        }
+        return cert;
+    }
+
+    /** Returns the number of nonces waiting for a response. */
+    public int getPendingChallenges() {
+        return challenges.size();
+    }
+
+    /** Stops the threads checking the certificates. */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /** Parses a certificate, or takes it from the cache. */
+    private X509Certificate parseCertificate(byte[] encoded)
+            throws CertificateException {
+        ByteBuffer key = ByteBuffer.wrap(encoded.clone());
+        X509Certificate cert = certificates.get(key);
+        if (cert == null) {
+            cert = (X509Certificate) CertificateFactory.getInstance("X.509")
+                    .generateCertificate(new ByteArrayInputStream(encoded));
+            certificates.put(key, cert);
+        }
+        return cert;
+    }
+
+    /** Forgets the expired nonces. */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        lastSweep = now;
+        Iterator<Map.Entry<ByteBuffer, Long>> it =
+                challenges.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue() < now) {
+                it.remove();
+            }
+        }
+    }
+
+}
@@ -3,12 +3,25 @@ package ee.cyber.eid;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.List;
 
+import javax.smartcardio.CardException;
+
 import ee.cyber.eid.card.PersonalData;
+import ee.cyber.eid.trace.HttpEvent;
+import ee.cyber.eid.trace.TokenEvent;
+import ee.cyber.eid.trace.Trace;
 import ee.cyber.eid.util.TempFile;
+import ee.cyber.eid.util.UnclosableOutputStream;
 import ee.cyber.eid.util.Util;
+import ee.cyber.eid.verify.ContainerResult;
+import ee.cyber.eid.verify.VerificationEngine;
 import ee.sk.digidoc.DataFile;
 import ee.sk.digidoc.DigiDocException;
 import ee.sk.digidoc.Signature;
@@ -18,39 +31,128 @@ import ee.sk.digidoc.factory.DigiDocGenFactory;
 import ee.sk.digidoc.factory.SignatureFactory;
 import ee.sk.utils.ConfigManager;
 
-/** The claim to be built, signed and submitted. */
+/**
+ * The claim to be built, signed and submitted.
+ * The data files are kept in memory, except for large ones which are written
+ * to temporary files. Close the claim when done with it to delete those.
+ */
 public class Claim {
 
+    /** The default size above which data files are spilled to disc. */
+    private static final int DEFAULT_SPILL_THRESHOLD = 1024 * 1024;
+
     private SignedDoc sdoc;
+    private String id;
+    private int spillThreshold = DEFAULT_SPILL_THRESHOLD;
+    private List<TempFile> tempFiles = new ArrayList<TempFile>();
 
     /** Creates a new signing container. */
     public Claim() throws DigiDocException {
+        id = new BigInteger(1, Util.generateRandom(16)).toString(16);
+
         /* The claim handling service uses DigiDocService, and since that
          * supports only DDOC-formats, we use DIGIDOC-XML. */
         sdoc = DigiDocGenFactory.createSignedDoc(SignedDoc.FORMAT_DIGIDOC_XML,
                 null, null);
     }
 
+    /**
+     * Returns the claim's random ID. The claim handling service handles an ID
+     * only once, so the claim can be resent safely.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Sets the size above which data files are written to a temporary file
+     * instead of being kept in memory.
+     * @param bytes The size in bytes, Integer.MAX_VALUE to always keep the
+     *              files in memory.
+     */
+    public void setSpillThreshold(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Negative threshold");
+        }
+        spillThreshold = bytes;
+    }
+
     /** Adds the given content into the container as the claim. */
     public void addClaimFile(String content) throws DigiDocException,
             IOException {
-        addTempFile("claim", content);
+        addDataFile("claim", TempFile.MIME_TYPE, content.getBytes(
+                StandardCharsets.UTF_8));
     }
 
-    /** Adds the given personal data into the container. */
+    /**
+     * Adds the given personal data into the container, reading the fields
+     * from the card that have not been read yet.
+     */
     public void addPersonalDataFile(PersonalData data) throws DigiDocException,
-            IOException {
-        addTempFile("personal", data.toString());
+            IOException, CardException, EidException {
+        data.readAll();
+        addDataFile("personal", TempFile.MIME_TYPE, data.toString().getBytes(
+                StandardCharsets.UTF_8));
     }
 
     /**
-     * Writes a temporary file to disc and then adds it to the container.
-     * This is necessary because JDigiDoc only operates on files.
+     * Adds a data file with the given content into the container. The
+     * content is kept in memory unless it is larger than the spill
+     * threshold.
+     * @param name The name of the file.
+     * @param mime The MIME type of the content.
+     * @param content The content, not to be changed afterwards.
      */
-    private void addTempFile(String name, String content)
+    public void addDataFile(String name, String mime, byte[] content)
             throws DigiDocException, IOException {
-        sdoc.addDataFile(new TempFile(name, content).getFile(),
-                TempFile.MIME_TYPE, DataFile.CONTENT_EMBEDDED_BASE64);
+        if (content.length > spillThreshold) {
+            addTempFile(name, mime, ByteBuffer.wrap(content));
+            return;
+        }
+        DataFile df = new DataFile(sdoc.getNewDataFileId(),
+                DataFile.CONTENT_EMBEDDED_BASE64, name, mime, sdoc);
+        df.setBody(content);
+        sdoc.addDataFile(df);
+    }
+
+    /**
+     * Adds a data file with the remaining content of the buffer into the
+     * container. The content is kept in memory unless it is larger than the
+     * spill threshold.
+     */
+    public void addDataFile(String name, String mime, ByteBuffer content)
+            throws DigiDocException, IOException {
+        if (content.remaining() > spillThreshold) {
+            addTempFile(name, mime, content);
+            return;
+        }
+        byte[] bytes = new byte[content.remaining()];
+        content.get(bytes);
+        addDataFile(name, mime, bytes);
+    }
+
+    /**
+     * Writes the content to a temporary file and adds that to the container.
+     * JDigiDoc reads the file whenever the container is written, so the file
+     * is kept until the claim is closed.
+     */
+    private void addTempFile(String name, String mime, ByteBuffer content)
+            throws DigiDocException, IOException {
+        TempFile file = new TempFile(name, content);
+        tempFiles.add(file);
+        sdoc.addDataFile(file.getFile(), mime,
+                DataFile.CONTENT_EMBEDDED_BASE64);
+    }
+
+    /**
+     * Deletes the temporary files of large data files. The claim can't be
+     * written anymore afterwards if it had any.
+     */
+    public void close() {
+        for (TempFile file : tempFiles) {
+            file.delete();
+        }
+        tempFiles.clear();
     }
 
     /** Signs the container. */
@@ -65,7 +167,15 @@ public class Claim {
         }
 
         /* Read the certificate used for signing. */
-        X509Certificate cert = sigFac.getCertificate(tokenIndex, pin);
+        long start = Trace.start();
+        boolean success = false;
+        X509Certificate cert;
+        try {
+            cert = sigFac.getCertificate(tokenIndex, pin);
+            success = true;
+        } finally {
+            traceToken(start, TokenEvent.GET_CERTIFICATE, tokenIndex, success);
+        }
 
         /* Roles and SPP are optional, but add something for demonstration
          * purposes. These are usually asked from the signer. */
@@ -78,11 +188,63 @@ public class Claim {
 
         /* Calculate the digest to sign and do it. */
         byte[] sigDigest = sig.calculateSignedInfoDigest();
-        byte[] sigVal = sigFac.sign(sigDigest, tokenIndex, pin, sig);
-        sig.setSignatureValue(sigVal);
+        start = Trace.start();
+        success = false;
+        try {
+            sig.setSignatureValue(sigFac.sign(sigDigest, tokenIndex, pin, sig));
+            success = true;
+        } finally {
+            traceToken(start, TokenEvent.SIGN, tokenIndex, success);
+        }
 
         /* Get OCSP confirmation for the signature. */
-        sig.getConfirmation();
+        getConfirmation(sig, cert);
+    }
+
+    /**
+     * Signs the container with the token of the given session, reusing the
+     * PIN2 entered in the session if it is still kept.
+     */
+    public void sign(TokenSession session) throws DigiDocException {
+        /* Read the certificate used for signing. */
+        X509Certificate cert = session.getSignCertificate();
+
+        /* Roles and SPP are optional, but add something for demonstration
+         * purposes. These are usually asked from the signer. */
+        String[] roles = new String[] { "role" };
+        SignatureProductionPlace spp = new SignatureProductionPlace(
+                "city", "state", "country", "postal");
+
+        /* Get a signature object, calculate the digest to sign and do it. */
+        Signature sig = sdoc.prepareSignature(cert, roles, spp);
+        byte[] sigDigest = sig.calculateSignedInfoDigest();
+        sig.setSignatureValue(session.sign(sigDigest, sig));
+
+        /* Get OCSP confirmation for the signature. */
+        getConfirmation(sig, cert);
+    }
+
+    /** Gets an OCSP confirmation for the signature, tracing the call. */
+    private static void getConfirmation(Signature sig, X509Certificate cert)
+            throws DigiDocException {
+        long start = Trace.start();
+        boolean success = false;
+        try {
+            sig.getConfirmation();
+            success = true;
+        } finally {
+            if (start != 0) {
+                Trace.emit(new HttpEvent(start, HttpEvent.OCSP,
+                        cert.getSerialNumber().toString(), success ? 0 : -1));
+            }
+        }
+    }
+
+    private static void traceToken(long start, String operation,
+            int tokenIndex, boolean success) {
+        if (start != 0) {
+            Trace.emit(new TokenEvent(start, operation, tokenIndex, success));
+        }
     }
 
     /**
@@ -90,21 +252,16 @@ public class Claim {
      * Returns a boolean rather than throwing Exceptions - this gives us the
      * chance to find all errors and not just fail on the first one.
      */
-    @SuppressWarnings("unchecked")
     public boolean verify() {
-        List<DigiDocException> err = null;
-        boolean ret = true;
-        for (int i = 0; i < sdoc.countSignatures(); i++) {
-            Signature sig = sdoc.getSignature(i);
-            if ((err = sig.verify(sdoc, false, true)).size() > 0) {
-                ret = false;
-                System.err.println("Could not verify signature " + sig.getId());
-                for (DigiDocException e : err) {
-                    System.err.println(e.getMessage());
-                }
-            }
-        }
-        return ret;
+        return verifySignatures().isValid();
+    }
+
+    /**
+     * Verify the container and all the signatures on it.
+     * @return The problems found, if any.
+     */
+    public ContainerResult verifySignatures() {
+        return VerificationEngine.getDefault().verify("claim", sdoc);
     }
 
     /** Save the signed container to file. */
@@ -126,4 +283,41 @@ public class Claim {
         return buf.toByteArray();
     }
 
+    /**
+     * Writes the created claim to the given stream.
+     * The stream is left open, even if JDigiDoc tries to close it, so the
+     * caller can keep writing to it.
+     */
+    public void writeTo(OutputStream out) throws DigiDocException {
+        sdoc.writeToStream(new UnclosableOutputStream(out));
+    }
+
+    /**
+     * Returns the length of the serialized claim in bytes.
+     * The claim is serialized into a stream that only counts the bytes, so
+     * this costs CPU time, but no memory.
+     */
+    public long getLength() throws DigiDocException {
+        CountingOutputStream out = new CountingOutputStream();
+        sdoc.writeToStream(out);
+        return out.count;
+    }
+
+    /** An OutputStream that discards everything, but counts the bytes. */
+    private static class CountingOutputStream extends OutputStream {
+
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+
+    }
+
 }
@@ -1,22 +1,40 @@
 package ee.cyber.eid;
 
+import java.nio.file.Paths;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
 
 import javax.smartcardio.CardException;
 
+import ee.cyber.eid.card.CardIngester;
+import ee.cyber.eid.card.CardReading;
 import ee.cyber.eid.card.CardUtil;
-import ee.cyber.eid.card.EstEID;
+import ee.cyber.eid.card.PersonalData;
+import ee.cyber.eid.card.ReaderStats;
+import ee.cyber.eid.card.TerminalRegistry;
+import ee.cyber.eid.cert.CertificateChecker;
+import ee.cyber.eid.cert.CertificateIdentity;
+import ee.cyber.eid.cert.ChainValidator;
+import ee.cyber.eid.cert.CrlStore;
+import ee.cyber.eid.cert.TrustAnchorIndex;
 import ee.cyber.eid.net.ClaimService;
-import ee.cyber.eid.util.Util;
+import ee.cyber.eid.verify.ContainerResult;
 import ee.sk.digidoc.DigiDocException;
 import ee.sk.utils.ConfigManager;
 import ee.sk.xmlenc.EncryptedData;
 
 /**
  * A desktop client for communicating with the claim handling service.
- * Usage: java EidClient [url] [-cfg config]
+ * Usage: java EidClient [url...] [-cfg config] [-crl dir [-crlfallback]]
+ *        java EidClient -ingest
+ * If several URLs are given, they are taken to be replicas of the service.
+ * With -crl, the certificates are first checked against the CRLs in the
+ * given directory. With -crlfallback, the CRLs are also relied on when OCSP
+ * is unavailable, although they may be up to 12 hours old.
+ * With -ingest, the personal data and the authentication certificate of every
+ * card inserted into any of the card terminals is printed.
  */
 public class EidClient {
 
@@ -30,9 +48,18 @@ public class EidClient {
      * reader we find. */
     private static final int TOKEN_INDEX = 0;
 
+    /** How many card readings are queued in ingestion mode. */
+    private static final int INGEST_QUEUE = 64;
+
+    /** How often to look for new CRLs, in milliseconds. */
+    private static final long CRL_RELOAD_PERIOD = 3600000L;
+
     public static void main(String[] argv) throws Exception {
         String cfg = DEFAULT_CONF;
-        String url = DEFAULT_URL;
+        List<String> urls = new ArrayList<String>();
+        String crlDir = null;
+        boolean crlFallback = false;
+        boolean ingest = false;
 
         /* Parse the arguments. */
         for (int i = 0; i < argv.length; i++) {
@@ -43,10 +70,28 @@ public class EidClient {
                     System.err.println("No parameter given after '-cfg'.");
                     return;
                 }
+            } else if ("-crl".equals(argv[i])) {
+                if (++i < argv.length) {
+                    crlDir = argv[i];
+                } else {
+                    System.err.println("No parameter given after '-crl'.");
+                    return;
+                }
+            } else if ("-crlfallback".equals(argv[i])) {
+                crlFallback = true;
+            } else if ("-ingest".equals(argv[i])) {
+                ingest = true;
             } else {
-                url = argv[i];
+                urls.add(argv[i]);
             }
         }
+        if (urls.isEmpty()) {
+            urls.add(DEFAULT_URL);
+        }
+        if (crlFallback && crlDir == null) {
+            System.err.println("-crlfallback needs the CRLs given with -crl.");
+            return;
+        }
 
         /* Check the configuration. */
         if (!ConfigManager.init(cfg)) {
@@ -56,24 +101,56 @@ public class EidClient {
             return;
         }
 
+        /* Check the issuers of certificates against the CAs in the
+         * configuration, if it lists any. */
+        TrustAnchorIndex anchors = TrustAnchorIndex.fromConfig();
+        if (!anchors.isEmpty()) {
+            ChainValidator.getInstance().setTrustAnchors(anchors);
+        }
+
+        /* Load the CRLs, if any, and keep them up to date. */
+        if (crlDir != null) {
+            CrlStore crls = new CrlStore(Paths.get(crlDir));
+            crls.reload();
+            crls.start(CRL_RELOAD_PERIOD);
+            CertificateChecker.getInstance().setCrlStore(crls);
+            CertificateChecker.getInstance().setOfflineFallback(crlFallback);
+        }
+
         /* Check if we have card terminals. */
         if (CardUtil.getTerminals().isEmpty()) {
             throw new CardException("No card terminals found");
         }
+        if (ingest) {
+            ingest();
+            return;
+        }
 
+        /* Use one session with the token for everything, so the user is
+         * asked for PIN1 only once. PIN2 is asked for the signature. */
+        TokenSession session = new TokenSession(TOKEN_INDEX);
+        try {
+            run(session, urls);
+        } finally {
+            session.close();
+        }
+    }
+
+    /** Identify the user, then create, sign and submit a claim. */
+    private static void run(TokenSession session, List<String> urls)
+            throws Exception {
         /* Identify the user. */
         System.out.println("Identifying the user...");
-        X509Certificate cert = Authenticator.authenticate(TOKEN_INDEX);
+        X509Certificate cert = Authenticator.authenticate(session);
         System.out.println("Ok.");
 
         /* Find the subject's name.
          * We can't use ConvertUtils.getCommonName() from jdigidoc, because it
          * only returns the CN until the first ',' - on personal cards this
          * gives us only the surname. */
-        String cn = Util.getSubjectCN(cert);
-        String cnTokens[] = cn.split(",");
-        String subject = (cnTokens.length != 3) ? cn
-                : cnTokens[1] + ' ' + cnTokens[0] + ", " + cnTokens[2];
+        CertificateIdentity identity = CertificateIdentity.of(cert);
+        String cn = identity.getCommonName();
+        String subject = identity.getDisplayName();
 
         /* Let the user insert something to submit. */
         System.out.print("Enter claim content: ");
@@ -82,13 +159,14 @@ public class EidClient {
 
         /* Create the claim, sign and verify it. */
         System.out.println("Reading personal data...");
-        Claim claim = createClaim(subject + '\n' + content, TOKEN_INDEX);
+        Claim claim = createClaim(subject + '\n' + content, session);
         System.out.println("Signing the claim...");
-        claim.sign(TOKEN_INDEX);
-        if (claim.verify()) {
+        claim.sign(session);
+        ContainerResult verified = claim.verifySignatures();
+        if (verified.isValid()) {
             System.out.println("Ok.");
         } else {
-            System.err.println("Signing failed.");
+            System.err.println("Signing failed: " + verified);
             return;
         }
 
@@ -97,7 +175,14 @@ public class EidClient {
 
         /* Submit the claim and get a response. */
         System.out.println("Submitting the claim...");
-        EncryptedData encd = ClaimService.submit(url, claim, cert);
+        ClaimService service = new ClaimService(urls);
+        EncryptedData encd;
+        try {
+            encd = service.submit(claim, cert);
+        } finally {
+            service.close();
+            claim.close();
+        }
         if (validateEncryptedData(encd)) {
             System.out.println("Ok, got a valid response.");
         } else {
@@ -108,7 +193,7 @@ public class EidClient {
         /* Parse and verify the response. */
         System.out.println("Decrypting and processing the response...");
         Response resp = new Response(encd);
-        resp.decrypt(cn, TOKEN_INDEX);
+        resp.decrypt(cn, session);
         try {
             resp.verify();
         } catch (Exception e) {
@@ -125,16 +210,47 @@ public class EidClient {
         System.out.println(responseContent);
     }
 
+    /**
+     * Print the personal data and the authentication certificate of the cards
+     * inserted into any of the terminals, until killed.
+     */
+    private static void ingest() throws Exception {
+        CardIngester ingester = new CardIngester(
+                TerminalRegistry.getInstance(), INGEST_QUEUE);
+        ingester.start();
+        System.out.println("Insert cards into any of the terminals...");
+        try {
+            while (true) {
+                CardReading r = ingester.getReadings().take();
+                if (r.isSuccess()) {
+                    PersonalData pd = r.getPersonalData();
+                    System.out.println(r.getTerminalName() + ": "
+                            + pd.getGivenName1() + ' ' + pd.getSurname()
+                            + ", " + pd.getPersonalCode() + ", "
+                            + CertificateIdentity.of(r.getAuthCertificate())
+                                    .getCommonName());
+                } else {
+                    System.err.println(r.getTerminalName() + ": "
+                            + r.getError());
+                }
+                for (ReaderStats stats : ingester.getStats()) {
+                    System.out.println("  " + stats);
+                }
+            }
+        } finally {
+            ingester.stop();
+        }
+    }
+
     /** Create a new claim. */
-    private static Claim createClaim(String content, int terminalIndex)
+    private static Claim createClaim(String content, TokenSession session)
             throws Exception {
         /* Add the given content to a container. */
         Claim claim = new Claim();
         claim.addClaimFile(content);
 
         /* Read personal data from the card. */
-        EstEID eid = new EstEID(terminalIndex);
-        claim.addPersonalDataFile(eid.getPersonalData());
+        claim.addPersonalDataFile(session.getPersonalData());
 
         return claim;
     }
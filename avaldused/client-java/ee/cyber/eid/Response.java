@@ -5,9 +5,12 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.List;
 
+import ee.cyber.eid.trace.TokenEvent;
+import ee.cyber.eid.trace.Trace;
 import ee.cyber.eid.util.Util;
+import ee.cyber.eid.verify.ContainerResult;
+import ee.cyber.eid.verify.VerificationEngine;
 import ee.sk.digidoc.DataFile;
 import ee.sk.digidoc.DigiDocException;
 import ee.sk.digidoc.SignedDoc;
@@ -28,6 +31,9 @@ public class Response {
     /** Is the source data still encrypted? */
     private boolean encrypted = true;
 
+    /** The result of verifying the signed document. */
+    private ContainerResult verification;
+
     /** Create a new response object from EncryptedData. */
     public Response(EncryptedData encd) {
         this.encd = encd;
@@ -50,7 +56,40 @@ public class Response {
             throw new EidException("No key exists for " + recpCN + '.');
         }
 
-        encd.decrypt(keyIndex, tokenIndex, Util.getPin(1));
+        String pin = Util.getPin(1);
+        long start = Trace.start();
+        boolean success = false;
+        try {
+            encd.decrypt(keyIndex, tokenIndex, pin);
+            success = true;
+        } finally {
+            if (start != 0) {
+                Trace.emit(new TokenEvent(start, TokenEvent.DECRYPT,
+                        tokenIndex, success));
+            }
+        }
+        encrypted = false;
+    }
+
+    /**
+     * Decrypts the response with the token of the given session, reusing the
+     * PIN entered in the session.
+     * @param recpCN The CN of the recipient whose key we are using to decrypt
+     *               the data.
+     * @param session The session with the recipient's token.
+     */
+    public void decrypt(String recpCN, TokenSession session)
+            throws EidException, DigiDocException {
+        if (!encrypted) {
+            return;
+        }
+
+        int keyIndex = findKeyIndexByRecipient(recpCN);
+        if (keyIndex < 0) {
+            throw new EidException("No key exists for " + recpCN + '.');
+        }
+
+        session.decrypt(encd, keyIndex);
         encrypted = false;
     }
 
@@ -67,7 +106,6 @@ public class Response {
     }
 
     /** Verifies the container that was decrypted. */
-    @SuppressWarnings("unchecked")
     public void verify() throws EidException, DigiDocException,
             FileNotFoundException, IOException {
         if (encrypted) {
@@ -82,28 +120,25 @@ public class Response {
         DigiDocFactory fac = ConfigManager.instance().getDigiDocFactory();
         sdoc = fac.readSignedDocFromStreamOfType(stream, false);
 
-        /* Validate first... */
-        List<DigiDocException> errs = sdoc.validate(true);
-        checkErrors(errs, "Decrypted document did not validate.");
-
-        /* ...and then verify. */
-        errs = sdoc.verify(true, true); // neither argument is actually ever used
-        checkErrors(errs, "The signatures did not verify!");
+        /* Validate and verify the signatures. */
+        verification = VerificationEngine.getDefault().verify("response",
+                sdoc);
+        if (!verification.getErrors().isEmpty()) {
+            throw new EidException("Decrypted document did not validate: "
+                    + verification);
+        }
+        if (!verification.isValid()) {
+            throw new EidException("The signatures did not verify: "
+                    + verification);
+        }
     }
 
     /**
-     * Checks the given list for errors.
-     * If any are found, then they are written to stderr and an EidException
-     * with the given message is thrown.
+     * Returns the problems found by verify(), or null if it has not been
+     * called.
      */
-    private void checkErrors(List<DigiDocException> errs, String message)
-            throws EidException {
-        if (errs.size() > 0) {
-            for (DigiDocException e : errs) {
-                System.err.println(e.getMessage());
-            }
-            throw new EidException(message);
-        }
+    public ContainerResult getVerification() {
+        return verification;
     }
 
     /** Returns the contents of the response. */
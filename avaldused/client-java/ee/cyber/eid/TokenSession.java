@@ -0,0 +1,331 @@
+package ee.cyber.eid;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.concurrent.TimeoutException;
+
+import javax.smartcardio.CardException;
+
+import ee.cyber.eid.card.EstEID;
+import ee.cyber.eid.card.PersonalData;
+import ee.cyber.eid.trace.TokenEvent;
+import ee.cyber.eid.trace.Trace;
+import ee.cyber.eid.util.Util;
+import ee.sk.digidoc.DigiDocException;
+import ee.sk.digidoc.Signature;
+import ee.sk.digidoc.factory.SignatureFactory;
+import ee.sk.utils.ConfigManager;
+import ee.sk.xmlenc.EncryptedData;
+
+/**
+ * A session with one EstEID token, serving authentication, signing,
+ * decryption and personal data reads.
+ * The signature factory (and so the PKCS#11 session) is set up once and the
+ * card is connected to once. PIN1 is kept for 5 minutes by default, so the
+ * user is not asked for it over and over again. PIN2 is asked for every
+ * signature by default, as the card means it to be: keeping it is up to the
+ * caller, with setPinTimeout(). The signing certificate is read from the
+ * card without a PIN and kept, so reading it and signing takes one prompt.
+ * The PINs kept are overwritten when forgotten.
+ * <p>
+ * The card is only locked for exclusive access while personal data or
+ * certificates are read directly: the PKCS#11 driver talks to the card
+ * through a PC/SC connection of its own, which a transaction held here would
+ * block.
+ * Close the session when done with it.
+ */
+public class TokenSession {
+
+    /** Asks the user for a PIN. */
+    public interface PinSource {
+
+        /**
+         * Returns PIN number <tt>num</tt>.
+         * @param num 1 for the authentication PIN, 2 for the signing PIN.
+         */
+        String getPin(int num);
+
+    }
+
+    /** Asks for the PINs on the console with Util.getPin(). */
+    public static final PinSource CONSOLE = new PinSource() {
+        @Override
+        public String getPin(int num) {
+            return Util.getPin(num);
+        }
+    };
+
+    private static final long DEFAULT_PIN1_TIMEOUT = 300000L;
+    private static final long DEFAULT_PIN2_TIMEOUT = 0L;
+
+    private int tokenIndex;
+    private SignatureFactory factory;
+    private PinSource pinSource;
+
+    /* Indexed by the PIN number, index 0 is unused. */
+    private long[] pinTimeouts = { 0, DEFAULT_PIN1_TIMEOUT,
+            DEFAULT_PIN2_TIMEOUT };
+    private char[][] pins = new char[3][];
+    private long[] pinTimes = new long[3];
+
+    /** The PIN the factory is logged in with, 0 if none. */
+    private int login;
+
+    private X509Certificate authCert;
+    private X509Certificate signCert;
+    private EstEID eid;
+
+    /**
+     * Open a session with the token on the given index, asking for the PINs
+     * on the console.
+     */
+    public TokenSession(int tokenIndex) throws DigiDocException {
+        this(tokenIndex, CONSOLE);
+    }
+
+    /**
+     * Open a session with the token on the given index.
+     * @param tokenIndex The index of the token to use.
+     * @param pinSource Where to get the PINs from.
+     */
+    public TokenSession(int tokenIndex, PinSource pinSource)
+            throws DigiDocException {
+        this.tokenIndex = tokenIndex;
+        this.pinSource = pinSource;
+        factory = ConfigManager.instance().getSignatureFactory();
+    }
+
+    public int getTokenIndex() {
+        return tokenIndex;
+    }
+
+    /**
+     * Sets how long a PIN is kept after it was entered.
+     * @param num The number of the PIN, 1 or 2.
+     * @param millis The time in milliseconds, 0 to ask every time it is
+     *               needed.
+     */
+    public synchronized void setPinTimeout(int num, long millis) {
+        checkPinNumber(num);
+        if (millis < 0) {
+            throw new IllegalArgumentException("Negative timeout");
+        }
+        pinTimeouts[num] = millis;
+        if (millis == 0) {
+            forgetPin(num);
+        }
+    }
+
+    /** Forgets the PINs entered so far. */
+    public synchronized void forgetPins() {
+        forgetPin(1);
+        forgetPin(2);
+    }
+
+    /** Overwrites a kept PIN. */
+    private void forgetPin(int num) {
+        if (pins[num] != null) {
+            Arrays.fill(pins[num], '\0');
+            pins[num] = null;
+        }
+    }
+
+    /** Returns a PIN, asking for it if it is not kept (anymore). */
+    private synchronized String getPin(int num) {
+        long now = System.currentTimeMillis();
+        if (pins[num] != null && now - pinTimes[num] < pinTimeouts[num]) {
+            return new String(pins[num]);
+        }
+        forgetPin(num);
+        String pin = pinSource.getPin(num);
+        if (pin != null && pinTimeouts[num] > 0) {
+            pins[num] = pin.toCharArray();
+            pinTimes[num] = now;
+        }
+        return pin;
+    }
+
+    private static void checkPinNumber(int num) {
+        if (num != 1 && num != 2) {
+            throw new IllegalArgumentException("No such PIN: " + num);
+        }
+    }
+
+    /**
+     * Returns the authentication certificate, logging in with PIN1 the first
+     * time. JDigiDoc wants the PIN, although the certificate could be read
+     * without it.
+     */
+    public synchronized X509Certificate getAuthCertificate()
+            throws DigiDocException {
+        if (authCert == null) {
+            loginAuth();
+        }
+        return authCert;
+    }
+
+    /** Reads the authentication certificate, which logs in with PIN1. */
+    private void loginAuth() throws DigiDocException {
+        String pin = getPin(1);
+        long start = Trace.start();
+        boolean success = false;
+        try {
+            authCert = factory.getAuthCertificate(tokenIndex, pin);
+            login = 1;
+            success = true;
+        } finally {
+            trace(start, TokenEvent.GET_CERTIFICATE, success);
+        }
+    }
+
+    /**
+     * Returns the signing certificate. It is read from the card the first
+     * time, without a PIN; only if that fails, it is read through PKCS#11,
+     * which logs in with PIN2.
+     */
+    public synchronized X509Certificate getSignCertificate()
+            throws DigiDocException {
+        if (signCert == null) {
+            try {
+                signCert = readSignCertificate();
+                return signCert;
+            } catch (NoSuchAlgorithmException | CardException
+                    | TimeoutException | EidException
+                    | CertificateException e) {
+                /* No direct access to the card, ask the driver. */
+            }
+            String pin = getPin(2);
+            long start = Trace.start();
+            boolean success = false;
+            try {
+                signCert = factory.getCertificate(tokenIndex, pin);
+                login = 2;
+                success = true;
+            } finally {
+                trace(start, TokenEvent.GET_CERTIFICATE, success);
+            }
+        }
+        return signCert;
+    }
+
+    /**
+     * Signs data with the authentication key.
+     * @param data The data to sign, e.g. a nonce.
+     */
+    public synchronized byte[] signAuth(byte[] data) throws DigiDocException {
+        /* Signing with a null PIN uses the key that the factory is logged in
+         * for, so make sure that it is the authentication key. */
+        if (login != 1) {
+            loginAuth();
+        }
+        long start = Trace.start();
+        boolean success = false;
+        try {
+            byte[] value = factory.sign(data, tokenIndex, null, null);
+            success = true;
+            return value;
+        } finally {
+            trace(start, TokenEvent.SIGN, success);
+        }
+    }
+
+    /**
+     * Signs a signature's digest with the signing key.
+     * @param digest The digest of the SignedInfo.
+     * @param sig The signature the digest belongs to.
+     */
+    public synchronized byte[] sign(byte[] digest, Signature sig)
+            throws DigiDocException {
+        String pin = getPin(2);
+        long start = Trace.start();
+        boolean success = false;
+        try {
+            byte[] value = factory.sign(digest, tokenIndex, pin, sig);
+            login = 2;
+            success = true;
+            return value;
+        } finally {
+            trace(start, TokenEvent.SIGN, success);
+        }
+    }
+
+    /**
+     * Decrypts encrypted data with the authentication key.
+     * @param encd The data to decrypt.
+     * @param keyIndex The index of the EncryptedKey meant for this token.
+     */
+    public synchronized void decrypt(EncryptedData encd, int keyIndex)
+            throws DigiDocException {
+        String pin = getPin(1);
+        long start = Trace.start();
+        boolean success = false;
+        try {
+            encd.decrypt(keyIndex, tokenIndex, pin);
+            success = true;
+        } finally {
+            trace(start, TokenEvent.DECRYPT, success);
+        }
+    }
+
+    /** Emits a token event, if tracing was enabled at the start. */
+    private void trace(long start, String operation, boolean success) {
+        if (start != 0) {
+            Trace.emit(new TokenEvent(start, operation, tokenIndex, success));
+        }
+    }
+
+    /** Returns the personal data on the card, connecting to it once. */
+    public synchronized PersonalData getPersonalData()
+            throws NoSuchAlgorithmException, CardException, TimeoutException,
+            EidException {
+        return getEstEID().getPersonalData();
+    }
+
+    /**
+     * Reads the authentication certificate directly from the card. Unlike
+     * getAuthCertificate(), this needs no PIN and does not log in.
+     */
+    public synchronized X509Certificate readAuthCertificate()
+            throws NoSuchAlgorithmException, CardException, TimeoutException,
+            EidException, CertificateException {
+        return getEstEID().getAuthCertificate();
+    }
+
+    /**
+     * Reads the signing certificate directly from the card. Unlike
+     * getSignCertificate(), this needs no PIN and does not log in.
+     */
+    public synchronized X509Certificate readSignCertificate()
+            throws NoSuchAlgorithmException, CardException, TimeoutException,
+            EidException, CertificateException {
+        return getEstEID().getSignCertificate();
+    }
+
+    /** Connects to the card, the first time it is needed. */
+    private EstEID getEstEID() throws NoSuchAlgorithmException,
+            CardException, TimeoutException {
+        if (eid == null) {
+            eid = new EstEID(tokenIndex);
+        }
+        return eid;
+    }
+
+    /** Closes the session and forgets the PINs. */
+    public synchronized void close() throws DigiDocException, CardException {
+        forgetPins();
+        authCert = null;
+        signCert = null;
+        login = 0;
+        try {
+            factory.closeSession();
+        } finally {
+            if (eid != null) {
+                eid.getCard().disconnect(false);
+                eid = null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,226 @@
+package ee.cyber.eid.card;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import ee.cyber.eid.EidException;
+
+/**
+ * A sequence of commands to send to a card in one go, e.g. selecting the
+ * personal data file and reading its records. The script runs in a single
+ * exclusive transaction, so nobody else can select another file in between,
+ * and the data of all the responses is collected into one buffer.
+ * <p>
+ * Responses asking for more round trips are followed: 61xx by fetching the
+ * rest of the data with GET RESPONSE, 6Cxx by sending the command again with
+ * the right Le. The PC/SC layer of the JRE usually does this itself on T=0,
+ * but not on every platform nor with every terminal.
+ * <p>
+ * The script stops at the first command that fails. Once built, a script can
+ * be run any number of times, also from several threads.
+ */
+public class ApduScript {
+
+    private static final int SW_OK = 0x9000;
+    private static final int SW1_BYTES_AVAILABLE = 0x61;
+    private static final int SW1_WRONG_LE = 0x6c;
+
+    /** The most GET RESPONSE commands to follow a command with. */
+    private static final int MAX_GET_RESPONSES = 256;
+
+    private final List<CommandAPDU> commands = new ArrayList<CommandAPDU>();
+
+    /** The number of response bytes the commands ask for in total. */
+    private int expectedLength;
+
+    /** Adds a command to the end of the script. */
+    public ApduScript add(CommandAPDU cmd) {
+        commands.add(cmd);
+        expectedLength += cmd.getNe();
+        return this;
+    }
+
+    /** Adds several commands to the end of the script. */
+    public ApduScript add(CommandAPDU... cmds) {
+        for (CommandAPDU cmd : cmds) {
+            add(cmd);
+        }
+        return this;
+    }
+
+    /** Returns the number of commands in the script. */
+    public int size() {
+        return commands.size();
+    }
+
+    /** Runs the script in an exclusive transaction with the card. */
+    public Result run(Card card) throws CardException {
+        card.beginExclusive();
+        try {
+            return run(card.getBasicChannel());
+        } finally {
+            card.endExclusive();
+        }
+    }
+
+    /**
+     * Runs the script on the given channel. Use this to run several scripts
+     * in a transaction begun by the caller.
+     */
+    public Result run(CardChannel channel) throws CardException {
+        Result result = new Result(commands.size(), expectedLength);
+        for (int i = 0; i < commands.size(); i++) {
+            int sw = send(channel, commands.get(i), result);
+            result.end(i, sw);
+            if (sw != SW_OK) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sends a command, following 61xx and 6Cxx, and appends the data of the
+     * response to the result. Returns the final status word.
+     */
+    private static int send(CardChannel channel, CommandAPDU cmd,
+            Result result) throws CardException {
+        ResponseAPDU resp = CardUtil.transmit(channel, cmd);
+        if (resp.getSW1() == SW1_WRONG_LE) {
+            resp = CardUtil.transmit(channel, new CommandAPDU(cmd.getCLA(),
+                    cmd.getINS(), cmd.getP1(), cmd.getP2(), cmd.getData(),
+                    getNe(resp.getSW2())));
+        }
+        result.append(resp);
+        for (int n = 0; resp.getSW1() == SW1_BYTES_AVAILABLE
+                && n < MAX_GET_RESPONSES; n++) {
+            resp = CardUtil.transmit(channel, new CommandAPDU(cmd.getCLA(),
+                    0xc0, 0x00, 0x00, getNe(resp.getSW2())));
+            result.append(resp);
+        }
+        return resp.getSW();
+    }
+
+    /** Returns the Ne meant by a one byte Le, where 0 means 256. */
+    private static int getNe(int le) {
+        return le == 0 ? CardUtil.SHORT_MAX_NE : le;
+    }
+
+    /**
+     * The responses to the commands of a script: their status words and data,
+     * the latter in one buffer, one after another.
+     */
+    public static class Result {
+
+        private byte[] buffer;
+        private int length;
+        private final int[] offsets;
+        private final int[] lengths;
+        private final int[] sws;
+        private int completed;
+
+        Result(int commands, int expectedLength) {
+            buffer = new byte[expectedLength];
+            offsets = new int[commands];
+            lengths = new int[commands];
+            sws = new int[commands];
+        }
+
+        /** Appends the data of a response, growing the buffer if needed. */
+        void append(ResponseAPDU resp) {
+            int n = resp.getNr();
+            if (length + n > buffer.length) {
+                buffer = Arrays.copyOf(buffer,
+                        Math.max(length + n, buffer.length * 2));
+            }
+            System.arraycopy(resp.getBytes(), 0, buffer, length, n);
+            length += n;
+        }
+
+        /** Records the end of the response to command i. */
+        void end(int i, int sw) {
+            int start = i == 0 ? 0 : offsets[i - 1] + lengths[i - 1];
+            offsets[i] = start;
+            lengths[i] = length - start;
+            sws[i] = sw;
+            completed = i + 1;
+        }
+
+        /** Did all the commands succeed? */
+        public boolean isSuccess() {
+            return completed == sws.length
+                    && (completed == 0 || sws[completed - 1] == SW_OK);
+        }
+
+        /** Throws an EidException if a command failed. */
+        public Result check() throws EidException {
+            if (!isSuccess()) {
+                throw new EidException("The card responded with status "
+                        + getLastSW() + " to command " + completed);
+            }
+            return this;
+        }
+
+        /** Returns the number of commands that got a response. */
+        public int getCompleted() {
+            return completed;
+        }
+
+        /** Returns the status word of the last response, or -1 if none. */
+        public int getLastSW() {
+            return completed == 0 ? -1 : sws[completed - 1];
+        }
+
+        /** Returns the status word of the response to command i. */
+        public int getSW(int i) {
+            checkIndex(i);
+            return sws[i];
+        }
+
+        /**
+         * Returns the buffer with the data of all the responses. The data of
+         * command i starts at getOffset(i) and is getLength(i) bytes long.
+         */
+        public byte[] getBuffer() {
+            return buffer;
+        }
+
+        public int getOffset(int i) {
+            checkIndex(i);
+            return offsets[i];
+        }
+
+        public int getLength(int i) {
+            checkIndex(i);
+            return lengths[i];
+        }
+
+        /** Returns the number of data bytes in the buffer. */
+        public int getTotalLength() {
+            return length;
+        }
+
+        /** Returns a copy of the data of the response to command i. */
+        public byte[] getData(int i) {
+            checkIndex(i);
+            return Arrays.copyOfRange(buffer, offsets[i],
+                    offsets[i] + lengths[i]);
+        }
+
+        private void checkIndex(int i) {
+            if (i < 0 || i >= completed) {
+                throw new IndexOutOfBoundsException("No response to command "
+                        + i);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,232 @@
+package ee.cyber.eid.card;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+
+/**
+ * Reads the personal data and the authentication certificate of every card
+ * inserted into any of the terminals, e.g. at a registration desk with many
+ * readers. The readings are put into a bounded queue for the application to
+ * take.
+ * <p>
+ * Every terminal has a thread of its own for reading the cards, so a slow
+ * card or reader only delays the cards inserted into the same terminal. The
+ * insertions are noticed by the monitor thread of the TerminalRegistry: PC/SC
+ * serializes status waits on its context, so one thread waiting for changes
+ * on all the terminals beats one waiting on each. When the queue is full, the
+ * threads wait for room, so a slow consumer slows down reading rather than
+ * readings getting lost.
+ */
+public class CardIngester implements CardListener {
+
+    /** How long to wait for the reader threads to finish when stopping. */
+    private static final long STOP_TIMEOUT = 5000L;
+
+    private final TerminalRegistry registry;
+    private final BlockingQueue<CardReading> readings;
+
+    /** The reader threads and their counters by the terminal name. */
+    private final ConcurrentMap<String, Reader> readers =
+            new ConcurrentHashMap<String, Reader>();
+
+    private volatile boolean running;
+    private boolean stopped;
+
+    /**
+     * Create an ingester for the terminals of the given registry.
+     * @param registry The terminals to watch.
+     * @param capacity How many readings the queue holds.
+     */
+    public CardIngester(TerminalRegistry registry, int capacity) {
+        this.registry = registry;
+        readings = new ArrayBlockingQueue<CardReading>(capacity);
+    }
+
+    /**
+     * Returns the queue of readings. Take the readings from it as they come,
+     * the reader threads wait when it is full.
+     */
+    public BlockingQueue<CardReading> getReadings() {
+        return readings;
+    }
+
+    /**
+     * Starts watching the terminals. The cards inserted already are read
+     * right away. An ingester cannot be started again once stopped.
+     */
+    public synchronized void start() throws CardException {
+        if (stopped) {
+            throw new IllegalStateException("The ingester has been stopped");
+        }
+        if (running) {
+            return;
+        }
+        running = true;
+        registry.addListener(this);
+        for (CardTerminal t : registry.refresh()) {
+            if (t.isCardPresent()) {
+                cardInserted(t);
+            }
+        }
+    }
+
+    /**
+     * Stops watching the terminals and waits a while for the cards being
+     * read to be done with. Readings still in the queue stay there.
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        stopped = true;
+        registry.removeListener(this);
+        for (Reader r : readers.values()) {
+            r.executor.shutdownNow();
+        }
+        for (Reader r : readers.values()) {
+            r.executor.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Returns the counters of the terminals seen so far. */
+    public List<ReaderStats> getStats() {
+        List<ReaderStats> stats = new ArrayList<ReaderStats>();
+        for (Reader r : readers.values()) {
+            stats.add(r.stats);
+        }
+        return stats;
+    }
+
+    @Override
+    public void cardInserted(final CardTerminal terminal) {
+        if (!running) {
+            return;
+        }
+        final Reader reader = getReader(terminal);
+        /* PC/SC also reports the cards present when monitoring starts as
+         * inserted, so skip a card that has been queued for reading already
+         * and not removed since. */
+        if (!reader.present.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            reader.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    /* The card may have been removed while waiting. */
+                    if (!isCardPresent(terminal)) {
+                        return;
+                    }
+                    CardReading reading = read(terminal);
+                    reader.stats.record(reading);
+                    try {
+                        readings.put(reading);
+                    } catch (InterruptedException e) {
+                        /* Stopped while waiting for room in the queue. */
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            /* Stopped in the meantime. */
+        }
+    }
+
+    @Override
+    public void cardRemoved(CardTerminal terminal) {
+        /* A card removed in the middle of reading makes the reading fail. */
+        Reader reader = readers.get(terminal.getName());
+        if (reader != null) {
+            reader.present.set(false);
+        }
+    }
+
+    /** Returns the reader thread of a terminal, creating it the first time. */
+    private Reader getReader(CardTerminal terminal) {
+        String name = terminal.getName();
+        Reader reader = readers.get(name);
+        if (reader == null) {
+            Reader created = new Reader(name);
+            reader = readers.putIfAbsent(name, created);
+            if (reader == null) {
+                reader = created;
+            } else {
+                created.executor.shutdown();
+            }
+        }
+        return reader;
+    }
+
+    private static boolean isCardPresent(CardTerminal terminal) {
+        try {
+            return terminal.isCardPresent();
+        } catch (CardException e) {
+            return false;
+        }
+    }
+
+    /** Connects to the card in the terminal and reads it. */
+    private static CardReading read(CardTerminal terminal) {
+        long start = System.nanoTime();
+        Card card = null;
+        try {
+            card = terminal.connect(CardUtil.PROTOCOL_T0);
+            EstEID eid = new EstEID(card);
+            PersonalData pd = eid.getPersonalData();
+            pd.readAll();
+            return new CardReading(terminal.getName(), pd,
+                    eid.getAuthCertificate(), null,
+                    System.nanoTime() - start);
+        } catch (Exception e) {
+            return new CardReading(terminal.getName(), null, null, e,
+                    System.nanoTime() - start);
+        } finally {
+            if (card != null) {
+                try {
+                    card.disconnect(false);
+                } catch (CardException e) {
+                    /* The card was removed already. */
+                }
+            }
+        }
+    }
+
+    /** The thread reading the cards of one terminal, and its counters. */
+    private static class Reader {
+
+        private final ExecutorService executor;
+        private final ReaderStats stats;
+
+        /** Whether a card is present and queued for reading or read. */
+        private final AtomicBoolean present = new AtomicBoolean();
+
+        Reader(final String name) {
+            stats = new ReaderStats(name);
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "card-reader-" + name);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+    }
+
+}
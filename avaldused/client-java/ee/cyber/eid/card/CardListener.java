@@ -0,0 +1,18 @@
+package ee.cyber.eid.card;
+
+import javax.smartcardio.CardTerminal;
+
+/**
+ * Gets notified when cards are inserted into or removed from the terminals
+ * of the TerminalRegistry. The methods are called from the registry's monitor
+ * thread, so they should return quickly.
+ */
+public interface CardListener {
+
+    /** A card was inserted into the given terminal. */
+    void cardInserted(CardTerminal terminal);
+
+    /** A card was removed from the given terminal. */
+    void cardRemoved(CardTerminal terminal);
+
+}
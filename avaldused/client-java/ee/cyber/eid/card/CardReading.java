@@ -0,0 +1,56 @@
+package ee.cyber.eid.card;
+
+import java.security.cert.X509Certificate;
+
+/**
+ * The result of reading a card inserted into one of the terminals watched by
+ * a CardIngester: the personal data and the authentication certificate, or
+ * the error that prevented reading them.
+ */
+public class CardReading {
+
+    private final String terminalName;
+    private final PersonalData personalData;
+    private final X509Certificate authCertificate;
+    private final Exception error;
+    private final long readNanos;
+
+    CardReading(String terminalName, PersonalData personalData,
+            X509Certificate authCertificate, Exception error, long readNanos) {
+        this.terminalName = terminalName;
+        this.personalData = personalData;
+        this.authCertificate = authCertificate;
+        this.error = error;
+        this.readNanos = readNanos;
+    }
+
+    /** Returns the name of the terminal the card was read in. */
+    public String getTerminalName() {
+        return terminalName;
+    }
+
+    /** Returns the personal data with all the fields read, or null. */
+    public PersonalData getPersonalData() {
+        return personalData;
+    }
+
+    /** Returns the authentication certificate, or null. */
+    public X509Certificate getAuthCertificate() {
+        return authCertificate;
+    }
+
+    /** Returns the error that prevented reading the card, or null. */
+    public Exception getError() {
+        return error;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    /** Returns how long connecting to and reading the card took. */
+    public long getReadNanos() {
+        return readNanos;
+    }
+
+}
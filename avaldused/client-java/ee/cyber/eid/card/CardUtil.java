@@ -1,18 +1,23 @@
 package ee.cyber.eid.card;
 
+import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 import java.util.List;
 import java.util.concurrent.TimeoutException;
 
+import javax.smartcardio.ATR;
 import javax.smartcardio.Card;
 import javax.smartcardio.CardChannel;
 import javax.smartcardio.CardException;
 import javax.smartcardio.CardTerminal;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
-import javax.smartcardio.TerminalFactory;
+
+import org.bouncycastle.util.encoders.Hex;
 
 import ee.cyber.eid.EidException;
+import ee.cyber.eid.trace.ApduEvent;
+import ee.cyber.eid.trace.Trace;
 
 /** A collection of helper functions for handling EstEID tokens. */
 public class CardUtil {
@@ -21,31 +26,56 @@ public class CardUtil {
     public static final String CARD_ENCODING = "ISO-8859-1";
 
     /** The protocol to use for communicating with the tokens. */
-    private static final String PROTOCOL_T0 = "T=0";
+    static final String PROTOCOL_T0 = "T=0";
+
+    /** The most response bytes a short APDU can ask for. */
+    static final int SHORT_MAX_NE = 256;
+
+    /** The most response bytes an extended length APDU can ask for. */
+    static final int EXTENDED_MAX_NE = 65536;
 
-    /** Get the card terminals connected. */
+    /** How long to wait for a card to be inserted, in milliseconds. */
+    private static final long CARD_TIMEOUT = 10000L;
+
+    /**
+     * Get the card terminals connected. The list is cached by the
+     * TerminalRegistry, so calling this often is cheap.
+     */
     public static List<CardTerminal> getTerminals() throws CardException,
             NoSuchAlgorithmException {
-        return TerminalFactory.getInstance("PC/SC", null).terminals().list();
+        return TerminalRegistry.getInstance().getTerminals();
     }
 
     /** Wait for a card to be inserted on the given terminal. */
     public static void waitForCard(int terminalIndex)
             throws NoSuchAlgorithmException, CardException, TimeoutException {
-        waitForCard(terminalIndex, 10000L);
+        waitForCard(terminalIndex, CARD_TIMEOUT);
     }
 
     /** Wait for a card to be inserted on the given terminal. */
     public static void waitForCard(int terminalIndex, long timeout)
             throws NoSuchAlgorithmException, CardException, TimeoutException {
+        waitForTerminal(terminalIndex, timeout);
+    }
+
+    /**
+     * Wait for a card to be inserted on the given terminal and return the
+     * terminal.
+     */
+    private static CardTerminal waitForTerminal(int terminalIndex,
+            long timeout) throws NoSuchAlgorithmException, CardException,
+            TimeoutException {
         /* Get the terminal on the given index. */
-        List<CardTerminal> terminals = getTerminals();
-        if (terminalIndex < 0 || terminalIndex >= terminals.size()) {
-            throw new IllegalArgumentException("Terminal index out of range");
+        CardTerminal terminal = TerminalRegistry.getInstance()
+                .getTerminal(terminalIndex);
+
+        /* A card that is already there needs no waiting. */
+        if (terminal.isCardPresent()) {
+            return terminal;
         }
-        CardTerminal terminal = terminals.get(terminalIndex);
 
-        /* Wait for a card to be inserted. */
+        /* Wait for a card to be inserted. PC/SC wakes us up as soon as that
+         * happens, the timeout only applies if nothing is inserted. */
         System.out.print("Waiting for card in " + terminal.getName() + "...");
         if (terminal.waitForCardPresent(timeout)) {
             System.out.println("Found.");
@@ -54,23 +84,20 @@ public class CardUtil {
             throw new TimeoutException("No card inserted into selected "
                     + "terminal");
         }
+        return terminal;
     }
 
     /** Connect to the card inserted into the specified terminal. */
     static Card connectToCard(int terminalIndex)
             throws NoSuchAlgorithmException, CardException, TimeoutException {
-        waitForCard(terminalIndex);
-
-        /* Connect to the card using protocol T=0.
-         * waitForCard() did all the sanity checking for terminalIndex, so no
-         * need to check it again. */
-        return getTerminals().get(terminalIndex).connect(PROTOCOL_T0);
+        /* Connect to the card using protocol T=0. */
+        return waitForTerminal(terminalIndex, CARD_TIMEOUT).connect(PROTOCOL_T0);
     }
 
     /** Send a command APDU to the card. */
     static byte[] sendCommand(CardChannel channel, CommandAPDU cmd)
             throws CardException, EidException {
-        ResponseAPDU resp = channel.transmit(cmd);
+        ResponseAPDU resp = transmit(channel, cmd);
         int status = resp.getSW();
         if (status != 0x9000) { // 0x9000 is OK response
             throw new EidException("The card responded with status " + status);
@@ -78,4 +105,80 @@ public class CardUtil {
         return resp.getData();
     }
 
+    /** Send a command APDU to the card, whatever the status of the response. */
+    static ResponseAPDU transmit(CardChannel channel, CommandAPDU cmd)
+            throws CardException {
+        long start = Trace.start();
+        ResponseAPDU resp = null;
+        try {
+            resp = channel.transmit(cmd);
+        } finally {
+            if (start != 0) {
+                Trace.emit(new ApduEvent(start, cmd.getINS(), cmd.getP1(),
+                        cmd.getP2(), resp != null ? resp.getNr() : -1,
+                        resp != null ? resp.getSW() : -1));
+            }
+        }
+        return resp;
+    }
+
+    /**
+     * Returns the largest number of response bytes that can be asked for with
+     * one command: 65536 if the card supports extended length APDUs and they
+     * can be sent over the protocol in use, 256 otherwise.
+     */
+    static int getMaxNe(Card card) {
+        /* Extended length needs T=1, T=0 would need them enveloped. */
+        if (!"T=1".equals(card.getProtocol())) {
+            return SHORT_MAX_NE;
+        }
+        /* The card capabilities are in the historical bytes: compact TLVs
+         * after the category indicator 00 or 80. The third byte of tag 7
+         * has bit 7 set if extended Lc and Le fields are supported. */
+        byte[] hist = card.getATR().getHistoricalBytes();
+        if (hist.length == 0 || hist[0] != 0x00 && hist[0] != (byte) 0x80) {
+            return SHORT_MAX_NE;
+        }
+        int i = 1;
+        while (i < hist.length) {
+            int tag = (hist[i] & 0xf0) >> 4;
+            int length = hist[i] & 0x0f;
+            if (tag == 7 && length >= 3 && i + 3 < hist.length) {
+                return (hist[i + 3] & 0x40) != 0 ? EXTENDED_MAX_NE
+                        : SHORT_MAX_NE;
+            }
+            i += 1 + length;
+        }
+        return SHORT_MAX_NE;
+    }
+
+    /**
+     * Returns the size of a transparent file from its file control
+     * parameters, as returned by SELECT FILE.
+     */
+    static int getFileSize(byte[] fcp) throws EidException {
+        /* The FCP template (62) holds simple TLVs, the size is in tag 80 or,
+         * on EstEID, in tag 85. */
+        int i = fcp.length > 2 && fcp[0] == 0x62 ? 2 : 0;
+        while (i + 1 < fcp.length) {
+            int tag = fcp[i] & 0xff;
+            int length = fcp[i + 1] & 0xff;
+            if ((tag == 0x80 || tag == 0x85) && length == 2
+                    && i + 3 < fcp.length) {
+                return (fcp[i + 2] & 0xff) << 8 | fcp[i + 3] & 0xff;
+            }
+            i += 2 + length;
+        }
+        throw new EidException("No file size in the file control parameters");
+    }
+
+    /**
+     * Returns the ATR of a card in hex, for the cache keys of the data read
+     * from the card.
+     */
+    static String toHex(ATR atr) {
+        return new String(Hex.encode(atr.getBytes()),
+                StandardCharsets.US_ASCII);
+    }
+
 }
@@ -1,14 +1,20 @@
 package ee.cyber.eid.card;
 
-import java.io.UnsupportedEncodingException;
+import java.io.ByteArrayInputStream;
 import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
 import java.util.concurrent.TimeoutException;
 
 import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
 import javax.smartcardio.CardException;
 import javax.smartcardio.CommandAPDU;
 
 import ee.cyber.eid.EidException;
+import ee.cyber.eid.util.LruCache;
 
 /** An EstEID token. */
 public class EstEID {
@@ -22,8 +28,34 @@ public class EstEID {
             new byte[] { 0x00, (byte) 0xa4, 0x01, 0x0c, 0x02, (byte) 0xee,
                     (byte) 0xee });
 
+    /** The status word for a wrong Le. */
+    private static final int SW_WRONG_LENGTH = 0x6700;
+
+    /** The file holding the authentication certificate. */
+    private static final int FID_AUTH_CERT = 0xaace;
+
+    /** The file holding the signing certificate. */
+    private static final int FID_SIGN_CERT = 0xddce;
+
+    /** How many cards' certificates are cached. */
+    private static final int CACHE_SIZE = 128;
+
+    /** How long certificates are cached by default, in milliseconds. */
+    private static final long DEFAULT_CACHE_TIMEOUT = 3600000L;
+
+    /**
+     * The certificates read, by the ATR and the document number of the card
+     * and the file identifier. A new card gets a new document number, so the
+     * certificates can be kept for long.
+     */
+    private static final LruCache<String, X509Certificate> CACHE =
+            new LruCache<String, X509Certificate>(CACHE_SIZE,
+                    DEFAULT_CACHE_TIMEOUT);
+
     private Card card;
     private PersonalData personalData;
+    private X509Certificate authCert;
+    private X509Certificate signCert;
 
     /** Connect to the the token on the specified terminal index. */
     public EstEID(int terminalIndex) throws NoSuchAlgorithmException,
@@ -31,17 +63,109 @@ public class EstEID {
         card = CardUtil.connectToCard(terminalIndex);
     }
 
+    /** Use a card connected to already. */
+    public EstEID(Card card) {
+        this.card = card;
+    }
+
     public Card getCard() {
         return card;
     }
 
-    /** Retrieve personal data stored on the EstEID token. */
-    public PersonalData getPersonalData() throws CardException, EidException,
-            UnsupportedEncodingException {
+    /**
+     * Retrieve personal data stored on the EstEID token. The fields are read
+     * from the token when they are first asked for.
+     */
+    public PersonalData getPersonalData() throws CardException, EidException {
         if (personalData == null) {
-            personalData = new PersonalData(card.getBasicChannel());
+            personalData = new PersonalData(card);
         }
         return personalData;
     }
 
+    /**
+     * Read the authentication certificate from the token. No PIN is needed
+     * for this, unlike with JDigiDoc, so the certificate can be checked before
+     * asking the user for one.
+     */
+    public X509Certificate getAuthCertificate() throws CardException,
+            EidException, CertificateException {
+        if (authCert == null) {
+            authCert = readCertificate(FID_AUTH_CERT);
+        }
+        return authCert;
+    }
+
+    /** Read the signing certificate from the token, without a PIN. */
+    public X509Certificate getSignCertificate() throws CardException,
+            EidException, CertificateException {
+        if (signCert == null) {
+            signCert = readCertificate(FID_SIGN_CERT);
+        }
+        return signCert;
+    }
+
+    /**
+     * Sets how long the certificates of a card are cached.
+     * @param millis The time in milliseconds, 0 disables the cache.
+     */
+    public static void setCacheTimeout(long millis) {
+        CACHE.setTtl(millis);
+    }
+
+    /** Read a certificate file, unless it is in the cache. */
+    private X509Certificate readCertificate(int fid) throws CardException,
+            EidException, CertificateException {
+        String key = CardUtil.toHex(card.getATR()) + '/'
+                + getPersonalData().getDocumentNumber() + '/'
+                + Integer.toHexString(fid);
+        X509Certificate cert = CACHE.get(key);
+        if (cert != null) {
+            return cert;
+        }
+
+        byte[] der;
+        card.beginExclusive();
+        try {
+            CardChannel channel = card.getBasicChannel();
+            ApduScript.Result fcp = new ApduScript().add(SELECT_FILE_MF,
+                    SELECT_FILE_EEEE, new CommandAPDU(0x00, 0xa4, 0x02, 0x04,
+                            new byte[] { (byte) (fid >> 8), (byte) fid },
+                            CardUtil.SHORT_MAX_NE)).run(channel).check();
+            int size = CardUtil.getFileSize(fcp.getData(2));
+            ApduScript.Result data = readBinary(size, CardUtil.getMaxNe(card))
+                    .run(channel);
+            if (data.getLastSW() == SW_WRONG_LENGTH
+                    && CardUtil.getMaxNe(card) > CardUtil.SHORT_MAX_NE) {
+                /* The reader or the driver did not take an extended APDU
+                 * after all, fall back to short ones. */
+                data = readBinary(size, CardUtil.SHORT_MAX_NE).run(channel);
+            }
+            der = Arrays.copyOf(data.check().getBuffer(),
+                    data.getTotalLength());
+        } finally {
+            card.endExclusive();
+        }
+
+        /* The file may be larger than the certificate, the padding after it
+         * is ignored. */
+        cert = (X509Certificate) CertificateFactory.getInstance("X.509")
+                .generateCertificate(new ByteArrayInputStream(der));
+        CACHE.put(key, cert);
+        return cert;
+    }
+
+    /**
+     * Returns a script reading the given number of bytes of the selected
+     * transparent file, as many at a time as the card allows.
+     */
+    private static ApduScript readBinary(int size, int maxNe) {
+        ApduScript script = new ApduScript();
+        for (int offset = 0; offset < size; offset += maxNe) {
+            script.add(new CommandAPDU(0x00, 0xb0, offset >> 8, offset & 0xff,
+                    Math.min(size - offset, maxNe)));
+        }
+        return script;
+    }
+
 }
@@ -1,129 +1,253 @@
 package ee.cyber.eid.card;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
 
-import javax.smartcardio.CardChannel;
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
 import javax.smartcardio.CardException;
 import javax.smartcardio.CommandAPDU;
 
 import ee.cyber.eid.EidException;
-
-/** The personal data stored on an ID-card. */
+import ee.cyber.eid.util.LruCache;
+
+/**
+ * The personal data stored on an ID-card.
+ * The records are read lazily: only the ones asked for are read from the
+ * card, each at most once. read() reads several records in one exclusive
+ * transaction. The records read are cached by the card's ATR and document
+ * number, so a card presented again within the cache timeout is not read
+ * again.
+ */
 public class PersonalData {
 
+    /** The personal data fields, in the order of the records on the card. */
+    public enum Field {
+        SURNAME, GIVEN_NAME_1, GIVEN_NAME_2, GENDER, CITIZENSHIP,
+        DATE_OF_BIRTH, PERSONAL_CODE, DOCUMENT_NUMBER, DATE_OF_EXPIRY,
+        PLACE_OF_BIRTH, DATE_OF_ISSUE, RESIDENCE_PERMIT_TYPE, REMARK_1,
+        REMARK_2, REMARK_3, REMARK_4;
+
+        /** Returns the number of the record holding this field. */
+        byte getRecordNumber() {
+            return (byte) (ordinal() + 1);
+        }
+    }
+
     /** The number of personal data fields. */
     private static final int RECORDS_COUNT = 16;
 
+    /** How many cards' personal data is cached. */
+    private static final int CACHE_SIZE = 64;
+
+    /** How long personal data is cached by default, in milliseconds. */
+    private static final long DEFAULT_CACHE_TIMEOUT = 300000L;
+
     /** The command to select the file 5044. */
     private static final CommandAPDU SELECT_FILE_5044 = new CommandAPDU(
             new byte[] { 0x00, (byte) 0xa4, 0x02, 0x04, 0x02, 0x50, 0x44 });
 
-    private String[] records = new String[RECORDS_COUNT];
+    /** The commands to read the records, by the field. */
+    private static final CommandAPDU[] READ_RECORD =
+            new CommandAPDU[RECORDS_COUNT];
 
-    /** Read personal data from a card using the given channel. */
-    public PersonalData(CardChannel channel) throws CardException,
-            EidException, UnsupportedEncodingException {
-        /* Navigate to the personal data file. */
-        CardUtil.sendCommand(channel, EstEID.SELECT_FILE_MF);
-        CardUtil.sendCommand(channel, EstEID.SELECT_FILE_EEEE);
-        CardUtil.sendCommand(channel, SELECT_FILE_5044);
+    static {
+        for (Field f : Field.values()) {
+            READ_RECORD[f.ordinal()] = new CommandAPDU(new byte[] {
+                    0x00, (byte) 0xb2, f.getRecordNumber(), 0x04, 0x00 });
+        }
+    }
+
+    private static final Charset CHARSET = Charset.forName(
+            CardUtil.CARD_ENCODING);
+
+    /** The records read, by the ATR and the document number of the card. */
+    private static final LruCache<String, String[]> CACHE =
+            new LruCache<String, String[]>(CACHE_SIZE, DEFAULT_CACHE_TIMEOUT);
+
+    private Card card;
 
-        /* Read the stored personal data into an array. */
-        for (byte i = 1; i <= RECORDS_COUNT; i++) {
-            records[i - 1] = new String(readRecord(channel, i),
-                    CardUtil.CARD_ENCODING).trim();
+    /** The records read so far, shared with the cache. Guarded by itself. */
+    private String[] records;
+
+    /**
+     * Prepare reading personal data from the given card. Only the document
+     * number is read now, to look up the card in the cache.
+     */
+    public PersonalData(Card card) throws CardException, EidException {
+        this.card = card;
+        String[] fresh = new String[RECORDS_COUNT];
+        read(fresh, new Field[] { Field.DOCUMENT_NUMBER });
+
+        String key = getCacheKey(card.getATR(),
+                fresh[Field.DOCUMENT_NUMBER.ordinal()]);
+        records = CACHE.get(key);
+        if (records == null) {
+            records = fresh;
+            CACHE.put(key, records);
         }
     }
 
-    /** Read a record from the card using the given channel. */
-    private byte[] readRecord(CardChannel channel, byte recordNumber)
-            throws CardException, EidException {
-        return CardUtil.sendCommand(channel, new CommandAPDU(new byte[] {
-                0x00, (byte) 0xb2, recordNumber, 0x04, 0x00 }));
+    /**
+     * Sets how long the personal data of a card is cached.
+     * @param millis The time in milliseconds, 0 disables the cache.
+     */
+    public static void setCacheTimeout(long millis) {
+        CACHE.setTtl(millis);
     }
 
-    public String getSurname() {
-        return records[0];
+    private static String getCacheKey(ATR atr, String documentNumber) {
+        return CardUtil.toHex(atr) + '/' + documentNumber;
     }
 
-    public String getGivenName1() {
-        return records[1];
+    /** Returns a field, reading it from the card if it has not been yet. */
+    public String get(Field field) throws CardException, EidException {
+        synchronized (records) {
+            String value = records[field.ordinal()];
+            if (value == null) {
+                read(field);
+                value = records[field.ordinal()];
+            }
+            return value;
+        }
     }
 
-    public String getGivenName2() {
-        return records[2];
+    /**
+     * Reads the given fields from the card in one exclusive transaction,
+     * skipping the ones read already.
+     */
+    public void read(Field... fields) throws CardException, EidException {
+        synchronized (records) {
+            List<Field> missing = new ArrayList<Field>();
+            for (Field f : fields) {
+                if (records[f.ordinal()] == null) {
+                    missing.add(f);
+                }
+            }
+            if (!missing.isEmpty()) {
+                read(records, missing.toArray(new Field[missing.size()]));
+            }
+        }
+    }
+
+    /** Reads all the fields from the card. */
+    public void readAll() throws CardException, EidException {
+        read(Field.values());
+    }
+
+    /**
+     * Reads the given fields into the given array, with one script selecting
+     * the file and reading the records.
+     */
+    private void read(String[] into, Field[] fields) throws CardException,
+            EidException {
+        /* Somebody else may have used the card in between, so select the file
+         * again in the same transaction as the reads. */
+        ApduScript script = new ApduScript().add(EstEID.SELECT_FILE_MF,
+                EstEID.SELECT_FILE_EEEE, SELECT_FILE_5044);
+        for (Field f : fields) {
+            script.add(READ_RECORD[f.ordinal()]);
+        }
+        ApduScript.Result result = script.run(card).check();
+        byte[] buffer = result.getBuffer();
+        for (int i = 0; i < fields.length; i++) {
+            into[fields[i].ordinal()] = new String(buffer,
+                    result.getOffset(i + 3), result.getLength(i + 3),
+                    CHARSET).trim();
+        }
     }
 
-    public String getGender() {
-        return records[3];
+    public String getSurname() throws CardException, EidException {
+        return get(Field.SURNAME);
     }
 
-    public String getCitizenship() {
-        return records[4];
+    public String getGivenName1() throws CardException, EidException {
+        return get(Field.GIVEN_NAME_1);
     }
 
-    public String getDateOfBirth() {
-        return records[5];
+    public String getGivenName2() throws CardException, EidException {
+        return get(Field.GIVEN_NAME_2);
     }
 
-    public String getPersonalCode() {
-        return records[6];
+    public String getGender() throws CardException, EidException {
+        return get(Field.GENDER);
     }
 
-    public String getDocumentNumber() {
-        return records[7];
+    public String getCitizenship() throws CardException, EidException {
+        return get(Field.CITIZENSHIP);
     }
 
-    public String getDateOfExpiry() {
-        return records[8];
+    public String getDateOfBirth() throws CardException, EidException {
+        return get(Field.DATE_OF_BIRTH);
     }
 
-    public String getPlaceOfBirth() {
-        return records[9];
+    public String getPersonalCode() throws CardException, EidException {
+        return get(Field.PERSONAL_CODE);
     }
 
-    public String getDateOfIssue() {
-        return records[10];
+    public String getDocumentNumber() throws CardException, EidException {
+        return get(Field.DOCUMENT_NUMBER);
     }
 
-    public String getResidencePermitType() {
-        return records[11];
+    public String getDateOfExpiry() throws CardException, EidException {
+        return get(Field.DATE_OF_EXPIRY);
     }
 
-    public String getRemark1() {
-        return records[12];
+    public String getPlaceOfBirth() throws CardException, EidException {
+        return get(Field.PLACE_OF_BIRTH);
     }
 
-    public String getRemark2() {
-        return records[13];
+    public String getDateOfIssue() throws CardException, EidException {
+        return get(Field.DATE_OF_ISSUE);
     }
 
-    public String getRemark3() {
-        return records[14];
+    public String getResidencePermitType() throws CardException, EidException {
+        return get(Field.RESIDENCE_PERMIT_TYPE);
     }
 
-    public String getRemark4() {
-        return records[15];
+    public String getRemark1() throws CardException, EidException {
+        return get(Field.REMARK_1);
     }
 
+    public String getRemark2() throws CardException, EidException {
+        return get(Field.REMARK_2);
+    }
+
+    public String getRemark3() throws CardException, EidException {
+        return get(Field.REMARK_3);
+    }
+
+    public String getRemark4() throws CardException, EidException {
+        return get(Field.REMARK_4);
+    }
+
+    /**
+     * Returns the records read so far as text, one field per line. Call
+     * readAll() first to have all of them.
+     */
     @Override
     public String toString() {
-        return "Surname: " + getSurname() + '\n'
-                + "Given name 1: " + getGivenName1() + '\n'
-                + "Given name 2: " + getGivenName2() + '\n'
-                + "Gender: " + getGender() + '\n'
-                + "Citizenship: " + getCitizenship() + '\n'
-                + "Date of birth: " + getDateOfBirth() + '\n'
-                + "Personal code: " + getPersonalCode() + '\n'
-                + "Document number: " + getDocumentNumber() + '\n'
-                + "Date of expiry: " + getDateOfExpiry() + '\n'
-                + "Place of birth: " + getPlaceOfBirth() + '\n'
-                + "Date of issue: " + getDateOfIssue() + '\n'
-                + "Residence permit type: " + getResidencePermitType() + '\n'
-                + "Remark 1: " + getRemark1() + '\n'
-                + "Remark 2: " + getRemark2() + '\n'
-                + "Remark 3: " + getRemark3() + '\n'
-                + "Remark 4: " + getRemark4();
+        String[] r;
+        synchronized (records) {
+            r = records.clone();
+        }
+        return "Surname: " + r[0] + '\n'
+                + "Given name 1: " + r[1] + '\n'
+                + "Given name 2: " + r[2] + '\n'
+                + "Gender: " + r[3] + '\n'
+                + "Citizenship: " + r[4] + '\n'
+                + "Date of birth: " + r[5] + '\n'
+                + "Personal code: " + r[6] + '\n'
+                + "Document number: " + r[7] + '\n'
+                + "Date of expiry: " + r[8] + '\n'
+                + "Place of birth: " + r[9] + '\n'
+                + "Date of issue: " + r[10] + '\n'
+                + "Residence permit type: " + r[11] + '\n'
+                + "Remark 1: " + r[12] + '\n'
+                + "Remark 2: " + r[13] + '\n'
+                + "Remark 3: " + r[14] + '\n'
+                + "Remark 4: " + r[15];
     }
 
 }
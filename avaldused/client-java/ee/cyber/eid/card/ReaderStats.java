@@ -0,0 +1,79 @@
+package ee.cyber.eid.card;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Counters of the cards read in one terminal by a CardIngester. */
+public class ReaderStats {
+
+    private final String terminalName;
+    private final long created = System.nanoTime();
+    private final AtomicLong cards = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong readNanos = new AtomicLong();
+    private final AtomicLong maxReadNanos = new AtomicLong();
+
+    ReaderStats(String terminalName) {
+        this.terminalName = terminalName;
+    }
+
+    /** Counts a reading. */
+    void record(CardReading reading) {
+        if (reading.isSuccess()) {
+            cards.incrementAndGet();
+        } else {
+            failures.incrementAndGet();
+        }
+        long nanos = reading.getReadNanos();
+        readNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxReadNanos.get())
+                && !maxReadNanos.compareAndSet(max, nanos)) {
+            /* Somebody else updated the maximum, try again. */
+        }
+    }
+
+    public String getTerminalName() {
+        return terminalName;
+    }
+
+    /** Returns the number of cards read successfully. */
+    public long getCards() {
+        return cards.get();
+    }
+
+    /** Returns the number of cards that could not be read. */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /** Returns the average time to read a card in milliseconds. */
+    public double getAverageReadMillis() {
+        long count = cards.get() + failures.get();
+        return count == 0 ? 0 : readNanos.get() / 1e6 / count;
+    }
+
+    /** Returns the longest time to read a card in milliseconds. */
+    public double getMaxReadMillis() {
+        return maxReadNanos.get() / 1e6;
+    }
+
+    /**
+     * Returns the number of cards read per minute since the reader was first
+     * seen.
+     */
+    public double getCardsPerMinute() {
+        long elapsed = System.nanoTime() - created;
+        return elapsed <= 0 ? 0
+                : cards.get() * (double) TimeUnit.MINUTES.toNanos(1) / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d read, %d failed, %.1f/min, "
+                + "avg %.1f ms, max %.1f ms", terminalName, getCards(),
+                getFailures(), getCardsPerMinute(), getAverageReadMillis(),
+                getMaxReadMillis());
+    }
+
+}
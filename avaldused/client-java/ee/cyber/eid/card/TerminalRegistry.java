@@ -0,0 +1,175 @@
+package ee.cyber.eid.card;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.TerminalFactory;
+
+/**
+ * The card terminals connected to this computer, or emulated ones.
+ * Enumerating the terminals through PC/SC is slow, so the factory and the
+ * list of terminals are kept for the life of the application. When listeners
+ * are added, a single monitor thread waits for changes on all the terminals
+ * and tells the listeners about inserted and removed cards, so nobody has to
+ * poll the terminals.
+ */
+public class TerminalRegistry {
+
+    /** How long the monitor waits for a change at a time, in milliseconds. */
+    private static final long MONITOR_TIMEOUT = 1000L;
+
+    /** How long the monitor waits before retrying after an error. */
+    private static final long MONITOR_RETRY = 1000L;
+
+    private static TerminalRegistry instance;
+
+    private CardTerminals terminals;
+    private volatile List<CardTerminal> list = Collections.emptyList();
+
+    private final List<CardListener> listeners =
+            new CopyOnWriteArrayList<CardListener>();
+    private Thread monitor;
+
+    /**
+     * Create a registry of the given terminals, e.g. those of a card
+     * emulator. Use setInstance() to make CardUtil use it.
+     */
+    public TerminalRegistry(CardTerminals terminals) {
+        this.terminals = terminals;
+    }
+
+    /**
+     * Returns the registry set with setInstance() or, if none was, the
+     * registry of the PC/SC terminals.
+     */
+    public static synchronized TerminalRegistry getInstance()
+            throws NoSuchAlgorithmException {
+        if (instance == null) {
+            instance = new TerminalRegistry(TerminalFactory.getInstance(
+                    "PC/SC", null).terminals());
+        }
+        return instance;
+    }
+
+    /**
+     * Replaces the registry used by CardUtil, e.g. to use emulated terminals
+     * instead of the PC/SC ones. The monitor of the old registry is not
+     * stopped, its listeners need to be removed by their owners.
+     */
+    public static synchronized void setInstance(TerminalRegistry registry) {
+        instance = registry;
+    }
+
+    /**
+     * Returns the card terminals connected. The list is only enumerated
+     * again when the monitor notices a change, refresh() is called or no
+     * terminals were found the last time.
+     */
+    public List<CardTerminal> getTerminals() throws CardException {
+        List<CardTerminal> current = list;
+        if (current.isEmpty()) {
+            current = refresh();
+        }
+        return current;
+    }
+
+    /** Returns the terminal on the given index. */
+    public CardTerminal getTerminal(int index) throws CardException {
+        List<CardTerminal> current = getTerminals();
+        if (index < 0 || index >= current.size()) {
+            throw new IllegalArgumentException("Terminal index out of range");
+        }
+        return current.get(index);
+    }
+
+    /** Enumerates the terminals again. */
+    public synchronized List<CardTerminal> refresh() throws CardException {
+        list = Collections.unmodifiableList(terminals.list());
+        return list;
+    }
+
+    /**
+     * Adds a listener for card insertions and removals, starting the monitor
+     * thread if it is not running yet.
+     */
+    public synchronized void addListener(CardListener listener) {
+        listeners.add(listener);
+        if (monitor == null) {
+            monitor = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    monitor();
+                }
+            }, "card-monitor");
+            monitor.setDaemon(true);
+            monitor.start();
+        }
+    }
+
+    /**
+     * Removes a listener. The monitor thread stops when the last listener is
+     * removed.
+     */
+    public synchronized void removeListener(CardListener listener) {
+        listeners.remove(listener);
+        if (listeners.isEmpty() && monitor != null) {
+            monitor.interrupt();
+            monitor = null;
+        }
+    }
+
+    /** Waits for changes on the terminals and notifies the listeners. */
+    private void monitor() {
+        Thread self = Thread.currentThread();
+        while (isMonitor(self)) {
+            try {
+                if (!terminals.waitForChange(MONITOR_TIMEOUT)) {
+                    continue;
+                }
+                /* A change may also mean that a reader was attached. */
+                refresh();
+                for (CardTerminal t : terminals.list(
+                        CardTerminals.State.CARD_REMOVAL)) {
+                    for (CardListener l : listeners) {
+                        try {
+                            l.cardRemoved(t);
+                        } catch (RuntimeException e) {
+                            System.err.println("Card listener failed: " + e);
+                        }
+                    }
+                }
+                for (CardTerminal t : terminals.list(
+                        CardTerminals.State.CARD_INSERTION)) {
+                    for (CardListener l : listeners) {
+                        try {
+                            l.cardInserted(t);
+                        } catch (RuntimeException e) {
+                            System.err.println("Card listener failed: " + e);
+                        }
+                    }
+                }
+            } catch (CardException e) {
+                /* PC/SC reports having no readers as an error, so wait for
+                 * one to be attached. */
+                try {
+                    Thread.sleep(MONITOR_RETRY);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            } catch (RuntimeException e) {
+                System.err.println("Card monitor failed: " + e);
+            }
+        }
+    }
+
+    /** Is the given thread still the monitor thread? */
+    private synchronized boolean isMonitor(Thread thread) {
+        return monitor == thread && !thread.isInterrupted();
+    }
+
+}
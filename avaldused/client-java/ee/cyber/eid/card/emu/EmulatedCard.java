@@ -0,0 +1,423 @@
+package ee.cyber.eid.card.emu;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.Cipher;
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import ee.cyber.eid.card.CardUtil;
+
+/**
+ * A software EstEID token for tests and benchmarks.
+ * It answers the EstEID file system: the master file, the directory EEEE with
+ * the personal data file 5044 and the certificate files AACE (authentication)
+ * and DDCE (signing). It verifies PIN1 and PIN2 and computes authentication
+ * (INTERNAL AUTHENTICATE) and signing (PSO: COMPUTE DIGITAL SIGNATURE)
+ * signatures with test keys. Every command can be made to take a while, to
+ * mimic a real card.
+ */
+public class EmulatedCard extends Card {
+
+    /** The ATR of an EstEID 1.0 card. */
+    private static final byte[] ATR_BYTES = {
+        0x3b, (byte) 0xfe, 0x18, 0x00, 0x00, (byte) 0x80, 0x31, (byte) 0xfe,
+        0x45, 0x45, 0x73, 0x74, 0x45, 0x49, 0x44, 0x20, 0x76, 0x65, 0x72,
+        0x20, 0x31, 0x2e, 0x30, (byte) 0xa8
+    };
+
+    /** The number of wrong tries after which a PIN is blocked. */
+    private static final int PIN_TRIES = 3;
+
+    private static final int FID_MF = 0x3f00;
+    private static final int FID_EEEE = 0xeeee;
+    private static final int FID_PERSONAL_DATA = 0x5044;
+    private static final int FID_AUTH_CERT = 0xaace;
+    private static final int FID_SIGN_CERT = 0xddce;
+
+    private static final int SW_OK = 0x9000;
+    private static final int SW_WRONG_LENGTH = 0x6700;
+    private static final int SW_SECURITY_NOT_SATISFIED = 0x6982;
+    private static final int SW_PIN_BLOCKED = 0x6983;
+    private static final int SW_FILE_NOT_FOUND = 0x6a82;
+    private static final int SW_RECORD_NOT_FOUND = 0x6a83;
+    private static final int SW_WRONG_P1P2 = 0x6b00;
+    private static final int SW_INS_NOT_SUPPORTED = 0x6d00;
+    private static final int SW_CLA_NOT_SUPPORTED = 0x6e00;
+
+    private final ReentrantLock exclusive = new ReentrantLock();
+    private final EmulatedChannel channel = new EmulatedChannel(this);
+
+    private String[] personalData;
+    private PrivateKey authKey;
+    private byte[] authCert;
+    private PrivateKey signKey;
+    private byte[] signCert;
+    private String[] pins = { null, "1234", "12345" };
+    private int[] triesLeft = { 0, PIN_TRIES, PIN_TRIES };
+    private volatile long latency;
+
+    /* The state of the card session, reset on connect. */
+    private boolean connected;
+    private int selectedDf;
+    private int selectedEf;
+    private boolean[] verified = new boolean[3];
+
+    /**
+     * Create a new emulated card.
+     * @param personalData The 16 records of the personal data file.
+     * @param authKey The private key of the authentication certificate.
+     * @param authCert The authentication certificate.
+     * @param signKey The private key of the signing certificate.
+     * @param signCert The signing certificate.
+     */
+    public EmulatedCard(String[] personalData, PrivateKey authKey,
+            X509Certificate authCert, PrivateKey signKey,
+            X509Certificate signCert) throws CertificateEncodingException {
+        if (personalData.length != 16) {
+            throw new IllegalArgumentException("Personal data must have 16 "
+                    + "records");
+        }
+        this.personalData = personalData.clone();
+        this.authKey = authKey;
+        this.authCert = authCert.getEncoded();
+        this.signKey = signKey;
+        this.signCert = signCert.getEncoded();
+    }
+
+    /**
+     * Create a new emulated card with the test keys in the given keystore.
+     * @param file The keystore file.
+     * @param type The type of the keystore, e.g. PKCS12.
+     * @param password The password of the keystore and the keys.
+     * @param authAlias The alias of the authentication key.
+     * @param signAlias The alias of the signing key.
+     * @param personalData The 16 records of the personal data file.
+     */
+    public static EmulatedCard fromKeyStore(String file, String type,
+            char[] password, String authAlias, String signAlias,
+            String[] personalData) throws IOException,
+            GeneralSecurityException {
+        KeyStore ks = KeyStore.getInstance(type);
+        InputStream in = new FileInputStream(file);
+        try {
+            ks.load(in, password);
+        } finally {
+            in.close();
+        }
+        if (!ks.isKeyEntry(authAlias) || !ks.isKeyEntry(signAlias)) {
+            throw new GeneralSecurityException("Keys " + authAlias + " and "
+                    + signAlias + " not found in " + file);
+        }
+        return new EmulatedCard(personalData,
+                (PrivateKey) ks.getKey(authAlias, password),
+                (X509Certificate) ks.getCertificate(authAlias),
+                (PrivateKey) ks.getKey(signAlias, password),
+                (X509Certificate) ks.getCertificate(signAlias));
+    }
+
+    /**
+     * Sets PIN1 and PIN2 and resets their try counters. The defaults are
+     * 1234 and 12345.
+     */
+    public synchronized void setPins(String pin1, String pin2) {
+        pins[1] = pin1;
+        pins[2] = pin2;
+        triesLeft[1] = PIN_TRIES;
+        triesLeft[2] = PIN_TRIES;
+    }
+
+    /**
+     * Sets how long every command takes.
+     * @param latency The time in microseconds.
+     */
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    /** Connects to the card, which resets it. */
+    synchronized void connect() {
+        connected = true;
+        selectedDf = FID_MF;
+        selectedEf = 0;
+        Arrays.fill(verified, false);
+    }
+
+    @Override
+    public ATR getATR() {
+        return new ATR(ATR_BYTES);
+    }
+
+    @Override
+    public String getProtocol() {
+        return "T=0";
+    }
+
+    @Override
+    public CardChannel getBasicChannel() {
+        checkConnected();
+        return channel;
+    }
+
+    @Override
+    public CardChannel openLogicalChannel() throws CardException {
+        throw new CardException("Logical channels are not supported");
+    }
+
+    @Override
+    public void beginExclusive() throws CardException {
+        checkConnected();
+        if (exclusive.isHeldByCurrentThread()) {
+            throw new CardException("Exclusive access already established");
+        }
+        exclusive.lock();
+    }
+
+    @Override
+    public void endExclusive() throws CardException {
+        if (!exclusive.isHeldByCurrentThread()) {
+            throw new IllegalStateException("No exclusive access established");
+        }
+        exclusive.unlock();
+    }
+
+    @Override
+    public byte[] transmitControlCommand(int controlCode, byte[] command)
+            throws CardException {
+        throw new CardException("Control commands are not supported");
+    }
+
+    @Override
+    public synchronized void disconnect(boolean reset) {
+        connected = false;
+    }
+
+    synchronized void checkConnected() {
+        if (!connected) {
+            throw new IllegalStateException("Card has been disconnected");
+        }
+    }
+
+    /**
+     * Processes a command, waiting for the configured latency first. Another
+     * thread's exclusive access is waited for.
+     */
+    ResponseAPDU transmit(CommandAPDU cmd) throws CardException {
+        exclusive.lock();
+        try {
+            sleep();
+            synchronized (this) {
+                checkConnected();
+                return process(cmd);
+            }
+        } finally {
+            exclusive.unlock();
+        }
+    }
+
+    private void sleep() throws CardException {
+        long micros = latency;
+        if (micros > 0) {
+            try {
+                Thread.sleep(micros / 1000, (int) (micros % 1000) * 1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CardException("Interrupted");
+            }
+        }
+    }
+
+    /** Returns the card's response to a command. */
+    private ResponseAPDU process(CommandAPDU cmd) {
+        if (cmd.getCLA() != 0x00) {
+            return status(SW_CLA_NOT_SUPPORTED);
+        }
+        switch (cmd.getINS()) {
+        case 0xa4:
+            return select(cmd);
+        case 0xb2:
+            return readRecord(cmd);
+        case 0xb0:
+            return readBinary(cmd);
+        case 0x20:
+            return verify(cmd);
+        case 0x22:
+            /* MANAGE SECURITY ENVIRONMENT: there is only one of each. */
+            return status(SW_OK);
+        case 0x88:
+            return sign(cmd, 1, authKey);
+        case 0x2a:
+            if (cmd.getP1() != 0x9e || cmd.getP2() != 0x9a) {
+                return status(SW_WRONG_P1P2);
+            }
+            /* The signing PIN has to be entered for every signature. */
+            ResponseAPDU resp = sign(cmd, 2, signKey);
+            verified[2] = false;
+            return resp;
+        default:
+            return status(SW_INS_NOT_SUPPORTED);
+        }
+    }
+
+    /** SELECT FILE by file identifier. */
+    private ResponseAPDU select(CommandAPDU cmd) {
+        byte[] data = cmd.getData();
+        int fid = data.length == 2 ? (data[0] & 0xff) << 8 | data[1] & 0xff
+                : -1;
+        switch (cmd.getP1()) {
+        case 0x00:
+            selectedDf = FID_MF;
+            selectedEf = 0;
+            return fcp(cmd, FID_MF, 0x38, 0);
+        case 0x01:
+            if (fid != FID_EEEE || selectedDf != FID_MF) {
+                return status(SW_FILE_NOT_FOUND);
+            }
+            selectedDf = FID_EEEE;
+            selectedEf = 0;
+            return fcp(cmd, fid, 0x38, 0);
+        case 0x02:
+            if (selectedDf != FID_EEEE || getFile(fid) == null
+                    && fid != FID_PERSONAL_DATA) {
+                return status(SW_FILE_NOT_FOUND);
+            }
+            selectedEf = fid;
+            return fid == FID_PERSONAL_DATA ? fcp(cmd, fid, 0x04, 0)
+                    : fcp(cmd, fid, 0x01, getFile(fid).length);
+        default:
+            return status(SW_WRONG_P1P2);
+        }
+    }
+
+    /**
+     * Returns the file control parameters if they were asked for (P2 = 04)
+     * or just OK.
+     */
+    private ResponseAPDU fcp(CommandAPDU cmd, int fid, int descriptor,
+            int size) {
+        if ((cmd.getP2() & 0x0c) == 0x0c) {
+            return status(SW_OK);
+        }
+        byte[] fcp = {
+            0x62, 0x0b,
+            (byte) 0x82, 0x01, (byte) descriptor,
+            (byte) 0x83, 0x02, (byte) (fid >> 8), (byte) fid,
+            (byte) 0x85, 0x02, (byte) (size >> 8), (byte) size
+        };
+        return response(fcp, cmd.getNe());
+    }
+
+    /** READ RECORD from the personal data file. */
+    private ResponseAPDU readRecord(CommandAPDU cmd) {
+        if (selectedEf != FID_PERSONAL_DATA) {
+            return status(SW_FILE_NOT_FOUND);
+        }
+        int record = cmd.getP1();
+        if (record < 1 || record > personalData.length) {
+            return status(SW_RECORD_NOT_FOUND);
+        }
+        return response(personalData[record - 1].getBytes(
+                Charset.forName(CardUtil.CARD_ENCODING)), cmd.getNe());
+    }
+
+    /** READ BINARY from a certificate file. */
+    private ResponseAPDU readBinary(CommandAPDU cmd) {
+        byte[] file = getFile(selectedEf);
+        if (file == null) {
+            return status(SW_FILE_NOT_FOUND);
+        }
+        int offset = cmd.getP1() << 8 | cmd.getP2();
+        if ((offset & 0x8000) != 0 || offset > file.length) {
+            return status(SW_WRONG_P1P2);
+        }
+        int ne = cmd.getNe() == 0 ? 256 : cmd.getNe();
+        int length = Math.min(file.length - offset, ne);
+        return response(Arrays.copyOfRange(file, offset, offset + length),
+                ne);
+    }
+
+    /** Returns the contents of a transparent file or null. */
+    private byte[] getFile(int fid) {
+        if (fid == FID_AUTH_CERT) {
+            return authCert;
+        } else if (fid == FID_SIGN_CERT) {
+            return signCert;
+        }
+        return null;
+    }
+
+    /** VERIFY PIN1 or PIN2. */
+    private ResponseAPDU verify(CommandAPDU cmd) {
+        int pin = cmd.getP2();
+        if (pin != 1 && pin != 2) {
+            return status(SW_WRONG_P1P2);
+        }
+        if (triesLeft[pin] == 0) {
+            return status(SW_PIN_BLOCKED);
+        }
+        String given = new String(cmd.getData(),
+                Charset.forName(CardUtil.CARD_ENCODING));
+        if (!given.equals(pins[pin])) {
+            verified[pin] = false;
+            triesLeft[pin]--;
+            return status(0x63c0 | triesLeft[pin]);
+        }
+        triesLeft[pin] = PIN_TRIES;
+        verified[pin] = true;
+        return status(SW_OK);
+    }
+
+    /**
+     * Signs the data of the command (a DigestInfo or a hash) with PKCS#1
+     * v1.5 padding, if the given PIN has been verified.
+     */
+    private ResponseAPDU sign(CommandAPDU cmd, int pin, PrivateKey key) {
+        if (!verified[pin]) {
+            return status(SW_SECURITY_NOT_SATISFIED);
+        }
+        byte[] data = cmd.getData();
+        if (data.length == 0) {
+            return status(SW_WRONG_LENGTH);
+        }
+        try {
+            /* Encrypting with the private key gives block type 1 padding,
+             * i.e. a raw PKCS#1 signature. */
+            Cipher rsa = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+            rsa.init(Cipher.ENCRYPT_MODE, key);
+            return response(rsa.doFinal(data), 0);
+        } catch (GeneralSecurityException e) {
+            return status(SW_WRONG_LENGTH);
+        }
+    }
+
+    /**
+     * Returns the data and OK, truncated to Ne bytes. An Ne of 0 returns all
+     * of the data, as the PC/SC layer fetches it with GET RESPONSE on T=0.
+     */
+    private static ResponseAPDU response(byte[] data, int ne) {
+        int length = ne == 0 ? data.length : Math.min(data.length, ne);
+        byte[] resp = Arrays.copyOf(data, length + 2);
+        resp[length] = (byte) 0x90;
+        resp[length + 1] = 0x00;
+        return new ResponseAPDU(resp);
+    }
+
+    private static ResponseAPDU status(int sw) {
+        return new ResponseAPDU(new byte[] { (byte) (sw >> 8), (byte) sw });
+    }
+
+}
@@ -0,0 +1,51 @@
+package ee.cyber.eid.card.emu;
+
+import java.nio.ByteBuffer;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/** The basic channel of an EmulatedCard. */
+class EmulatedChannel extends CardChannel {
+
+    private EmulatedCard card;
+
+    EmulatedChannel(EmulatedCard card) {
+        this.card = card;
+    }
+
+    @Override
+    public Card getCard() {
+        return card;
+    }
+
+    @Override
+    public int getChannelNumber() {
+        card.checkConnected();
+        return 0;
+    }
+
+    @Override
+    public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+        return card.transmit(command);
+    }
+
+    @Override
+    public int transmit(ByteBuffer command, ByteBuffer response)
+            throws CardException {
+        byte[] cmd = new byte[command.remaining()];
+        command.get(cmd);
+        byte[] resp = card.transmit(new CommandAPDU(cmd)).getBytes();
+        response.put(resp);
+        return resp.length;
+    }
+
+    @Override
+    public void close() throws CardException {
+        throw new IllegalStateException("The basic channel can not be closed");
+    }
+
+}
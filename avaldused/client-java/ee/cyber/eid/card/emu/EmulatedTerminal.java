@@ -0,0 +1,103 @@
+package ee.cyber.eid.card.emu;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardNotPresentException;
+import javax.smartcardio.CardTerminal;
+
+/** A card terminal that cards can be put into from code. */
+public class EmulatedTerminal extends CardTerminal {
+
+    private String name;
+    private EmulatedTerminals terminals;
+    private EmulatedCard card;
+
+    EmulatedTerminal(String name, EmulatedTerminals terminals) {
+        this.name = name;
+        this.terminals = terminals;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /** Inserts a card, removing the one that was there. */
+    public void insert(EmulatedCard card) {
+        remove();
+        synchronized (this) {
+            this.card = card;
+            notifyAll();
+        }
+        terminals.changed(this, true);
+    }
+
+    /** Removes the card, if there is one. */
+    public void remove() {
+        synchronized (this) {
+            if (card == null) {
+                return;
+            }
+            card.disconnect(false);
+            card = null;
+            notifyAll();
+        }
+        terminals.changed(this, false);
+    }
+
+    @Override
+    public synchronized Card connect(String protocol) throws CardException {
+        if (card == null) {
+            throw new CardNotPresentException("No card present in " + name);
+        }
+        if (!"*".equals(protocol) && !card.getProtocol().equals(protocol)) {
+            throw new CardException("Protocol " + protocol
+                    + " not supported");
+        }
+        card.connect();
+        return card;
+    }
+
+    @Override
+    public synchronized boolean isCardPresent() {
+        return card != null;
+    }
+
+    @Override
+    public boolean waitForCardPresent(long timeout) throws CardException {
+        return waitFor(true, timeout);
+    }
+
+    @Override
+    public boolean waitForCardAbsent(long timeout) throws CardException {
+        return waitFor(false, timeout);
+    }
+
+    /** Waits until a card is present or absent, 0 meaning forever. */
+    private synchronized boolean waitFor(boolean present, long timeout)
+            throws CardException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Negative timeout");
+        }
+        long end = System.currentTimeMillis() + timeout;
+        while ((card != null) != present) {
+            long wait = timeout == 0 ? 0 : end - System.currentTimeMillis();
+            if (timeout != 0 && wait <= 0) {
+                return false;
+            }
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CardException("Interrupted");
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
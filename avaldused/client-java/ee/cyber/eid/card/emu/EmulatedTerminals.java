@@ -0,0 +1,117 @@
+package ee.cyber.eid.card.emu;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+
+import ee.cyber.eid.card.TerminalRegistry;
+
+/**
+ * A set of emulated card terminals. To make CardUtil (and so EstEID and
+ * PersonalData) use them instead of the PC/SC terminals, call install().
+ */
+public class EmulatedTerminals extends CardTerminals {
+
+    private final List<EmulatedTerminal> terminals =
+            new ArrayList<EmulatedTerminal>();
+
+    /* The changes since the last call to waitForChange() and the changes it
+     * reported. Guarded by this. */
+    private Set<CardTerminal> insertions = new LinkedHashSet<CardTerminal>();
+    private Set<CardTerminal> removals = new LinkedHashSet<CardTerminal>();
+    private Set<CardTerminal> lastInsertions = Collections.emptySet();
+    private Set<CardTerminal> lastRemovals = Collections.emptySet();
+
+    /** Create the given number of empty terminals. */
+    public EmulatedTerminals(int count) {
+        for (int i = 0; i < count; i++) {
+            terminals.add(new EmulatedTerminal("Emulated Reader " + i, this));
+        }
+    }
+
+    /** Returns the terminal on the given index. */
+    public EmulatedTerminal get(int index) {
+        return terminals.get(index);
+    }
+
+    /** Makes CardUtil use these terminals. */
+    public void install() {
+        TerminalRegistry.setInstance(new TerminalRegistry(this));
+    }
+
+    @Override
+    public synchronized List<CardTerminal> list(State state)
+            throws CardException {
+        List<CardTerminal> list = new ArrayList<CardTerminal>();
+        for (EmulatedTerminal t : terminals) {
+            boolean present = t.isCardPresent();
+            switch (state) {
+            case ALL:
+                list.add(t);
+                break;
+            case CARD_PRESENT:
+                if (present) {
+                    list.add(t);
+                }
+                break;
+            case CARD_ABSENT:
+                if (!present) {
+                    list.add(t);
+                }
+                break;
+            case CARD_INSERTION:
+                if (lastInsertions.contains(t)) {
+                    list.add(t);
+                }
+                break;
+            case CARD_REMOVAL:
+                if (lastRemovals.contains(t)) {
+                    list.add(t);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown state " + state);
+            }
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    @Override
+    public synchronized boolean waitForChange(long timeout)
+            throws CardException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Negative timeout");
+        }
+        long end = System.currentTimeMillis() + timeout;
+        while (insertions.isEmpty() && removals.isEmpty()) {
+            long wait = timeout == 0 ? 0 : end - System.currentTimeMillis();
+            if (timeout != 0 && wait <= 0) {
+                return false;
+            }
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CardException("Interrupted");
+            }
+        }
+        lastInsertions = insertions;
+        lastRemovals = removals;
+        insertions = new LinkedHashSet<CardTerminal>();
+        removals = new LinkedHashSet<CardTerminal>();
+        return true;
+    }
+
+    /** Records a card being inserted into or removed from a terminal. */
+    synchronized void changed(EmulatedTerminal terminal, boolean inserted) {
+        (inserted ? insertions : removals).add(terminal);
+        notifyAll();
+    }
+
+}
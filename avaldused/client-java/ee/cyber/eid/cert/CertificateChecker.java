@@ -0,0 +1,128 @@
+package ee.cyber.eid.cert;
+
+import java.security.cert.X509Certificate;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import ee.sk.digidoc.DigiDocException;
+
+/**
+ * Checks that a certificate has not been revoked, using the CRLs of a
+ * CrlStore, if one is set, together with OCSP.
+ * <p>
+ * A certificate on a CRL is turned down right away, without asking OCSP.
+ * Otherwise OCSP decides, through the OcspCache. With the offline fallback
+ * on, a certificate the CRLs say is good is also accepted when the OCSP
+ * responder can't be reached or does not answer in time; the request is left
+ * running, so its answer still gets cached. The fallback is off by default:
+ * the CRLs are published only twice a day or so, and a certificate revoked
+ * in between is still on none of them.
+ */
+public class CertificateChecker {
+
+    /** How long to wait for OCSP by default before falling back. */
+    private static final long DEFAULT_OCSP_TIMEOUT = 5000L;
+
+    private static final CertificateChecker instance =
+            new CertificateChecker();
+
+    private volatile CrlStore crls;
+    private volatile boolean offlineFallback;
+    private volatile long ocspTimeout = DEFAULT_OCSP_TIMEOUT;
+
+    /** Runs the OCSP requests that may be given up on. */
+    private final ExecutorService executor = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ocsp-check");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /** Returns the checker shared by the application. */
+    public static CertificateChecker getInstance() {
+        return instance;
+    }
+
+    /** Sets the CRLs to check first, or null to use OCSP only. */
+    public void setCrlStore(CrlStore crls) {
+        this.crls = crls;
+    }
+
+    public CrlStore getCrlStore() {
+        return crls;
+    }
+
+    /**
+     * Sets whether a certificate that is good according to the CRLs is
+     * accepted when OCSP fails or is slow.
+     */
+    public void setOfflineFallback(boolean offlineFallback) {
+        this.offlineFallback = offlineFallback;
+    }
+
+    /**
+     * Sets how long to wait for OCSP before using the CRLs instead, when the
+     * offline fallback is on.
+     * @param millis The time in milliseconds.
+     */
+    public void setOcspTimeout(long millis) {
+        ocspTimeout = millis;
+    }
+
+    /**
+     * Checks that the certificate has not been revoked.
+     * @throws DigiDocException If the certificate is revoked or unknown, or
+     *                          its status can't be found out.
+     */
+    public void check(final X509Certificate cert) throws DigiDocException {
+        CrlStore store = crls;
+        RevocationIndex.Status status = store != null
+                ? store.getIndex().getStatus(cert)
+                : RevocationIndex.Status.UNKNOWN;
+        if (status == RevocationIndex.Status.REVOKED) {
+            throw new DigiDocException(DigiDocException.ERR_CERT_REVOKED,
+                    "Certificate is on the revocation list", null);
+        }
+        if (!offlineFallback || status != RevocationIndex.Status.GOOD) {
+            OcspCache.getInstance().check(cert);
+            return;
+        }
+
+        Future<Void> ocsp = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws DigiDocException {
+                OcspCache.getInstance().check(cert);
+                return null;
+            }
+        });
+        try {
+            ocsp.get(ocspTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DigiDocException(DigiDocException.ERR_OCSP_UNSUCCESSFULL,
+                    "Interrupted while waiting for OCSP", e);
+        } catch (TimeoutException e) {
+            /* The CRLs said it is good. */
+        } catch (ExecutionException e) {
+            /* A definite answer from the responder overrides the CRLs, only
+             * failing to get one falls back to them. */
+            if (e.getCause() instanceof DigiDocException) {
+                DigiDocException de = (DigiDocException) e.getCause();
+                if (de.getCode() == DigiDocException.ERR_CERT_REVOKED
+                        || de.getCode() == DigiDocException.ERR_CERT_UNKNOWN) {
+                    throw de;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,142 @@
+package ee.cyber.eid.cert;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1String;
+import org.bouncycastle.asn1.x500.RDN;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x500.style.BCStyle;
+import org.bouncycastle.asn1.x500.style.IETFUtils;
+
+import ee.cyber.eid.util.LruCache;
+
+/**
+ * The person a certificate was issued to, as given in its subject, e.g.
+ * CN=TAMM,MARI-LIIS,47101010033, SURNAME=TAMM, GIVENNAME=MARI-LIIS,
+ * SERIALNUMBER=47101010033.
+ * <p>
+ * The subject is parsed once per certificate, from its DER encoding rather
+ * than from a string, and the identities are cached by the SHA-256
+ * fingerprint of the certificate, so looking up the identity of a known
+ * certificate costs a hash.
+ */
+public class CertificateIdentity {
+
+    /** How many identities are cached, and for how long. */
+    private static final int CACHE_SIZE = 4096;
+    private static final long CACHE_TTL = 3600000L;
+
+    private static final LruCache<ByteBuffer, CertificateIdentity> cache =
+            new LruCache<ByteBuffer, CertificateIdentity>(CACHE_SIZE,
+                    CACHE_TTL);
+
+    private final String commonName;
+    private final String surname;
+    private final String givenName;
+    private final String personalCode;
+    private final String country;
+    private final BigInteger serialNumber;
+    private final Date notBefore;
+    private final Date notAfter;
+
+    private CertificateIdentity(X509Certificate cert) {
+        X500Name subject = X500Name.getInstance(
+                cert.getSubjectX500Principal().getEncoded());
+        commonName = getValue(subject, BCStyle.CN);
+        surname = getValue(subject, BCStyle.SURNAME);
+        givenName = getValue(subject, BCStyle.GIVENNAME);
+        personalCode = getValue(subject, BCStyle.SERIALNUMBER);
+        country = getValue(subject, BCStyle.C);
+        serialNumber = cert.getSerialNumber();
+        notBefore = cert.getNotBefore();
+        notAfter = cert.getNotAfter();
+    }
+
+    /** Returns the identity of the certificate's subject. */
+    public static CertificateIdentity of(X509Certificate cert) {
+        ByteBuffer key;
+        try {
+            key = Fingerprints.of(cert);
+        } catch (CertificateEncodingException e) {
+            throw new IllegalArgumentException("Invalid certificate", e);
+        }
+        CertificateIdentity identity = cache.get(key);
+        if (identity == null) {
+            identity = new CertificateIdentity(cert);
+            cache.put(key, identity);
+        }
+        return identity;
+    }
+
+    /** Returns the first value of the attribute, or null if none. */
+    private static String getValue(X500Name name, ASN1ObjectIdentifier oid) {
+        RDN[] rdns = name.getRDNs(oid);
+        if (rdns.length == 0) {
+            return null;
+        }
+        ASN1Encodable value = rdns[0].getFirst().getValue();
+        /* The string types hold the value as is; IETFUtils would escape
+         * the commas of an EstEID CN. */
+        return value instanceof ASN1String ? ((ASN1String) value).getString()
+                : IETFUtils.valueToString(value);
+    }
+
+    /** Returns the CN, e.g. TAMM,MARI-LIIS,47101010033. */
+    public String getCommonName() {
+        return commonName;
+    }
+
+    public String getSurname() {
+        return surname;
+    }
+
+    public String getGivenName() {
+        return givenName;
+    }
+
+    /** Returns the personal identification code from the SERIALNUMBER. */
+    public String getPersonalCode() {
+        return personalCode;
+    }
+
+    public String getCountry() {
+        return country;
+    }
+
+    /** Returns the serial number of the certificate. */
+    public BigInteger getSerialNumber() {
+        return serialNumber;
+    }
+
+    public Date getNotBefore() {
+        return (Date) notBefore.clone();
+    }
+
+    public Date getNotAfter() {
+        return (Date) notAfter.clone();
+    }
+
+    /**
+     * Returns the name for showing to people, e.g.
+     * MARI-LIIS TAMM, 47101010033, or the CN if the subject lacks any of
+     * these.
+     */
+    public String getDisplayName() {
+        if (surname == null || givenName == null || personalCode == null) {
+            return commonName;
+        }
+        return givenName + ' ' + surname + ", " + personalCode;
+    }
+
+    @Override
+    public String toString() {
+        return getDisplayName();
+    }
+
+}
@@ -0,0 +1,176 @@
+package ee.cyber.eid.cert;
+
+import java.nio.ByteBuffer;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+import ee.cyber.eid.util.LruCache;
+
+/**
+ * Checks that a certificate was issued by one of the trusted CAs and that
+ * the CA certificates up the chain are valid and not on the CRLs.
+ * <p>
+ * The same people sign and log in again and again, so the outcomes are
+ * cached by the SHA-256 fingerprint of the certificate: a repeated check
+ * costs a hash instead of a signature check per link of the chain. An
+ * outcome is only used while the trust anchors and the CRLs it was found
+ * with are the current ones, and while every certificate of the chain is
+ * still valid. Whether the certificate itself has been revoked is up to the
+ * CertificateChecker.
+ */
+public class ChainValidator {
+
+    /** How many outcomes are cached. */
+    private static final int CACHE_SIZE = 4096;
+
+    /** How long an outcome is used, in milliseconds. */
+    private static final long DEFAULT_TTL = 600000L;
+
+    /** The most certificates in a chain, the one checked included. */
+    private static final int MAX_DEPTH = 8;
+
+    private static final ChainValidator instance = new ChainValidator();
+
+    private volatile TrustAnchorIndex anchors;
+
+    /** The outcomes by the fingerprint of the certificate. */
+    private final LruCache<ByteBuffer, Outcome> cache =
+            new LruCache<ByteBuffer, Outcome>(CACHE_SIZE, DEFAULT_TTL);
+
+    /** Returns the validator shared by the application. */
+    public static ChainValidator getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sets the trusted CA certificates, or null to turn the checks off. The
+     * outcomes found with the old ones are forgotten.
+     */
+    public void setTrustAnchors(TrustAnchorIndex anchors) {
+        this.anchors = anchors;
+        cache.clear();
+    }
+
+    public TrustAnchorIndex getTrustAnchors() {
+        return anchors;
+    }
+
+    /**
+     * Sets how long an outcome is used, in milliseconds, 0 to disable the
+     * cache.
+     */
+    public void setCacheTimeout(long millis) {
+        cache.setTtl(millis);
+    }
+
+    /** Forgets all the outcomes. */
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Checks the chain of the certificate. Does nothing if no trust anchors
+     * are set.
+     * @throws CertificateException If no trusted CA issued the certificate,
+     *                              or a certificate of the chain is not
+     *                              valid or has been revoked.
+     */
+    public void validate(X509Certificate cert) throws CertificateException {
+        TrustAnchorIndex trusted = anchors;
+        if (trusted == null) {
+            return;
+        }
+        CrlStore store = CertificateChecker.getInstance().getCrlStore();
+        RevocationIndex crls = store != null ? store.getIndex() : null;
+
+        ByteBuffer key = Fingerprints.of(cert);
+        Outcome outcome = cache.get(key);
+        if (outcome == null || !outcome.isCurrent(trusted, crls)) {
+            outcome = check(cert, trusted, crls);
+            cache.put(key, outcome);
+        }
+        if (outcome.error != null) {
+            throw new CertificateException(outcome.error);
+        }
+    }
+
+    /** Walks the chain up from the certificate. */
+    private static Outcome check(X509Certificate cert,
+            TrustAnchorIndex trusted, RevocationIndex crls) {
+        long notAfter = Long.MAX_VALUE;
+        X509Certificate current = cert;
+        for (int depth = 0; depth < MAX_DEPTH; depth++) {
+            try {
+                current.checkValidity();
+            } catch (CertificateException e) {
+                return new Outcome(trusted, crls, notAfter, "Certificate "
+                        + current.getSubjectX500Principal()
+                        + " is not valid: " + e.getMessage());
+            }
+            notAfter = Math.min(notAfter, current.getNotAfter().getTime());
+            if (current != cert && crls != null && crls.getStatus(current)
+                    == RevocationIndex.Status.REVOKED) {
+                return new Outcome(trusted, crls, notAfter, "CA certificate "
+                        + current.getSubjectX500Principal()
+                        + " has been revoked");
+            }
+
+            X509Certificate issuer = trusted.findIssuer(current);
+            if (issuer == null) {
+                /* All the CA certificates in the configuration are trusted,
+                 * so the chain may end at any of them. */
+                if (current != cert) {
+                    return new Outcome(trusted, crls, notAfter, null);
+                }
+                return new Outcome(trusted, crls, notAfter,
+                        "No trusted CA issued the certificate of "
+                                + cert.getSubjectX500Principal());
+            }
+            if (issuer.getBasicConstraints() < 0) {
+                return new Outcome(trusted, crls, notAfter, "Certificate "
+                        + issuer.getSubjectX500Principal()
+                        + " is not a CA certificate");
+            }
+            if (issuer.equals(current)) {
+                /* A self-signed root. */
+                return new Outcome(trusted, crls, notAfter, null);
+            }
+            current = issuer;
+        }
+        return new Outcome(trusted, crls, notAfter,
+                "The certificate chain is too long");
+    }
+
+    /** The outcome of checking a chain and what it depends on. */
+    private static class Outcome {
+
+        private final TrustAnchorIndex anchors;
+        private final RevocationIndex crls;
+
+        /** When the first certificate of the chain expires. */
+        private final long notAfter;
+
+        /** Why the chain is not valid, null if it is. */
+        private final String error;
+
+        Outcome(TrustAnchorIndex anchors, RevocationIndex crls,
+                long notAfter, String error) {
+            this.anchors = anchors;
+            this.crls = crls;
+            this.notAfter = notAfter;
+            this.error = error;
+        }
+
+        /**
+         * Was the outcome found with the current anchors and CRLs, and are
+         * the certificates still valid? A new index is made whenever the
+         * CRLs change, so comparing the references is enough.
+         */
+        boolean isCurrent(TrustAnchorIndex anchors, RevocationIndex crls) {
+            return this.anchors == anchors && this.crls == crls
+                    && System.currentTimeMillis() <= notAfter;
+        }
+
+    }
+
+}
@@ -0,0 +1,204 @@
+package ee.cyber.eid.cert;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.cert.CRL;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Keeps a RevocationIndex of the CRLs in a directory, such as the one
+ * isikutuvastus/tyhistusnimekirjad.sh downloads them to, and rebuilds it
+ * when the files change.
+ * <p>
+ * The CRLs are read from the *.crl files, in DER or PEM. Their signatures
+ * are checked with the CA certificates in the *.cer, *.crt and *.pem files
+ * of the same directory, e.g. the id.crt made by
+ * isikutuvastus/serveriserdid.sh; a CRL with no issuer certificate is left
+ * out. A new index replaces the old one only once it is complete, so the
+ * checks never see a half-built index and never wait for one.
+ */
+public class CrlStore {
+
+    private final Path dir;
+
+    private final AtomicReference<RevocationIndex> index =
+            new AtomicReference<RevocationIndex>(RevocationIndex.EMPTY);
+
+    /** The names, sizes and times of the files the index was built of. */
+    private String loaded;
+
+    private ScheduledExecutorService scheduler;
+
+    public CrlStore(Path dir) {
+        this.dir = dir;
+    }
+
+    /** Returns the current index. */
+    public RevocationIndex getIndex() {
+        return index.get();
+    }
+
+    /**
+     * Reads the CRLs again and replaces the index, unless the files have not
+     * changed since the last time.
+     * @return The new index.
+     */
+    public synchronized RevocationIndex reload()
+            throws IOException, GeneralSecurityException {
+        Map<String, Path> files = listFiles();
+        String state = getState(files);
+        if (state.equals(loaded)) {
+            return index.get();
+        }
+
+        CertificateFactory cf = CertificateFactory.getInstance("X.509");
+        Map<X500Principal, List<X509Certificate>> cas =
+                new HashMap<X500Principal, List<X509Certificate>>();
+        List<X509CRL> crls = new ArrayList<X509CRL>();
+        for (Path file : files.values()) {
+            InputStream in = Files.newInputStream(file);
+            try {
+                if (file.getFileName().toString().endsWith(".crl")) {
+                    for (CRL crl : cf.generateCRLs(in)) {
+                        crls.add((X509CRL) crl);
+                    }
+                } else {
+                    for (Certificate c : cf.generateCertificates(in)) {
+                        X509Certificate ca = (X509Certificate) c;
+                        List<X509Certificate> list =
+                                cas.get(ca.getSubjectX500Principal());
+                        if (list == null) {
+                            list = new ArrayList<X509Certificate>();
+                            cas.put(ca.getSubjectX500Principal(), list);
+                        }
+                        list.add(ca);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        List<X509CRL> verified = new ArrayList<X509CRL>();
+        for (X509CRL crl : crls) {
+            if (isSignedByCa(crl, cas.get(crl.getIssuerX500Principal()))) {
+                verified.add(crl);
+            } else {
+                System.err.println("Ignoring the CRL of "
+                        + crl.getIssuerX500Principal()
+                        + ": no CA certificate verifies it");
+            }
+        }
+
+        RevocationIndex built = RevocationIndex.build(verified);
+        index.set(built);
+        loaded = state;
+        return built;
+    }
+
+    /**
+     * Starts reloading the CRLs in the background.
+     * @param period How often to look for new files, in milliseconds.
+     */
+    public synchronized void start(long period) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "crl-reload");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reload();
+                } catch (IOException | GeneralSecurityException
+                        | RuntimeException e) {
+                    /* Keep the old index, the files may be being
+                     * downloaded right now. */
+                    System.err.println("Could not reload the CRLs: " + e);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /** Stops reloading the CRLs. The current index stays in use. */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /** Returns the CRL and certificate files by their names. */
+    private Map<String, Path> listFiles() throws IOException {
+        Map<String, Path> files = new TreeMap<String, Path>();
+        DirectoryStream<Path> stream = Files.newDirectoryStream(dir,
+                "*.{crl,cer,crt,pem}");
+        try {
+            for (Path file : stream) {
+                if (Files.isRegularFile(file)) {
+                    files.put(file.getFileName().toString(), file);
+                }
+            }
+        } finally {
+            stream.close();
+        }
+        return files;
+    }
+
+    /** Describes the files so that a change in any of them shows. */
+    private static String getState(Map<String, Path> files)
+            throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Path> e : files.entrySet()) {
+            sb.append(e.getKey()).append('/')
+                    .append(Files.size(e.getValue())).append('/')
+                    .append(Files.getLastModifiedTime(e.getValue()))
+                    .append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static boolean isSignedByCa(X509CRL crl,
+            List<X509Certificate> cas) {
+        if (cas == null) {
+            return false;
+        }
+        for (X509Certificate ca : cas) {
+            try {
+                crl.verify(ca.getPublicKey());
+                return true;
+            } catch (GeneralSecurityException e) {
+                /* Try the next certificate with the same name. */
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,46 @@
+package ee.cyber.eid.cert;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+
+import ee.cyber.eid.util.LruCache;
+
+/**
+ * The SHA-256 fingerprints of certificates, for keying the caches of this
+ * package. The fingerprints of the certificates seen lately are kept: a
+ * certificate caches its hash code, so finding the fingerprint of one seen
+ * before costs comparing the encodings instead of hashing them.
+ */
+final class Fingerprints {
+
+    /** How many fingerprints are kept, and for how long. */
+    private static final int CACHE_SIZE = 4096;
+    private static final long CACHE_TTL = 3600000L;
+
+    private static final LruCache<X509Certificate, ByteBuffer> cache =
+            new LruCache<X509Certificate, ByteBuffer>(CACHE_SIZE, CACHE_TTL);
+
+    private Fingerprints() {
+    }
+
+    /** Returns the fingerprint of the certificate, not to be changed. */
+    static ByteBuffer of(X509Certificate cert)
+            throws CertificateEncodingException {
+        ByteBuffer fingerprint = cache.get(cert);
+        if (fingerprint == null) {
+            try {
+                fingerprint = ByteBuffer.wrap(MessageDigest.getInstance(
+                        "SHA-256").digest(cert.getEncoded()))
+                        .asReadOnlyBuffer();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            cache.put(cert, fingerprint);
+        }
+        return fingerprint;
+    }
+
+}
@@ -0,0 +1,259 @@
+package ee.cyber.eid.cert;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.cert.X509Certificate;
+import java.text.ParseException;
+import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.ASN1GeneralizedTime;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.ocsp.BasicOCSPResponse;
+import org.bouncycastle.asn1.ocsp.OCSPResponse;
+import org.bouncycastle.asn1.ocsp.OCSPResponseStatus;
+import org.bouncycastle.asn1.ocsp.SingleResponse;
+
+import ee.cyber.eid.trace.HttpEvent;
+import ee.cyber.eid.trace.Trace;
+import ee.cyber.eid.util.LruCache;
+import ee.cyber.eid.util.Util;
+import ee.sk.digidoc.DigiDocException;
+import ee.sk.digidoc.Notary;
+import ee.sk.utils.ConfigManager;
+
+/**
+ * Checks certificates with OCSP, remembering the good ones for a while so
+ * that, e.g., a user logging in again does not cost another round trip to
+ * the responder.
+ * <p>
+ * A response is used until its nextUpdate, but never for longer than the
+ * maximum staleness after its thisUpdate. The SK responders give no
+ * nextUpdate at all, as they answer from live data, so for them the maximum
+ * staleness decides. Only good statuses are cached: a revoked or unknown
+ * certificate is asked about again every time.
+ * <p>
+ * If several threads check the same certificate at once, only one request
+ * is made and the others wait for its result.
+ * <p>
+ * The OCSP confirmations of signatures can't be cached: they are bound to
+ * the signature value with a nonce.
+ */
+public class OcspCache {
+
+    /** How many certificates' statuses are cached. */
+    private static final int CACHE_SIZE = 1024;
+
+    /** How long a response is used by default, in milliseconds. */
+    private static final long DEFAULT_MAX_STALENESS = 300000L;
+
+    /** The length of the nonce sent in the requests. */
+    private static final int NONCE_LENGTH = 20;
+
+    /** The tag of the good status in a CertStatus. */
+    private static final int STATUS_GOOD = 0;
+
+    /** The tag of the revoked status in a CertStatus. */
+    private static final int STATUS_REVOKED = 1;
+
+    private static final OcspCache instance = new OcspCache();
+
+    /** The good statuses, by the issuer and the serial number. */
+    private final LruCache<String, Status> cache =
+            new LruCache<String, Status>(CACHE_SIZE, DEFAULT_MAX_STALENESS);
+
+    /** The requests being made, by the issuer and the serial number. */
+    private final ConcurrentMap<String, FutureTask<Status>> inFlight =
+            new ConcurrentHashMap<String, FutureTask<Status>>();
+
+    /** Returns the cache shared by the application. */
+    public static OcspCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sets how long a response is used after its thisUpdate, if its
+     * nextUpdate does not end it earlier.
+     * @param millis The time in milliseconds, 0 to disable the cache.
+     */
+    public void setMaxStaleness(long millis) {
+        cache.setTtl(millis);
+    }
+
+    public long getMaxStaleness() {
+        return cache.getTtl();
+    }
+
+    /** Forgets the status of every certificate. */
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Checks that the certificate is good, asking the OCSP responder unless a
+     * fresh enough answer is cached.
+     * @throws DigiDocException If the certificate is revoked or unknown, or
+     *                          the responder can't be asked.
+     */
+    public void check(final X509Certificate cert) throws DigiDocException {
+        final String key = getKey(cert);
+        Status status = cache.get(key);
+        if (status != null && status.isFresh(getMaxStaleness())) {
+            return;
+        }
+
+        /* The status is cached before the request is taken off the ones in
+         * flight, so a thread coming in between finds one or the other. */
+        FutureTask<Status> task = new FutureTask<Status>(
+                new Callable<Status>() {
+                    @Override
+                    public Status call() throws DigiDocException {
+                        /* Another leader may have just finished. */
+                        Status cached = cache.get(key);
+                        if (cached != null
+                                && cached.isFresh(getMaxStaleness())) {
+                            return cached;
+                        }
+                        Status fresh = request(cert);
+                        cache.put(key, fresh);
+                        return fresh;
+                    }
+                });
+        FutureTask<Status> running = inFlight.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+        }
+
+        try {
+            running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DigiDocException(DigiDocException.ERR_OCSP_UNSUCCESSFULL,
+                    "Interrupted while waiting for OCSP", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DigiDocException) {
+                throw (DigiDocException) e.getCause();
+            }
+            throw new DigiDocException(DigiDocException.ERR_OCSP_UNSUCCESSFULL,
+                    "OCSP request failed", e.getCause());
+        }
+    }
+
+    /** Returns the key of a certificate: its issuer and serial number. */
+    private static String getKey(X509Certificate cert) {
+        return cert.getIssuerX500Principal().getName(X500Principal.CANONICAL)
+                + '/' + cert.getSerialNumber().toString(16);
+    }
+
+    /**
+     * Asks the responder about the certificate. Returns the status if it is
+     * good, throws an exception otherwise.
+     */
+    private static Status request(X509Certificate cert)
+            throws DigiDocException {
+        long start = Trace.start();
+        boolean success = false;
+        try {
+            /* JDigiDoc checks the signature of the response. */
+            Notary notary = ConfigManager.instance().getNotaryFactory()
+                    .getConfirmation(Util.generateRandom(NONCE_LENGTH), cert,
+                            null);
+            Status status = parse(notary.getOcspResponseData(),
+                    cert.getSerialNumber());
+            success = true;
+            return status;
+        } finally {
+            if (start != 0) {
+                Trace.emit(new HttpEvent(start, HttpEvent.OCSP,
+                        cert.getSerialNumber().toString(), success ? 0 : -1));
+            }
+        }
+    }
+
+    /** Finds the status of the certificate with the given serial number. */
+    private static Status parse(byte[] der, BigInteger serial)
+            throws DigiDocException {
+        try {
+            OCSPResponse resp = OCSPResponse.getInstance(
+                    ASN1Primitive.fromByteArray(der));
+            if (resp.getResponseStatus().getValue().intValue()
+                    != OCSPResponseStatus.SUCCESSFUL
+                    || resp.getResponseBytes() == null) {
+                throw new DigiDocException(
+                        DigiDocException.ERR_OCSP_UNSUCCESSFULL,
+                        "OCSP request was not successful", null);
+            }
+            BasicOCSPResponse basic = BasicOCSPResponse.getInstance(
+                    ASN1Primitive.fromByteArray(resp.getResponseBytes()
+                            .getResponse().getOctets()));
+            ASN1Sequence responses = basic.getTbsResponseData()
+                    .getResponses();
+            for (int i = 0; i < responses.size(); i++) {
+                SingleResponse single = SingleResponse.getInstance(
+                        responses.getObjectAt(i));
+                if (!serial.equals(single.getCertID().getSerialNumber()
+                        .getValue())) {
+                    continue;
+                }
+                int tag = single.getCertStatus().getTagNo();
+                if (tag == STATUS_REVOKED) {
+                    throw new DigiDocException(
+                            DigiDocException.ERR_CERT_REVOKED,
+                            "Certificate has been revoked", null);
+                } else if (tag != STATUS_GOOD) {
+                    throw new DigiDocException(
+                            DigiDocException.ERR_CERT_UNKNOWN,
+                            "Certificate status is unknown", null);
+                }
+                return new Status(getDate(single.getThisUpdate()),
+                        getDate(single.getNextUpdate()));
+            }
+            throw new DigiDocException(DigiDocException.ERR_CERT_UNKNOWN,
+                    "No status for the certificate in the OCSP response",
+                    null);
+        } catch (IOException | ParseException | IllegalArgumentException e) {
+            throw new DigiDocException(DigiDocException.ERR_OCSP_UNSUCCESSFULL,
+                    "Invalid OCSP response", e);
+        }
+    }
+
+    private static Date getDate(ASN1GeneralizedTime time)
+            throws ParseException {
+        return time != null ? time.getDate() : null;
+    }
+
+    /** A good status and the times it is valid between. */
+    private static class Status {
+
+        private final long thisUpdate;
+        private final long nextUpdate;
+
+        Status(Date thisUpdate, Date nextUpdate) {
+            /* Without a thisUpdate, count from now. */
+            this.thisUpdate = thisUpdate != null ? thisUpdate.getTime()
+                    : System.currentTimeMillis();
+            this.nextUpdate = nextUpdate != null ? nextUpdate.getTime()
+                    : Long.MAX_VALUE;
+        }
+
+        /** Can the status still be used? */
+        boolean isFresh(long maxStaleness) {
+            long now = System.currentTimeMillis();
+            return now < nextUpdate && now - thisUpdate < maxStaleness;
+        }
+
+    }
+
+}
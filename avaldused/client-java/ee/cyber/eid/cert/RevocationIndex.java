@@ -0,0 +1,293 @@
+package ee.cyber.eid.cert;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.cert.CRLReason;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.ASN1Primitive;
+
+/**
+ * The serial numbers of the revoked certificates on a set of CRLs, for
+ * checking certificates without going online.
+ * <p>
+ * The serial numbers of each issuer are kept sorted in two arrays of longs,
+ * the high and the low 64 bits, and looked up with a binary search. The few
+ * serial numbers longer than 127 bits go into a set of their own. Compared
+ * to keeping the X509CRL objects around, this takes a small part of the
+ * memory: the CRL of ESTEID-SK 2011 alone has hundreds of thousands of
+ * entries.
+ * <p>
+ * An index is immutable. A delta CRL is applied on top of the base CRL it
+ * refers to; a newer set of CRLs makes a new index.
+ */
+public class RevocationIndex {
+
+    /** The OID of the CRL number extension. */
+    private static final String CRL_NUMBER = "2.5.29.20";
+
+    /** The OID of the delta CRL indicator extension. */
+    private static final String DELTA_CRL_INDICATOR = "2.5.29.27";
+
+    /** The largest serial number that fits into the arrays. */
+    private static final BigInteger MAX_PACKED =
+            BigInteger.ONE.shiftLeft(127).subtract(BigInteger.ONE);
+
+    private static final BigInteger LOW_MASK =
+            BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+
+    /** What an index knows about a certificate. */
+    public enum Status {
+        /** The issuer's CRL is current and the certificate is not on it. */
+        GOOD,
+        /** The certificate is on the CRL of its issuer. */
+        REVOKED,
+        /** There is no current CRL of the issuer. */
+        UNKNOWN
+    }
+
+    /** An index of no CRLs. */
+    public static final RevocationIndex EMPTY = new RevocationIndex(
+            Collections.<X500Principal, Serials>emptyMap());
+
+    /** The revoked serial numbers by the issuer. */
+    private final Map<X500Principal, Serials> issuers;
+
+    private RevocationIndex(Map<X500Principal, Serials> issuers) {
+        this.issuers = issuers;
+    }
+
+    /**
+     * Builds an index of the given CRLs. Of the CRLs of an issuer, the base
+     * CRL with the highest number is used, together with the newest delta CRL
+     * issued for it, if any. The signatures of the CRLs must have been
+     * checked by the caller.
+     * @throws IOException If the number of a CRL can't be parsed.
+     */
+    public static RevocationIndex build(Collection<X509CRL> crls)
+            throws IOException {
+        Map<X500Principal, List<X509CRL>> byIssuer =
+                new HashMap<X500Principal, List<X509CRL>>();
+        for (X509CRL crl : crls) {
+            List<X509CRL> list = byIssuer.get(crl.getIssuerX500Principal());
+            if (list == null) {
+                list = new ArrayList<X509CRL>();
+                byIssuer.put(crl.getIssuerX500Principal(), list);
+            }
+            list.add(crl);
+        }
+
+        Map<X500Principal, Serials> issuers =
+                new HashMap<X500Principal, Serials>();
+        for (Map.Entry<X500Principal, List<X509CRL>> e
+                : byIssuer.entrySet()) {
+            Serials serials = merge(e.getValue());
+            if (serials != null) {
+                issuers.put(e.getKey(), serials);
+            }
+        }
+        return new RevocationIndex(issuers);
+    }
+
+    /** Checks whether the certificate is on the CRL of its issuer. */
+    public Status getStatus(X509Certificate cert) {
+        Serials serials = issuers.get(cert.getIssuerX500Principal());
+        if (serials == null
+                || serials.nextUpdate <= System.currentTimeMillis()) {
+            return Status.UNKNOWN;
+        }
+        return serials.contains(cert.getSerialNumber()) ? Status.REVOKED
+                : Status.GOOD;
+    }
+
+    /** Returns the issuers with a CRL in the index. */
+    public Set<X500Principal> getIssuers() {
+        return Collections.unmodifiableSet(issuers.keySet());
+    }
+
+    /** Returns the number of revoked certificates in the index. */
+    public int size() {
+        int n = 0;
+        for (Serials s : issuers.values()) {
+            n += s.size();
+        }
+        return n;
+    }
+
+    /**
+     * Merges the CRLs of one issuer into a set of serial numbers. Returns
+     * null if there is no base CRL.
+     */
+    private static Serials merge(List<X509CRL> crls) throws IOException {
+        X509CRL base = null;
+        BigInteger baseNumber = null;
+        for (X509CRL crl : crls) {
+            if (crl.getExtensionValue(DELTA_CRL_INDICATOR) != null) {
+                continue;
+            }
+            BigInteger number = getInteger(crl, CRL_NUMBER);
+            if (base == null || compare(number, baseNumber) > 0) {
+                base = crl;
+                baseNumber = number;
+            }
+        }
+        if (base == null) {
+            return null;
+        }
+
+        /* Delta CRLs are cumulative, so only the newest one issued for a base
+         * no newer than ours is needed. */
+        X509CRL delta = null;
+        BigInteger deltaNumber = null;
+        if (baseNumber != null) {
+            for (X509CRL crl : crls) {
+                BigInteger deltaBase = getInteger(crl, DELTA_CRL_INDICATOR);
+                BigInteger number = getInteger(crl, CRL_NUMBER);
+                if (deltaBase == null || number == null
+                        || deltaBase.compareTo(baseNumber) > 0
+                        || number.compareTo(baseNumber) <= 0) {
+                    continue;
+                }
+                if (delta == null || number.compareTo(deltaNumber) > 0) {
+                    delta = crl;
+                    deltaNumber = number;
+                }
+            }
+        }
+
+        Set<BigInteger> revoked = new HashSet<BigInteger>();
+        addEntries(revoked, base);
+        X509CRL current = base;
+        if (delta != null) {
+            addEntries(revoked, delta);
+            current = delta;
+        }
+        Date nextUpdate = current.getNextUpdate();
+        return new Serials(revoked, nextUpdate != null ? nextUpdate.getTime()
+                : Long.MAX_VALUE);
+    }
+
+    /**
+     * Adds the entries of a CRL to the set. An entry with the reason
+     * removeFromCRL, which only appears on delta CRLs, takes the serial
+     * number off the set instead.
+     */
+    private static void addEntries(Set<BigInteger> revoked, X509CRL crl) {
+        Set<? extends X509CRLEntry> entries = crl.getRevokedCertificates();
+        if (entries == null) {
+            return;
+        }
+        for (X509CRLEntry entry : entries) {
+            if (entry.getRevocationReason() == CRLReason.REMOVE_FROM_CRL) {
+                revoked.remove(entry.getSerialNumber());
+            } else {
+                revoked.add(entry.getSerialNumber());
+            }
+        }
+    }
+
+    /** Returns the integer value of a CRL extension, or null if missing. */
+    private static BigInteger getInteger(X509CRL crl, String oid)
+            throws IOException {
+        byte[] ext = crl.getExtensionValue(oid);
+        if (ext == null) {
+            return null;
+        }
+        ASN1OctetString value = ASN1OctetString.getInstance(
+                ASN1Primitive.fromByteArray(ext));
+        return ASN1Integer.getInstance(
+                ASN1Primitive.fromByteArray(value.getOctets())).getValue();
+    }
+
+    /** Compares CRL numbers, a missing number being the smallest. */
+    private static int compare(BigInteger a, BigInteger b) {
+        if (a == null) {
+            return b == null ? 0 : -1;
+        }
+        return b == null ? 1 : a.compareTo(b);
+    }
+
+    /** The revoked serial numbers of one issuer. */
+    private static class Serials {
+
+        /** The high and the low 64 bits of the serial numbers, sorted. */
+        private final long[] high;
+        private final long[] low;
+
+        /** The serial numbers that don't fit into the arrays. */
+        private final Set<BigInteger> large = new HashSet<BigInteger>();
+
+        /** When the CRL expires. */
+        private final long nextUpdate;
+
+        Serials(Set<BigInteger> serials, long nextUpdate) {
+            this.nextUpdate = nextUpdate;
+            List<BigInteger> packed = new ArrayList<BigInteger>();
+            for (BigInteger s : serials) {
+                if (s.signum() < 0 || s.compareTo(MAX_PACKED) > 0) {
+                    large.add(s);
+                } else {
+                    packed.add(s);
+                }
+            }
+            Collections.sort(packed);
+            high = new long[packed.size()];
+            low = new long[packed.size()];
+            for (int i = 0; i < high.length; i++) {
+                BigInteger s = packed.get(i);
+                high[i] = s.shiftRight(64).longValue();
+                low[i] = s.and(LOW_MASK).longValue();
+            }
+        }
+
+        boolean contains(BigInteger serial) {
+            if (serial.signum() < 0 || serial.compareTo(MAX_PACKED) > 0) {
+                return large.contains(serial);
+            }
+            long h = serial.shiftRight(64).longValue();
+            long l = serial.and(LOW_MASK).longValue();
+            int from = 0;
+            int to = high.length - 1;
+            while (from <= to) {
+                int mid = (from + to) >>> 1;
+                int c = high[mid] != h ? (high[mid] < h ? -1 : 1)
+                        : compareUnsigned(low[mid], l);
+                if (c < 0) {
+                    from = mid + 1;
+                } else if (c > 0) {
+                    to = mid - 1;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        int size() {
+            return high.length + large.size();
+        }
+
+        /** Long.compareUnsigned() of Java 8. */
+        private static int compareUnsigned(long a, long b) {
+            return Long.compare(a + Long.MIN_VALUE, b + Long.MIN_VALUE);
+        }
+
+    }
+
+}
@@ -0,0 +1,145 @@
+package ee.cyber.eid.cert;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.security.auth.x500.X500Principal;
+
+import ee.sk.utils.ConfigManager;
+
+/**
+ * The trusted CA certificates, indexed by their subject names for finding
+ * the issuer of a certificate without going through all of them. An index is
+ * immutable: a changed configuration makes a new one.
+ */
+public class TrustAnchorIndex {
+
+    /** The prefix JDigiDoc uses in its configuration for class path files. */
+    private static final String JAR_PREFIX = "jar://";
+
+    /** The CA certificates by their subject names. */
+    private final Map<X500Principal, List<X509Certificate>> bySubject =
+            new HashMap<X500Principal, List<X509Certificate>>();
+
+    private int size;
+
+    /** Create an index of the given CA certificates. */
+    public TrustAnchorIndex(Collection<X509Certificate> cas) {
+        for (X509Certificate ca : cas) {
+            List<X509Certificate> list =
+                    bySubject.get(ca.getSubjectX500Principal());
+            if (list == null) {
+                list = new ArrayList<X509Certificate>();
+                bySubject.put(ca.getSubjectX500Principal(), list);
+            }
+            if (!list.contains(ca)) {
+                list.add(ca);
+                size++;
+            }
+        }
+    }
+
+    /**
+     * Creates an index of the CA certificates listed in the JDigiDoc
+     * configuration: DIGIDOC_CA_n_CERTm for m up to DIGIDOC_CA_n_CERTS, for
+     * n up to DIGIDOC_CAS.
+     */
+    public static TrustAnchorIndex fromConfig() throws IOException,
+            CertificateException {
+        ConfigManager conf = ConfigManager.instance();
+        CertificateFactory cf = CertificateFactory.getInstance("X.509");
+        List<X509Certificate> cas = new ArrayList<X509Certificate>();
+        int n = conf.getIntProperty("DIGIDOC_CAS", 0);
+        for (int i = 1; i <= n; i++) {
+            int m = conf.getIntProperty("DIGIDOC_CA_" + i + "_CERTS", 0);
+            for (int j = 1; j <= m; j++) {
+                String file = conf.getProperty("DIGIDOC_CA_" + i + "_CERT" + j);
+                if (file == null) {
+                    continue;
+                }
+                InputStream in = open(file);
+                try {
+                    for (Certificate c : cf.generateCertificates(in)) {
+                        cas.add((X509Certificate) c);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        }
+        return new TrustAnchorIndex(cas);
+    }
+
+    private static InputStream open(String file) throws IOException {
+        if (!file.startsWith(JAR_PREFIX)) {
+            return new FileInputStream(file);
+        }
+        String name = file.substring(JAR_PREFIX.length());
+        InputStream in = TrustAnchorIndex.class.getClassLoader()
+                .getResourceAsStream(name);
+        if (in == null) {
+            throw new IOException("No " + name + " on the class path");
+        }
+        return in;
+    }
+
+    /**
+     * Finds the CA certificate that issued the given one, checking the
+     * signature. Returns null if none of the CAs did.
+     */
+    public X509Certificate findIssuer(X509Certificate cert) {
+        List<X509Certificate> candidates =
+                bySubject.get(cert.getIssuerX500Principal());
+        if (candidates == null) {
+            return null;
+        }
+        /* A CA may have several certificates with the same name, e.g. after
+         * renewing its key. */
+        for (X509Certificate ca : candidates) {
+            try {
+                cert.verify(ca.getPublicKey());
+                return ca;
+            } catch (GeneralSecurityException e) {
+                /* Try the next one. */
+            }
+        }
+        return null;
+    }
+
+    /** Is the certificate one of the trusted ones? */
+    public boolean contains(X509Certificate cert) {
+        List<X509Certificate> list =
+                bySubject.get(cert.getSubjectX500Principal());
+        return list != null && list.contains(cert);
+    }
+
+    /** Returns all the trusted CA certificates. */
+    public List<X509Certificate> getCertificates() {
+        List<X509Certificate> all = new ArrayList<X509Certificate>();
+        for (List<X509Certificate> list : bySubject.values()) {
+            all.addAll(list);
+        }
+        return Collections.unmodifiableList(all);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+}
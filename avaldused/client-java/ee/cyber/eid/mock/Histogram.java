@@ -0,0 +1,106 @@
+package ee.cyber.eid.mock;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects latencies and reports their distribution: percentiles and counts
+ * in exponentially growing buckets.
+ */
+public class Histogram {
+
+    /** The upper bounds of the buckets in milliseconds. */
+    private static final long[] BOUNDS = {
+        1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000
+    };
+
+    private long[] samples = new long[1024];
+    private int count;
+
+    /** Records a latency in nanoseconds. */
+    public synchronized void record(long nanos) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, count * 2);
+        }
+        samples[count++] = nanos;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns a percentile of the latencies in nanoseconds or -1 if nothing
+     * has been recorded.
+     * @param percentile The percentile between 0 and 1, e.g. 0.99.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * count) - 1;
+        return sorted[Math.max(0, Math.min(index, count - 1))];
+    }
+
+    /** Prints the percentiles and the buckets to the given stream. */
+    public synchronized void print(PrintStream out) {
+        if (count == 0) {
+            out.println("No latencies recorded.");
+            return;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+
+        long sum = 0;
+        for (long s : sorted) {
+            sum += s;
+        }
+        out.printf("Latency (ms): min %.1f, mean %.1f, p50 %.1f, p90 %.1f, "
+                + "p99 %.1f, p99.9 %.1f, max %.1f%n",
+                millis(sorted[0]), millis(sum / count),
+                millis(at(sorted, 0.5)), millis(at(sorted, 0.9)),
+                millis(at(sorted, 0.99)), millis(at(sorted, 0.999)),
+                millis(sorted[count - 1]));
+
+        /* The buckets, with a bar scaled to the biggest one. */
+        long[] buckets = new long[BOUNDS.length + 1];
+        for (long s : sorted) {
+            int b = 0;
+            while (b < BOUNDS.length
+                    && s > TimeUnit.MILLISECONDS.toNanos(BOUNDS[b])) {
+                b++;
+            }
+            buckets[b]++;
+        }
+        long max = 0;
+        for (long b : buckets) {
+            max = Math.max(max, b);
+        }
+        for (int b = 0; b < buckets.length; b++) {
+            if (buckets[b] == 0) {
+                continue;
+            }
+            String label = b < BOUNDS.length ? "<= " + BOUNDS[b]
+                    : "> " + BOUNDS[BOUNDS.length - 1];
+            StringBuilder bar = new StringBuilder();
+            for (long i = 0; i < buckets[b] * 50 / max; i++) {
+                bar.append('#');
+            }
+            out.printf("%10s ms %8d %5.1f%% %s%n", label, buckets[b],
+                    100.0 * buckets[b] / count, bar);
+        }
+    }
+
+    private static long at(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+}
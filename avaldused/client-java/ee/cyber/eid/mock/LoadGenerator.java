@@ -0,0 +1,269 @@
+package ee.cyber.eid.mock;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ee.cyber.eid.Claim;
+import ee.cyber.eid.net.BatchResult;
+import ee.cyber.eid.net.ClaimService;
+import ee.cyber.eid.net.ConcurrencyLimiter;
+import ee.cyber.eid.net.OverloadException;
+import ee.sk.utils.ConfigManager;
+
+/**
+ * Submits claims to the claim handling service as fast as it takes them and
+ * reports the throughput and a latency histogram.
+ * The claims are unsigned dummies, so a real service rejects them. Without
+ * URLs a MockClaimService is started in-process, configured with the -latency,
+ * -jitter, -errors and -size options. The recipient certificate is the first
+ * one in the given test keystore.
+ * Usage: java LoadGenerator -keystore file [-storepass pass]
+ *        [-storetype type] [-url url]... [-n claims] [-c concurrency]
+ *        [-batch size] [-hedge percentile] [-latency ms] [-jitter ms]
+ *        [-errors rate] [-size bytes] [-cfg config]
+ */
+public class LoadGenerator {
+
+    /** Default place to look for the configuration file. */
+    private static final String DEFAULT_CONF = "jdigidoc.cfg";
+
+    private ClaimService service;
+    private X509Certificate cert;
+    private int batchSize;
+
+    private final Histogram histogram = new Histogram();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong overloaded = new AtomicLong();
+
+    /**
+     * Create a new load generator.
+     * @param service The client to submit the claims with.
+     * @param cert The recipient certificate to send with the claims.
+     * @param batchSize The number of claims in one request, 1 to submit the
+     *                  claims one by one.
+     */
+    public LoadGenerator(ClaimService service, X509Certificate cert,
+            int batchSize) {
+        this.service = service;
+        this.cert = cert;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Submits the given number of claims from the given number of threads
+     * and waits until all are done.
+     * @return The time it took in nanoseconds.
+     */
+    public long run(int claims, int concurrency) throws InterruptedException {
+        final AtomicInteger remaining = new AtomicInteger(claims);
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        long start = System.nanoTime();
+        for (int i = 0; i < concurrency; i++) {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    int n;
+                    while ((n = take(remaining)) > 0) {
+                        submit(n);
+                    }
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        return System.nanoTime() - start;
+    }
+
+    /** Takes up to batchSize claims from the remaining ones. */
+    private int take(AtomicInteger remaining) {
+        while (true) {
+            int left = remaining.get();
+            int n = Math.min(left, batchSize);
+            if (remaining.compareAndSet(left, left - n)) {
+                return n;
+            }
+        }
+    }
+
+    /** Submits n claims in one request and records the outcome. */
+    private void submit(int n) {
+        List<Claim> claims = new ArrayList<Claim>();
+        try {
+            for (int i = 0; i < n; i++) {
+                Claim claim = new Claim();
+                claim.addClaimFile("Load test claim " + claim.getId());
+                claims.add(claim);
+            }
+        } catch (Exception e) {
+            System.err.println("Could not create a claim: " + e);
+            failed.addAndGet(n);
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            if (batchSize == 1) {
+                service.submit(claims.get(0), cert);
+                succeeded.incrementAndGet();
+            } else {
+                List<BatchResult> results = service.submitBatch(claims,
+                        Collections.nCopies(n, cert), null);
+                for (BatchResult result : results) {
+                    if (result.isSuccess()) {
+                        succeeded.incrementAndGet();
+                    } else {
+                        failed.incrementAndGet();
+                    }
+                }
+            }
+            histogram.record(System.nanoTime() - start);
+        } catch (OverloadException e) {
+            overloaded.addAndGet(n);
+        } catch (Exception e) {
+            histogram.record(System.nanoTime() - start);
+            failed.addAndGet(n);
+        }
+    }
+
+    /** Prints the results of a run that took the given time. */
+    public void report(long nanos) {
+        double seconds = nanos / 1e9;
+        long total = succeeded.get() + failed.get() + overloaded.get();
+        System.out.printf("%d claims in %.2f s: %.1f claims/s, "
+                + "%.1f requests/s%n", total, seconds, total / seconds,
+                histogram.getCount() / seconds);
+        System.out.printf("Succeeded %d, failed %d, rejected by the limiter "
+                + "%d (final limit %d)%n", succeeded.get(), failed.get(),
+                overloaded.get(), service.getLimiter().getLimit());
+        histogram.print(System.out);
+    }
+
+    /** Returns the first certificate in the given keystore. */
+    private static X509Certificate loadCertificate(String file, String type,
+            String password) throws Exception {
+        KeyStore ks = KeyStore.getInstance(type);
+        InputStream in = new FileInputStream(file);
+        try {
+            ks.load(in, password != null ? password.toCharArray() : null);
+        } finally {
+            in.close();
+        }
+        Enumeration<String> aliases = ks.aliases();
+        while (aliases.hasMoreElements()) {
+            String alias = aliases.nextElement();
+            if (ks.getCertificate(alias) instanceof X509Certificate) {
+                return (X509Certificate) ks.getCertificate(alias);
+            }
+        }
+        throw new IllegalArgumentException("No certificates in " + file);
+    }
+
+    public static void main(String[] argv) throws Exception {
+        String cfg = DEFAULT_CONF;
+        String keystore = null;
+        String storepass = null;
+        String storetype = "PKCS12";
+        List<String> urls = new ArrayList<String>();
+        int claims = 1000;
+        int concurrency = 8;
+        int batchSize = 1;
+        double hedge = 0;
+        int latency = 0;
+        int jitter = 0;
+        double errorRate = 0;
+        int size = 1024;
+
+        /* Parse the arguments. */
+        for (int i = 0; i < argv.length; i++) {
+            if (i + 1 == argv.length) {
+                System.err.println("No parameter given after '" + argv[i]
+                        + "'.");
+                return;
+            }
+            String option = argv[i];
+            String value = argv[++i];
+            if ("-cfg".equals(option)) {
+                cfg = value;
+            } else if ("-keystore".equals(option)) {
+                keystore = value;
+            } else if ("-storepass".equals(option)) {
+                storepass = value;
+            } else if ("-storetype".equals(option)) {
+                storetype = value;
+            } else if ("-url".equals(option)) {
+                urls.add(value);
+            } else if ("-n".equals(option)) {
+                claims = Integer.parseInt(value);
+            } else if ("-c".equals(option)) {
+                concurrency = Integer.parseInt(value);
+            } else if ("-batch".equals(option)) {
+                batchSize = Integer.parseInt(value);
+            } else if ("-hedge".equals(option)) {
+                hedge = Double.parseDouble(value);
+            } else if ("-latency".equals(option)) {
+                latency = Integer.parseInt(value);
+            } else if ("-jitter".equals(option)) {
+                jitter = Integer.parseInt(value);
+            } else if ("-errors".equals(option)) {
+                errorRate = Double.parseDouble(value);
+            } else if ("-size".equals(option)) {
+                size = Integer.parseInt(value);
+            } else {
+                System.err.println("Unknown option '" + option + "'.");
+                return;
+            }
+        }
+        if (keystore == null) {
+            System.err.println("Specify a test keystore with -keystore.");
+            return;
+        }
+
+        if (!ConfigManager.init(cfg)) {
+            System.err.println("Add " + DEFAULT_CONF + " to the current "
+                    + "directory or specify a configuration file with -cfg.");
+            return;
+        }
+        X509Certificate cert = loadCertificate(keystore, storetype, storepass);
+
+        MockClaimService mock = null;
+        if (urls.isEmpty()) {
+            mock = new MockClaimService(0, concurrency);
+            mock.setLatency(latency, jitter);
+            mock.setErrorRate(errorRate);
+            mock.setResponseSize(size);
+            mock.start();
+            urls.add(mock.getUrl());
+        }
+
+        /* Let the limiter start at the requested concurrency, so the run
+         * measures the service rather than the limiter's warm-up. */
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(concurrency, 1,
+                Math.max(concurrency, 64), concurrency, 30000, 2.0, 0.9);
+        ClaimService service = new ClaimService(urls, concurrency, limiter);
+        service.setBatchSize(batchSize);
+        service.setHedgePercentile(hedge);
+        try {
+            LoadGenerator generator = new LoadGenerator(service, cert,
+                    batchSize);
+            generator.report(generator.run(claims, concurrency));
+        } finally {
+            service.close();
+            if (mock != null) {
+                mock.stop();
+            }
+        }
+    }
+
+}
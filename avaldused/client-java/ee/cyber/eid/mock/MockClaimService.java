@@ -0,0 +1,537 @@
+package ee.cyber.eid.mock;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.bouncycastle.util.encoders.Base64;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import ee.cyber.eid.cert.CertificateIdentity;
+import ee.cyber.eid.net.HttpPOST;
+import ee.cyber.eid.net.MultipartReader;
+import ee.cyber.eid.net.Part;
+import ee.sk.digidoc.DataFile;
+import ee.sk.digidoc.DigiDocException;
+import ee.sk.digidoc.SignedDoc;
+import ee.sk.digidoc.factory.DigiDocGenFactory;
+import ee.sk.utils.ConfigManager;
+import ee.sk.xmlenc.EncryptedData;
+import ee.sk.xmlenc.EncryptedKey;
+
+/**
+ * An in-process stand-in for the claim handling service (submit.php), for
+ * load testing the client without DigiDocService and ID cards.
+ * It speaks the same protocol as submit.php: single and batched claims,
+ * protocol 2 with DER certificates and compressed claims and responses.
+ * The claims are not verified. Every well-formed claim gets an unsigned DDOC
+ * response with dummy content of the configured size, encrypted for the
+ * certificate that came with the claim (or not encrypted if "nocrypt" was
+ * given), so the client can decrypt it with its test key as usual.
+ * Latency and errors can be injected.
+ * Usage: java MockClaimService [-port port] [-threads n] [-latency ms]
+ *        [-jitter ms] [-errors rate] [-size bytes] [-cfg config]
+ */
+public class MockClaimService {
+
+    /** The path the service is served at, the same as that of submit.php. */
+    public static final String PATH = "/eid/avaldused/submit.php";
+
+    /** Default place to look for the configuration file. */
+    private static final String DEFAULT_CONF = "jdigidoc.cfg";
+
+    private static final int DEFAULT_PORT = 8080;
+    private static final int DEFAULT_THREADS = 16;
+    private static final int DEFAULT_RESPONSE_SIZE = 1024;
+
+    /** How many connections may wait to be accepted. */
+    private static final int BACKLOG = 128;
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    private volatile int latency;
+    private volatile int jitter;
+    private volatile double errorRate;
+    private volatile byte[] response;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong claims = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * Create a new service listening on the loopback interface. JDigiDoc
+     * must have been configured with ConfigManager.init() before.
+     * @param port The port to listen on, 0 for any free port.
+     * @param threads The number of threads handling the requests.
+     */
+    public MockClaimService(int port, int threads) throws IOException,
+            DigiDocException {
+        setResponseSize(DEFAULT_RESPONSE_SIZE);
+
+        server = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), port), BACKLOG);
+        server.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    MockClaimService.this.handle(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /** Stops the service, waiting at most a second for requests to finish. */
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+    }
+
+    /** Returns the URL of the service. */
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + PATH;
+    }
+
+    /**
+     * Sets how long handling each claim takes.
+     * @param latency The time in milliseconds.
+     * @param jitter The most that is randomly added to it, in milliseconds.
+     */
+    public void setLatency(int latency, int jitter) {
+        this.latency = latency;
+        this.jitter = jitter;
+    }
+
+    /**
+     * Sets the share of claims answered with an internal server error.
+     * @param errorRate The share between 0 and 1.
+     */
+    public void setErrorRate(double errorRate) {
+        if (errorRate < 0 || errorRate > 1) {
+            throw new IllegalArgumentException("Error rate must be in [0, 1]");
+        }
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Sets the size of the content in the responses.
+     * @param size The size in bytes.
+     */
+    public void setResponseSize(int size) throws DigiDocException {
+        response = createResponse(size);
+    }
+
+    /** Returns the number of requests handled. */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /** Returns the number of claims handled. */
+    public long getClaims() {
+        return claims.get();
+    }
+
+    /** Returns the number of errors returned, injected or not. */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /** Creates a DDOC with a data file of the given size. */
+    private static byte[] createResponse(int size) throws DigiDocException {
+        SignedDoc sdoc = DigiDocGenFactory.createSignedDoc(
+                SignedDoc.FORMAT_DIGIDOC_XML, null, null);
+
+        /* Printable content, as the client reads it as a string. */
+        byte[] content = new byte[size];
+        Random random = new Random();
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (i % 64 == 63 ? '\n' : 'a' + random.nextInt(26));
+        }
+
+        DataFile df = new DataFile(sdoc.getNewDataFileId(),
+                DataFile.CONTENT_EMBEDDED_BASE64, "response", "text/plain",
+                sdoc);
+        df.setBody(content);
+        sdoc.addDataFile(df);
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        sdoc.writeToStream(buf);
+        return buf.toByteArray();
+    }
+
+    /** Handles a request to submit.php. */
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("X-Claim-Protocol", "2");
+
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            send(exchange, error(405, "Only POST requests are accepted.\n"),
+                    null);
+            return;
+        }
+        String boundary = MultipartReader.getBoundary(
+                exchange.getRequestHeaders().getFirst("Content-Type"));
+        if (boundary == null) {
+            send(exchange, error(400, "Expected multipart/form-data.\n"),
+                    null);
+            return;
+        }
+        Map<String, byte[]> form = readForm(exchange.getRequestBody(),
+                boundary);
+
+        int protocol = form.containsKey("protocol")
+                ? Integer.parseInt(getText(form, "protocol")) : 1;
+        String claimEncoding = protocol >= 2 ? getText(form, "encoding") : null;
+        String encoding = protocol >= 2 ? getResponseEncoding(
+                exchange.getRequestHeaders().getFirst("Accept-Encoding"))
+                : null;
+        boolean nocrypt = form.containsKey("nocrypt");
+
+        if (form.containsKey("claim")) {
+            send(exchange, handleClaim(form.get("claim"), form.get("cert"),
+                    protocol, claimEncoding, nocrypt), encoding);
+        } else {
+            handleBatch(exchange, form, protocol, claimEncoding, encoding,
+                    nocrypt);
+        }
+    }
+
+    /**
+     * Handles the indexed claims of a batch request and streams the responses
+     * back as a multipart/mixed body.
+     */
+    private void handleBatch(HttpExchange exchange, Map<String, byte[]> form,
+            int protocol, String claimEncoding, String encoding,
+            boolean nocrypt) throws IOException {
+        TreeSet<Integer> indexes = new TreeSet<Integer>();
+        for (String field : form.keySet()) {
+            if (field.startsWith("claim[") && field.endsWith("]")) {
+                indexes.add(Integer.valueOf(field.substring(6,
+                        field.length() - 1)));
+            }
+        }
+        if (indexes.isEmpty()) {
+            send(exchange, error(400, "Uploaded file missing or of wrong "
+                    + "type!\n"), encoding);
+            return;
+        }
+
+        String boundary = Long.toHexString(ThreadLocalRandom.current()
+                .nextLong());
+        exchange.getResponseHeaders().set("Content-Type",
+                "multipart/mixed; boundary=" + boundary);
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        for (int i : indexes) {
+            Reply reply = handleClaim(form.get("claim[" + i + "]"),
+                    form.get("cert[" + i + "]"), protocol, claimEncoding,
+                    nocrypt);
+            if (reply.status != 200) {
+                errors.incrementAndGet();
+            }
+            StringBuilder header = new StringBuilder();
+            header.append("--" + boundary + "\r\n");
+            header.append("X-Claim-Index: " + i + "\r\n");
+            header.append("X-Claim-Status: " + reply.status + "\r\n");
+            header.append("Content-Type: " + reply.type + "\r\n");
+            if (encoding != null) {
+                header.append("Content-Encoding: " + encoding + "\r\n");
+            }
+            header.append("\r\n");
+            out.write(header.toString().getBytes(StandardCharsets.US_ASCII));
+            out.write(encode(reply.body, encoding));
+            out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+        out.write(("--" + boundary + "--\r\n").getBytes(
+                StandardCharsets.US_ASCII));
+        out.close();
+    }
+
+    /** Checks a claim and creates the response to it. */
+    private Reply handleClaim(byte[] claim, byte[] cert, int protocol,
+            String claimEncoding, boolean nocrypt) {
+        claims.incrementAndGet();
+        sleep();
+        if (errorRate > 0
+                && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            return error(500, "Injected error.\n");
+        }
+        if (claim == null) {
+            return error(400, "Uploaded file missing or of wrong type!\n");
+        }
+
+        try {
+            /* Decompress the claim anyway, it is part of the cost. */
+            HttpPOST.drain(HttpPOST.decode(new ByteArrayInputStream(claim),
+                    claimEncoding));
+        } catch (IOException e) {
+            return error(400, "The claim could not be decompressed!\n"
+                    + e.getMessage() + "\n");
+        }
+
+        if (nocrypt) {
+            return new Reply(200, "application/x-ddoc", response);
+        }
+        if (cert == null) {
+            return error(400, "No recipient certificate specified!\n");
+        }
+        try {
+            return new Reply(200, "application/x-cdoc",
+                    encrypt(parseCertificate(cert, protocol)));
+        } catch (CertificateException e) {
+            return error(400, "Invalid recipient certificate!\n"
+                    + e.getMessage() + "\n");
+        } catch (DigiDocException e) {
+            return error(500, "Error encrypting response: " + e.getMessage());
+        }
+    }
+
+    /** Encrypts the response for the given recipient. */
+    private byte[] encrypt(X509Certificate cert) throws DigiDocException {
+        EncryptedData encd = new EncryptedData(null, null, null,
+                EncryptedData.DENC_XMLNS_XMLENC,
+                EncryptedData.DENC_ENC_METHOD_AES128);
+
+        /* The client finds its key by the recipient's CN. */
+        encd.addEncryptedKey(new EncryptedKey(null,
+                CertificateIdentity.of(cert).getCommonName(),
+                EncryptedData.DENC_ENC_METHOD_RSA1_5, null, null, cert));
+        encd.setData(response);
+        encd.setMimeType(EncryptedData.DENC_ENCDATA_TYPE_DDOC);
+        encd.addProperty(EncryptedData.ENCPROP_FILENAME, "response.ddoc");
+        encd.encrypt(EncryptedData.DENC_COMPRESS_NEVER);
+        return encd.toXML();
+    }
+
+    /**
+     * Parses the recipient's certificate, which is DER in protocol 2 and
+     * base64 encoded DER before that.
+     */
+    private static X509Certificate parseCertificate(byte[] cert, int protocol)
+            throws CertificateException {
+        byte[] der;
+        if (protocol >= 2) {
+            der = cert;
+        } else {
+            try {
+                der = Base64.decode(cert);
+            } catch (RuntimeException e) {
+                throw new CertificateException("Not base64: " + e.getMessage());
+            }
+        }
+        CertificateFactory factory = CertificateFactory.getInstance("X.509");
+        return (X509Certificate) factory.generateCertificate(
+                new ByteArrayInputStream(der));
+    }
+
+    /** Waits for the configured latency. */
+    private void sleep() {
+        long millis = latency;
+        if (jitter > 0) {
+            millis += ThreadLocalRandom.current().nextInt(jitter + 1);
+        }
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** Sends the response to a single claim. */
+    private void send(HttpExchange exchange, Reply reply, String encoding)
+            throws IOException {
+        if (reply.status != 200) {
+            errors.incrementAndGet();
+        }
+        byte[] body = encode(reply.body, encoding);
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", reply.type);
+        if (encoding != null) {
+            headers.set("Content-Encoding", encoding);
+        }
+        exchange.sendResponseHeaders(reply.status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    /**
+     * Reads all the fields of a multipart/form-data body into memory, keyed
+     * by the field names.
+     */
+    private static Map<String, byte[]> readForm(InputStream in,
+            String boundary) throws IOException {
+        Map<String, byte[]> form = new HashMap<String, byte[]>();
+        MultipartReader reader = new MultipartReader(in, boundary);
+        while (reader.next()) {
+            String name = getFieldName(reader.getHeader(
+                    "Content-Disposition"));
+            if (name == null) {
+                continue;
+            }
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            byte[] b = new byte[8192];
+            int n;
+            InputStream body = reader.getBody();
+            while ((n = body.read(b)) != -1) {
+                buf.write(b, 0, n);
+            }
+            form.put(name, buf.toByteArray());
+        }
+        return form;
+    }
+
+    /** Returns the name parameter of a Content-Disposition header. */
+    private static String getFieldName(String disposition) {
+        if (disposition == null) {
+            return null;
+        }
+        for (String param : disposition.split(";")) {
+            param = param.trim();
+            if (param.startsWith("name=")) {
+                return param.substring(5).replace("\"", "");
+            }
+        }
+        return null;
+    }
+
+    private static String getText(Map<String, byte[]> form, String field) {
+        byte[] value = form.get(field);
+        return value == null ? null
+                : new String(value, StandardCharsets.US_ASCII).trim();
+    }
+
+    /** Picks the response encoding the same way as submit.php. */
+    private static String getResponseEncoding(String accepted) {
+        if (accepted == null) {
+            return null;
+        }
+        accepted = accepted.toLowerCase();
+        if (accepted.contains(Part.ENCODING_GZIP)) {
+            return Part.ENCODING_GZIP;
+        } else if (accepted.contains(Part.ENCODING_DEFLATE)) {
+            return Part.ENCODING_DEFLATE;
+        }
+        return null;
+    }
+
+    /** Compresses the given data with the given content encoding. */
+    private static byte[] encode(byte[] data, String encoding)
+            throws IOException {
+        if (encoding == null) {
+            return data;
+        }
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DeflaterOutputStream zip = Part.ENCODING_GZIP.equals(encoding)
+                ? new GZIPOutputStream(buf) : new DeflaterOutputStream(buf);
+        zip.write(data);
+        zip.close();
+        return buf.toByteArray();
+    }
+
+    private static Reply error(int status, String message) {
+        return new Reply(status, "text/plain; charset=utf-8",
+                message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** The response to a single claim. */
+    private static class Reply {
+
+        private int status;
+        private String type;
+        private byte[] body;
+
+        Reply(int status, String type, byte[] body) {
+            this.status = status;
+            this.type = type;
+            this.body = body;
+        }
+
+    }
+
+    public static void main(String[] argv) throws Exception {
+        String cfg = DEFAULT_CONF;
+        int port = DEFAULT_PORT;
+        int threads = DEFAULT_THREADS;
+        int latency = 0;
+        int jitter = 0;
+        double errorRate = 0;
+        int size = DEFAULT_RESPONSE_SIZE;
+
+        /* Parse the arguments. */
+        for (int i = 0; i < argv.length; i++) {
+            if (i + 1 == argv.length) {
+                System.err.println("No parameter given after '" + argv[i]
+                        + "'.");
+                return;
+            }
+            String value = argv[++i];
+            if ("-cfg".equals(argv[i - 1])) {
+                cfg = value;
+            } else if ("-port".equals(argv[i - 1])) {
+                port = Integer.parseInt(value);
+            } else if ("-threads".equals(argv[i - 1])) {
+                threads = Integer.parseInt(value);
+            } else if ("-latency".equals(argv[i - 1])) {
+                latency = Integer.parseInt(value);
+            } else if ("-jitter".equals(argv[i - 1])) {
+                jitter = Integer.parseInt(value);
+            } else if ("-errors".equals(argv[i - 1])) {
+                errorRate = Double.parseDouble(value);
+            } else if ("-size".equals(argv[i - 1])) {
+                size = Integer.parseInt(value);
+            } else {
+                System.err.println("Unknown option '" + argv[i - 1] + "'.");
+                return;
+            }
+        }
+
+        if (!ConfigManager.init(cfg)) {
+            System.err.println("Add " + DEFAULT_CONF + " to the current "
+                    + "directory or specify a configuration file with -cfg.");
+            return;
+        }
+
+        MockClaimService service = new MockClaimService(port, threads);
+        service.setLatency(latency, jitter);
+        service.setErrorRate(errorRate);
+        service.setResponseSize(size);
+        service.start();
+        System.out.println("Listening at " + service.getUrl());
+    }
+
+}
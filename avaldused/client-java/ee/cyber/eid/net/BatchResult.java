@@ -0,0 +1,73 @@
+package ee.cyber.eid.net;
+
+import ee.cyber.eid.Claim;
+import ee.sk.xmlenc.EncryptedData;
+
+/** The outcome of submitting one claim as part of a batch. */
+public class BatchResult {
+
+    /** Receives the results of a batch as soon as each one arrives. */
+    public interface Listener {
+
+        void claimProcessed(BatchResult result);
+
+    }
+
+    private int index;
+    private Claim claim;
+    private int status;
+    private EncryptedData data;
+    private String error;
+
+    /** Create a successful result. */
+    BatchResult(int index, Claim claim, EncryptedData data) {
+        this.index = index;
+        this.claim = claim;
+        this.status = 200;
+        this.data = data;
+    }
+
+    /**
+     * Create a failed result.
+     * @param status The HTTP status the service gave for this claim or 0 if
+     *               the claim did not get a response at all.
+     */
+    BatchResult(int index, Claim claim, int status, String error) {
+        this.index = index;
+        this.claim = claim;
+        this.status = status;
+        this.error = error;
+    }
+
+    /** Returns the index of the claim in the submitted list. */
+    public int getIndex() {
+        return index;
+    }
+
+    public Claim getClaim() {
+        return claim;
+    }
+
+    /**
+     * Returns the HTTP status the service gave for this claim or 0 if the
+     * claim did not get a response at all.
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    public boolean isSuccess() {
+        return data != null;
+    }
+
+    /** Returns the encrypted response or null if the claim failed. */
+    public EncryptedData getData() {
+        return data;
+    }
+
+    /** Returns the reason why the claim failed or null if it succeeded. */
+    public String getError() {
+        return error;
+    }
+
+}
@@ -1,23 +1,475 @@
 package ee.cyber.eid.net;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
 
 import org.bouncycastle.util.encoders.Base64Encoder;
 
 import ee.cyber.eid.Claim;
 import ee.cyber.eid.EidException;
+import ee.cyber.eid.util.TempFile;
 import ee.sk.digidoc.DigiDocException;
 import ee.sk.utils.ConfigManager;
 import ee.sk.xmlenc.EncryptedData;
 import ee.sk.xmlenc.factory.EncryptedDataParser;
 
-/** Communicates with the claim handling service. */
+/**
+ * Communicates with the claim handling service.
+ * The static methods open a new connection for every claim. An instance of
+ * this class is a long-lived client for one service, possibly running as
+ * several replicas (see EndpointSet): it submits claims from a
+ * pool of worker threads and shares a single SSLSocketFactory between all of
+ * them, so HttpURLConnection can keep the connections alive and the TLS
+ * sessions are resumed instead of doing a full handshake for every claim.
+ * The number of idle connections kept per service is controlled by the
+ * standard <tt>http.maxConnections</tt> system property.
+ * <p>
+ * Two versions of the wire protocol are spoken. Version 1 sends the
+ * certificate as base64 text and the claim as is. Version 2 sends the
+ * certificate as raw DER, compresses the claim and asks for a compressed
+ * response. A service advertises version 2 with the X-Claim-Protocol
+ * response header, so the first request to a service always uses version 1
+ * and the following ones use version 2 if the service understood it.
+ * <p>
+ * The requests an instance makes go through a ConcurrencyLimiter, which
+ * adapts the number of requests in flight to the latency of the service and
+ * throws an OverloadException at callers who would have to wait too long.
+ * Batches go through a limiter of their own: a batch takes longer than a
+ * single claim, which the limiter of single claims would take for overload.
+ */
 public class ClaimService {
 
+    /** The default number of threads used for asynchronous submissions. */
+    public static final int DEFAULT_THREADS = 4;
+
+    /**
+     * The default number of claims sent in one batch request. The service
+     * refuses batches larger than its DD_MAX_BATCH.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 16;
+
+    /** The response header a service advertises its protocol version in. */
+    private static final String PROTOCOL_HEADER = "X-Claim-Protocol";
+
+    /** The version of the compact wire protocol. */
+    private static final String PROTOCOL_V2 = "2";
+
+    /** The content encoding of claims in the compact wire protocol. */
+    private static final String CLAIM_ENCODING = Part.ENCODING_GZIP;
+
+    /** The services that have advertised the compact wire protocol. */
+    private static final Set<String> v2Services = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+
+    /** How long to keep TLS sessions for resumption, in seconds. */
+    private static final int SESSION_TIMEOUT = 3600;
+
+    /** The number of latency samples needed before requests are hedged. */
+    private static final int MIN_HEDGE_SAMPLES = 20;
+
+    /**
+     * The size above which a claim serialized for hedging is written to a
+     * temporary file instead of being kept in memory.
+     */
+    private static final int HEDGE_SPILL_THRESHOLD = 1024 * 1024;
+
+    private EndpointSet endpoints;
+    private SSLSocketFactory sslFactory;
+    private ExecutorService executor;
+    private ExecutorService attempts;
+    private ConcurrencyLimiter limiter;
+    private ConcurrencyLimiter batchLimiter = new ConcurrencyLimiter();
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private double hedgePercentile;
+
+    /**
+     * Create a new client for the claim handling service that uses
+     * DEFAULT_THREADS threads for asynchronous submissions.
+     * @param url Location of the claim handling service.
+     */
+    public ClaimService(String url) throws GeneralSecurityException {
+        this(url, DEFAULT_THREADS);
+    }
+
+    /**
+     * Create a new client for the claim handling service.
+     * @param url Location of the claim handling service.
+     * @param threads The number of threads used for asynchronous submissions.
+     */
+    public ClaimService(String url, int threads)
+            throws GeneralSecurityException {
+        this(url, threads, new ConcurrencyLimiter());
+    }
+
+    /**
+     * Create a new client for the claim handling service.
+     * @param url Location of the claim handling service.
+     * @param threads The number of threads used for asynchronous submissions.
+     * @param limiter Limits the requests in flight to the service.
+     */
+    public ClaimService(String url, int threads, ConcurrencyLimiter limiter)
+            throws GeneralSecurityException {
+        this(Collections.singletonList(url), threads, limiter);
+    }
+
+    /**
+     * Create a new client for replicas of the claim handling service that
+     * uses DEFAULT_THREADS threads for asynchronous submissions.
+     * @param urls Locations of the replicas.
+     */
+    public ClaimService(List<String> urls) throws GeneralSecurityException {
+        this(urls, DEFAULT_THREADS, new ConcurrencyLimiter());
+    }
+
+    /**
+     * Create a new client for replicas of the claim handling service.
+     * Each claim is sent to the healthy replica with the least requests
+     * outstanding. A replica that fails several times in a row is left out
+     * for a while.
+     * @param urls Locations of the replicas.
+     * @param threads The number of threads used for asynchronous submissions.
+     * @param limiter Limits the requests in flight to the service.
+     */
+    public ClaimService(List<String> urls, int threads,
+            ConcurrencyLimiter limiter) throws GeneralSecurityException {
+        this.endpoints = new EndpointSet(urls);
+        this.limiter = limiter;
+
+        /* A context of our own gives us a session cache that is not shared
+         * with (and evicted by) the rest of the application. */
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, null, null);
+        SSLSessionContext sessions = context.getClientSessionContext();
+        sessions.setSessionTimeout(SESSION_TIMEOUT);
+        sslFactory = context.getSocketFactory();
+
+        executor = Executors.newFixedThreadPool(threads,
+                newThreadFactory("claim-service-"));
+        attempts = Executors.newCachedThreadPool(
+                newThreadFactory("claim-attempt-"));
+    }
+
+    /** Returns a factory of daemon threads with the given name prefix. */
+    private static ThreadFactory newThreadFactory(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Submit the given claim to the claim handling service, reusing a pooled
+     * connection if one is available.
+     * If the claim can not be sent to one replica, it is sent to another one.
+     * If hedging is enabled and the response takes longer than the hedging
+     * percentile of recent latencies, a duplicate is sent to another replica
+     * and whichever response comes first is used. Duplicates are safe, because
+     * the service handles each claim ID only once.
+     * @param claim The claim to submit.
+     * @param cert The submitter's authentication certificate.
+     * @return An encrypted response, decryptable by cert's owner.
+     * @throws OverloadException If the service is loaded to its limit and the
+     *                           claim was not sent.
+     */
+    public EncryptedData submit(Claim claim, X509Certificate cert)
+            throws EidException, DigiDocException,
+            CertificateEncodingException, IOException {
+        Endpoint primary = endpoints.select(null);
+        long delay = getHedgeDelay();
+        if (delay >= 0 && endpoints.countHealthy() > 1) {
+            return submitHedged(primary, delay, claim, cert);
+        }
+
+        try {
+            return attempt(primary, claim, new ClaimContent(claim), cert,
+                    null);
+        } catch (IOException e) {
+            Endpoint other = endpoints.select(primary);
+            if (other == null) {
+                throw e;
+            }
+            return attempt(other, claim, new ClaimContent(claim), cert, null);
+        }
+    }
+
+    /**
+     * Sends the claim to the primary replica and, if it has not answered
+     * within the delay or has failed, to another one. The claim is
+     * serialized once beforehand, as JDigiDoc does not promise that a
+     * container can be written by two threads at once.
+     */
+    private EncryptedData submitHedged(Endpoint primary, long delay,
+            Claim claim, X509Certificate cert) throws EidException,
+            DigiDocException, CertificateEncodingException, IOException {
+        SerializedClaim content = new SerializedClaim(claim);
+        AtomicBoolean abandoned = new AtomicBoolean();
+        CompletionService<EncryptedData> completion =
+                new ExecutorCompletionService<EncryptedData>(attempts);
+        List<Future<EncryptedData>> futures =
+                new ArrayList<Future<EncryptedData>>();
+        futures.add(completion.submit(newAttempt(primary, claim, content,
+                cert, abandoned)));
+        int pending = 1;
+        boolean hedged = false;
+        Throwable failure = null;
+        try {
+            Future<EncryptedData> done = completion.poll(delay,
+                    TimeUnit.NANOSECONDS);
+            while (true) {
+                if (done != null) {
+                    pending--;
+                    try {
+                        return done.get();
+                    } catch (ExecutionException e) {
+                        failure = e.getCause();
+                    }
+                    /* A claim the service rejected would be rejected by
+                     * every replica, as in submit(). */
+                    if (!(failure instanceof IOException)) {
+                        throw failure;
+                    }
+                }
+
+                /* Hedge when the primary is slow, but only if the service has
+                 * room for it. Retry on another replica when it failed to
+                 * answer. */
+                if (!hedged) {
+                    hedged = true;
+                    Endpoint hedge = endpoints.select(primary);
+                    if (hedge != null
+                            && (failure != null || limiter.hasCapacity())) {
+                        futures.add(completion.submit(newAttempt(hedge,
+                                claim, content, cert, abandoned)));
+                        pending++;
+                    }
+                }
+                if (pending == 0) {
+                    throw failure;
+                }
+                done = completion.take();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for "
+                    + "the service");
+        } catch (EidException | DigiDocException
+                | CertificateEncodingException | IOException
+                | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IOException(e);
+        } finally {
+            /* The loser can not really be interrupted while it is blocked on
+             * the network, but at least it will not be waited for. Its
+             * failure is not the replica's fault. */
+            abandoned.set(true);
+            for (Future<EncryptedData> f : futures) {
+                f.cancel(true);
+            }
+            content.release();
+        }
+    }
+
+    /** Returns a task that sends the serialized claim to the replica. */
+    private Callable<EncryptedData> newAttempt(final Endpoint endpoint,
+            final Claim claim, final SerializedClaim content,
+            final X509Certificate cert, final AtomicBoolean abandoned) {
+        content.retain();
+        return new Callable<EncryptedData>() {
+            @Override
+            public EncryptedData call() throws Exception {
+                try {
+                    return attempt(endpoint, claim, content, cert, abandoned);
+                } finally {
+                    content.release();
+                }
+            }
+        };
+    }
+
+    /**
+     * Sends the claim to the given replica and records the outcome.
+     * @param content The serialized claim.
+     * @param abandoned Set when the result is no longer wanted, so failing
+     *                  then does not count against the replica, may be null.
+     */
+    private EncryptedData attempt(Endpoint endpoint, Claim claim,
+            Part.Content content, X509Certificate cert,
+            AtomicBoolean abandoned) throws EidException, DigiDocException,
+            CertificateEncodingException, IOException {
+        long start = acquire(limiter);
+        endpoint.start();
+        boolean dropped = false;
+        boolean recorded = false;
+        try {
+            EncryptedData data = receive(send(endpoint.getUrl(), sslFactory,
+                    claim, content, cert));
+            long nanos = System.nanoTime() - start;
+            endpoint.success(nanos);
+            recorded = true;
+            endpoints.recordLatency(nanos);
+            return data;
+        } catch (IOException e) {
+            /* Timeouts and broken connections are signs of overload, an error
+             * response from the service is not. Neither is being cancelled. */
+            if (abandoned == null || !abandoned.get()) {
+                dropped = true;
+                endpoint.failure();
+                recorded = true;
+            }
+            throw e;
+        } finally {
+            if (!recorded) {
+                endpoint.cancel();
+            }
+            limiter.release(start, dropped);
+        }
+    }
+
+    /**
+     * Returns how long to wait for a response before hedging in nanoseconds
+     * or -1 if the request should not be hedged.
+     */
+    private long getHedgeDelay() {
+        if (hedgePercentile <= 0) {
+            return -1;
+        }
+        return endpoints.getLatencyPercentile(hedgePercentile,
+                MIN_HEDGE_SAMPLES);
+    }
+
+    /**
+     * Submit the given claim to the claim handling service in the background.
+     * @param claim The claim to submit.
+     * @param cert The submitter's authentication certificate.
+     * @return The future encrypted response, decryptable by cert's owner.
+     */
+    public Future<EncryptedData> submitAsync(final Claim claim,
+            final X509Certificate cert) {
+        return executor.submit(new Callable<EncryptedData>() {
+            @Override
+            public EncryptedData call() throws Exception {
+                return submit(claim, cert);
+            }
+        });
+    }
+
+    /**
+     * Submit many claims to the claim handling service, sending up to
+     * getBatchSize() claims in one request. Every request goes to the replica
+     * that is the best at the time, and its outcome counts towards the
+     * health of the replica like that of a single claim.
+     * @param claims The claims to submit.
+     * @param certs The submitters' authentication certificates, one for each
+     *              claim.
+     * @param listener Gets each result as soon as it arrives, may be null.
+     * @return The results in the order of the claims.
+     */
+    public List<BatchResult> submitBatch(List<Claim> claims,
+            List<X509Certificate> certs, BatchResult.Listener listener)
+            throws CertificateEncodingException, IOException {
+        return submitBatch(null, endpoints, sslFactory, batchLimiter, claims,
+                certs, batchSize, listener);
+    }
+
+    /** Returns the replicas of the service. */
+    public EndpointSet getEndpoints() {
+        return endpoints;
+    }
+
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * Enables hedged requests: if a response takes longer than the given
+     * percentile of recent latencies, the claim is also sent to another
+     * replica. Needs at least two replicas.
+     * @param hedgePercentile The percentile between 0 and 1, e.g. 0.95, or 0
+     *                        to disable hedging.
+     */
+    public void setHedgePercentile(double hedgePercentile) {
+        if (hedgePercentile < 0 || hedgePercentile >= 1) {
+            throw new IllegalArgumentException("Percentile must be in [0, 1)");
+        }
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    /** Returns the limiter of the requests in flight to the service. */
+    public ConcurrencyLimiter getLimiter() {
+        return limiter;
+    }
+
+    /** Returns the limiter of the batch requests in flight to the service. */
+    public ConcurrencyLimiter getBatchLimiter() {
+        return batchLimiter;
+    }
+
+    /** Sets the limiter of the batch requests in flight to the service. */
+    public void setBatchLimiter(ConcurrencyLimiter batchLimiter) {
+        this.batchLimiter = batchLimiter;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /** Sets the maximum number of claims sent in one request. */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Stops accepting new submissions. Submissions that have already been
+     * made will still be completed.
+     */
+    public void close() {
+        executor.shutdown();
+        attempts.shutdown();
+    }
+
     /**
      * Submit the given claim to the claim handling service.
      * @param url Location of the claim handling service.
@@ -28,14 +480,210 @@ public class ClaimService {
     public static EncryptedData submit(String url, Claim claim,
             X509Certificate cert) throws EidException, DigiDocException,
             CertificateEncodingException, IOException {
-        byte[] pem = getPEM(cert);
-        InputStream resp = send(url, claim, pem);
+        return receive(send(url, null, claim, new ClaimContent(claim), cert));
+    }
 
-        EncryptedDataParser parser = ConfigManager.instance()
-                .getEncryptedDataParser();
-        EncryptedData data = parser.readEncryptedData(resp);
-        resp.close();
-        return data;
+    /**
+     * Submit many claims to the claim handling service.
+     * Up to batchSize claims, each with its own recipient certificate, are
+     * sent in one request and the service streams the responses back in the
+     * same order as one multipart/mixed body. A claim the service rejects or
+     * a batch that fails as a whole does not affect the other claims - the
+     * failure is reported in the claims' results.
+     * @param url Location of the claim handling service.
+     * @param claims The claims to submit.
+     * @param certs The submitters' authentication certificates, one for each
+     *              claim.
+     * @param batchSize The maximum number of claims sent in one request.
+     * @param listener Gets each result as soon as it arrives, may be null.
+     * @return The results in the order of the claims.
+     */
+    public static List<BatchResult> submitBatch(String url, List<Claim> claims,
+            List<X509Certificate> certs, int batchSize,
+            BatchResult.Listener listener)
+            throws CertificateEncodingException, IOException {
+        return submitBatch(url, null, null, null, claims, certs, batchSize,
+                listener);
+    }
+
+    /**
+     * Sends the batches to the given URL or, if endpoints is not null, each
+     * to the best replica at the time.
+     */
+    private static List<BatchResult> submitBatch(String url,
+            EndpointSet endpoints, SSLSocketFactory sslFactory,
+            ConcurrencyLimiter limiter, List<Claim> claims,
+            List<X509Certificate> certs, int batchSize,
+            BatchResult.Listener listener)
+            throws CertificateEncodingException, IOException {
+        if (claims.size() != certs.size()) {
+            throw new IllegalArgumentException("Need one certificate for "
+                    + "each claim");
+        }
+
+        BatchResult[] results = new BatchResult[claims.size()];
+        for (int from = 0; from < claims.size(); from += batchSize) {
+            int to = Math.min(from + batchSize, claims.size());
+            Endpoint endpoint = endpoints != null ? endpoints.select(null)
+                    : null;
+            String target = endpoint != null ? endpoint.getUrl() : url;
+            boolean v2 = v2Services.contains(target);
+            HttpPOST post = new HttpPOST(target, sslFactory);
+            addProtocol(post, v2);
+            for (int i = from; i < to; i++) {
+                addClaim(post, "[" + i + "]", claims.get(i),
+                        new ClaimContent(claims.get(i)), certs.get(i), v2);
+            }
+
+            String error = null;
+            long start = 0;
+            boolean dropped = false;
+            try {
+                if (limiter != null) {
+                    start = acquire(limiter);
+                }
+                boolean recorded = false;
+                if (endpoint != null) {
+                    endpoint.start();
+                }
+                try {
+                    InputStream resp = post.send();
+                    negotiate(target, post);
+                    receiveBatch(post, resp, claims, from, to, results,
+                            listener);
+                    /* The latency is not recorded, neither for hedging nor
+                     * for picking replicas: a batch takes longer than a
+                     * single claim. */
+                    if (endpoint != null) {
+                        endpoint.success();
+                        recorded = true;
+                    }
+                } catch (IOException e) {
+                    /* As for a single claim, only a broken request counts
+                     * against the replica. */
+                    dropped = true;
+                    if (endpoint != null) {
+                        endpoint.failure();
+                        recorded = true;
+                    }
+                    throw e;
+                } finally {
+                    if (endpoint != null && !recorded) {
+                        endpoint.cancel();
+                    }
+                    if (limiter != null) {
+                        limiter.release(start, dropped);
+                    }
+                }
+            } catch (EidException e) {
+                error = e.getMessage();
+            } catch (IOException e) {
+                error = e.toString();
+            }
+
+            /* Everything that did not get a response failed with the batch. */
+            for (int i = from; i < to; i++) {
+                if (results[i] == null) {
+                    results[i] = new BatchResult(i, claims.get(i), 0,
+                            error != null ? error
+                                    : "No response for the claim");
+                    if (listener != null) {
+                        listener.claimProcessed(results[i]);
+                    }
+                }
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Reads the results of one batch from a multipart/mixed response body.
+     * Each part carries the index of its claim in the X-Claim-Index header
+     * and the claim's HTTP status in X-Claim-Status. Successful parts contain
+     * the encrypted response, failed ones the error message.
+     */
+    private static void receiveBatch(HttpPOST post, InputStream resp,
+            List<Claim> claims, int from, int to, BatchResult[] results,
+            BatchResult.Listener listener) throws EidException, IOException {
+        try {
+            String boundary = MultipartReader.getBoundary(
+                    post.getResponseHeader("Content-Type"));
+            if (boundary == null) {
+                throw new EidException("The service did not return a batch "
+                        + "response.");
+            }
+
+            MultipartReader reader = new MultipartReader(resp, boundary);
+            while (reader.next()) {
+                int index;
+                int status;
+                try {
+                    index = Integer.parseInt(reader.getHeader("X-Claim-Index"));
+                    status = Integer.parseInt(
+                            reader.getHeader("X-Claim-Status"));
+                } catch (NumberFormatException e) {
+                    throw new EidException("Malformed batch response.");
+                }
+                if (index < from || index >= to) {
+                    throw new EidException("Unexpected claim index " + index
+                            + " in batch response.");
+                }
+
+                Claim claim = claims.get(index);
+                InputStream body = HttpPOST.decode(reader.getBody(),
+                        reader.getHeader("Content-Encoding"));
+                BatchResult result;
+                if (status == HttpURLConnection.HTTP_OK) {
+                    try {
+                        EncryptedDataParser parser = ConfigManager.instance()
+                                .getEncryptedDataParser();
+                        result = new BatchResult(index, claim,
+                                parser.readEncryptedData(body));
+                    } catch (DigiDocException e) {
+                        result = new BatchResult(index, claim, status,
+                                "Could not parse the response: "
+                                        + e.getMessage());
+                    }
+                } else {
+                    result = new BatchResult(index, claim, status,
+                            readText(body));
+                }
+
+                results[index] = result;
+                if (listener != null) {
+                    listener.claimProcessed(result);
+                }
+            }
+        } finally {
+            HttpPOST.drain(resp);
+        }
+    }
+
+    /** Reads a UTF-8 encoded error message. */
+    private static String readText(InputStream in) throws IOException {
+        Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+        StringBuilder buf = new StringBuilder();
+        char[] chars = new char[1024];
+        int n;
+        while ((n = reader.read(chars)) != -1) {
+            buf.append(chars, 0, n);
+        }
+        return buf.toString().trim();
+    }
+
+    /**
+     * Waits for the limiter to let a request through.
+     * @return The start time to give to ConcurrencyLimiter.release().
+     */
+    private static long acquire(ConcurrencyLimiter limiter)
+            throws OverloadException, InterruptedIOException {
+        try {
+            return limiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for "
+                    + "the service");
+        }
     }
 
     /**
@@ -55,14 +703,216 @@ public class ClaimService {
 
     /** Sends the claim and certificate to the service and returns it's
      * response body. */
-    private static InputStream send(String url, Claim claim, byte[] cert)
-            throws EidException, DigiDocException, IOException {
-        HttpPOST post = new HttpPOST(url);
-        post.addPart("cert", cert);
-        /* The filename (3rd argument) is never actually used - only needed so
-         * PHP would handle the field correctly. */
-        post.addPart("claim", claim.getMimeType(), "claim", claim.toByteArray());
-        return post.send();
+    private static InputStream send(String url, SSLSocketFactory sslFactory,
+            Claim claim, Part.Content content, X509Certificate cert)
+            throws EidException, CertificateEncodingException, IOException {
+        boolean v2 = v2Services.contains(url);
+        HttpPOST post = new HttpPOST(url, sslFactory);
+        addProtocol(post, v2);
+        addClaim(post, "", claim, content, cert, v2);
+        InputStream resp = post.send();
+        negotiate(url, post);
+        return resp;
+    }
+
+    /** Adds the fields describing the protocol version to the request. */
+    private static void addProtocol(HttpPOST post, boolean v2) {
+        if (v2) {
+            post.addPart("protocol", PROTOCOL_V2.getBytes(
+                    StandardCharsets.US_ASCII));
+            post.addPart("encoding", CLAIM_ENCODING.getBytes(
+                    StandardCharsets.US_ASCII));
+        }
+    }
+
+    /**
+     * Adds the certificate and claim fields to the request.
+     * @param suffix Appended to the field names, e.g. the index in a batch.
+     * @param content The serialized claim.
+     */
+    private static void addClaim(HttpPOST post, String suffix, Claim claim,
+            Part.Content content, X509Certificate cert, boolean v2)
+            throws CertificateEncodingException, IOException {
+        /* The service handles a claim ID only once, which makes resending the
+         * claim safe. */
+        post.addPart("claim_id" + suffix, claim.getId().getBytes(
+                StandardCharsets.US_ASCII));
+
+        /* The claim's filename is never actually used - only needed so PHP
+         * would handle the field correctly. */
+        if (v2) {
+            post.addPart("cert" + suffix, "application/pkix-cert", "cert",
+                    cert.getEncoded());
+            post.addPart(new Part("claim" + suffix, claim.getMimeType(),
+                    "claim", Part.encode(content, CLAIM_ENCODING)));
+        } else {
+            post.addPart("cert" + suffix, getPEM(cert));
+            post.addPart(new Part("claim" + suffix, claim.getMimeType(),
+                    "claim", content));
+        }
+    }
+
+    /** Remembers whether the service advertised the compact protocol. */
+    private static void negotiate(String url, HttpPOST post) {
+        if (PROTOCOL_V2.equals(post.getResponseHeader(PROTOCOL_HEADER))) {
+            v2Services.add(url);
+        } else {
+            v2Services.remove(url);
+        }
+    }
+
+    /**
+     * Parses the response body into EncryptedData. The body is read to the
+     * end and closed, so the connection can be reused.
+     */
+    private static EncryptedData receive(InputStream resp)
+            throws DigiDocException, IOException {
+        try {
+            EncryptedDataParser parser = ConfigManager.instance()
+                    .getEncryptedDataParser();
+            return parser.readEncryptedData(resp);
+        } finally {
+            HttpPOST.drain(resp);
+        }
+    }
+
+    /**
+     * Streams a claim into the request, so the serialized container is never
+     * held in memory as a whole.
+     */
+    private static class ClaimContent implements Part.Content {
+
+        private Claim claim;
+
+        ClaimContent(Claim claim) {
+            this.claim = claim;
+        }
+
+        @Override
+        public long getLength() throws IOException {
+            try {
+                return claim.getLength();
+            } catch (DigiDocException e) {
+                throw new IOException("Could not serialize the claim", e);
+            }
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            try {
+                claim.writeTo(out);
+            } catch (DigiDocException e) {
+                throw new IOException("Could not serialize the claim", e);
+            }
+        }
+
+    }
+
+    /**
+     * A claim serialized once, to be sent to several replicas at once. A small
+     * claim is kept in memory, a larger one in a temporary file, which is
+     * deleted when the last one using it releases it.
+     */
+    private static class SerializedClaim implements Part.Content {
+
+        private byte[] bytes;
+        private TempFile file;
+        private long length;
+        private final AtomicInteger users = new AtomicInteger(1);
+
+        SerializedClaim(Claim claim) throws DigiDocException, IOException {
+            SpillingOutputStream out = new SpillingOutputStream();
+            try {
+                claim.writeTo(out);
+                out.close();
+            } catch (DigiDocException | IOException | RuntimeException e) {
+                out.discard();
+                throw e;
+            }
+            bytes = out.buf != null ? out.buf.toByteArray() : null;
+            file = out.file;
+            length = out.count;
+        }
+
+        /** Takes the content into use, until release() is called. */
+        void retain() {
+            users.incrementAndGet();
+        }
+
+        void release() {
+            if (users.decrementAndGet() == 0 && file != null) {
+                file.delete();
+            }
+        }
+
+        @Override
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            if (file != null) {
+                Files.copy(file.getFile().toPath(), out);
+            } else {
+                out.write(bytes);
+            }
+        }
+
+    }
+
+    /**
+     * Collects the bytes written to it in memory, moving them to a temporary
+     * file once there are more than HEDGE_SPILL_THRESHOLD of them.
+     */
+    private static class SpillingOutputStream extends OutputStream {
+
+        private ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        private TempFile file;
+        private OutputStream out;
+        private long count;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (out == null && count + len > HEDGE_SPILL_THRESHOLD) {
+                file = new TempFile("claim");
+                out = new BufferedOutputStream(Files.newOutputStream(
+                        file.getFile().toPath()));
+                buf.writeTo(out);
+                buf = null;
+            }
+            if (out != null) {
+                out.write(b, off, len);
+            } else {
+                buf.write(b, off, len);
+            }
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out != null) {
+                out.close();
+            }
+        }
+
+        /** Closes the stream and deletes the file, if any. */
+        void discard() {
+            try {
+                close();
+            } catch (IOException e) {
+                /* The file is deleted anyway. */
+            }
+            if (file != null) {
+                file.delete();
+            }
+        }
+
     }
 
 }
@@ -0,0 +1,215 @@
+package ee.cyber.eid.net;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of requests in flight to a service and adapts the limit
+ * to the latency the service shows.
+ * <p>
+ * The limit follows AIMD (additive increase, multiplicative decrease) driven
+ * by latency, in the spirit of TCP Vegas: the lowest latency seen is taken as
+ * the latency of an unloaded service. While requests complete within
+ * <tt>tolerance</tt> times that, the limit grows by one per limit's worth of
+ * requests. When a request is slower than that or is dropped (timeout, I/O
+ * error), the limit is multiplied by <tt>backoff</tt>, but only once per
+ * round trip: the requests that were already in flight when the limit was
+ * decreased do not decrease it again. The lowest latency drifts up towards
+ * the lowest one of each window of samples, so the limiter can follow a
+ * service whose baseline changes, but slowly enough for a sustained rise in
+ * latency to be taken for the overload it usually is.
+ * <p>
+ * Callers over the limit wait in a queue. If the queue is full or a caller
+ * waits longer than the queue timeout, it gets an OverloadException instead
+ * of adding to the load on the service.
+ */
+public class ConcurrencyLimiter {
+
+    /** After how many samples the lowest latency seen is adjusted. */
+    private static final int MIN_LATENCY_WINDOW = 1000;
+
+    /**
+     * How much of the way up to the lowest latency of a window the lowest
+     * latency seen moves at the end of the window.
+     */
+    private static final double MIN_LATENCY_DECAY = 0.1;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueue;
+    private final long queueTimeout;
+    private final double tolerance;
+    private final double backoff;
+
+    private double limit;
+    private int inFlight;
+    private int queued;
+    private long minLatency = Long.MAX_VALUE;
+    private long windowMinLatency = Long.MAX_VALUE;
+    private int samples;
+
+    /** When the limit was last decreased, in System.nanoTime() terms. */
+    private long lastDecrease = System.nanoTime();
+
+    /**
+     * Create a limiter with a limit between 1 and 64, starting at 4, a queue
+     * of 100 callers who wait at most 30 seconds, a latency tolerance of 2 and
+     * a backoff ratio of 0.9.
+     */
+    public ConcurrencyLimiter() {
+        this(4, 1, 64, 100, 30000, 2.0, 0.9);
+    }
+
+    /**
+     * Create a new limiter.
+     * @param initialLimit The limit to start with.
+     * @param minLimit The lowest the limit may go.
+     * @param maxLimit The highest the limit may go.
+     * @param maxQueue How many callers may wait for their turn.
+     * @param queueTimeout How long a caller may wait, in milliseconds.
+     * @param tolerance How many times the lowest latency seen a request may
+     *                  take before it is considered a sign of overload.
+     * @param backoff What the limit is multiplied with on overload.
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit,
+            int maxQueue, long queueTimeout, double tolerance,
+            double backoff) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit
+                || initialLimit > maxLimit || maxQueue < 0 || tolerance < 1
+                || backoff <= 0 || backoff >= 1) {
+            throw new IllegalArgumentException("Invalid limiter parameters");
+        }
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxQueue = maxQueue;
+        this.queueTimeout = queueTimeout;
+        this.tolerance = tolerance;
+        this.backoff = backoff;
+    }
+
+    /**
+     * Waits until a request may be sent to the service.
+     * Every successful call must be followed by a call to release().
+     * @return The start time of the request, to be given to release().
+     * @throws OverloadException If the queue is full or the wait timed out.
+     */
+    public long acquire() throws OverloadException, InterruptedException {
+        lock.lock();
+        try {
+            if (inFlight >= (int) limit) {
+                if (queued >= maxQueue) {
+                    throw new OverloadException("Too many requests waiting "
+                            + "for the service (limit " + (int) limit
+                            + ", queue " + queued + ")");
+                }
+
+                queued++;
+                try {
+                    long wait = TimeUnit.MILLISECONDS.toNanos(queueTimeout);
+                    while (inFlight >= (int) limit) {
+                        if (wait <= 0) {
+                            throw new OverloadException("Timed out waiting "
+                                    + "for the service (limit " + (int) limit
+                                    + ")");
+                        }
+                        wait = available.awaitNanos(wait);
+                    }
+                } finally {
+                    queued--;
+                }
+            }
+            inFlight++;
+            return System.nanoTime();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks a request as finished and adapts the limit.
+     * @param start The value returned by acquire().
+     * @param dropped Whether the request timed out or otherwise failed in a
+     *                way that indicates overload.
+     */
+    public void release(long start, boolean dropped) {
+        long latency = System.nanoTime() - start;
+        lock.lock();
+        try {
+            inFlight--;
+
+            if (!dropped) {
+                minLatency = Math.min(minLatency, latency);
+                windowMinLatency = Math.min(windowMinLatency, latency);
+            }
+            if (++samples >= MIN_LATENCY_WINDOW) {
+                samples = 0;
+                if (windowMinLatency != Long.MAX_VALUE) {
+                    minLatency += (long) ((windowMinLatency - minLatency)
+                            * MIN_LATENCY_DECAY);
+                }
+                windowMinLatency = Long.MAX_VALUE;
+            }
+
+            if (dropped || latency > minLatency * tolerance) {
+                /* A burst of slow responses to the requests sent before the
+                 * last decrease is one sign of overload, not many. */
+                if (start - lastDecrease >= 0) {
+                    limit = Math.max(minLimit, limit * backoff);
+                    lastDecrease = System.nanoTime();
+                }
+            } else if (inFlight * 2 >= (int) limit) {
+                /* Only grow when the limit is actually being used. */
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Is there room for another request without waiting? */
+    public boolean hasCapacity() {
+        lock.lock();
+        try {
+            return inFlight < (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the current limit of requests in flight. */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of requests in flight. */
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of callers waiting for their turn. */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+package ee.cyber.eid.net;
+
+/**
+ * One replica of the claim handling service, with the statistics needed to
+ * balance requests between replicas and to leave out unhealthy ones.
+ */
+public class Endpoint {
+
+    /** The weight of a new latency sample in the moving average. */
+    private static final double EWMA_ALPHA = 0.3;
+
+    /** The number of consecutive failures after which a replica is ejected. */
+    private static final int MAX_FAILURES = 3;
+
+    /** How long a replica is ejected for the first time, in milliseconds. */
+    private static final long BASE_EJECTION = 10000L;
+
+    /** The longest a replica is ejected for, in milliseconds. */
+    private static final long MAX_EJECTION = 300000L;
+
+    private final String url;
+
+    private int outstanding;
+    private double latency = -1;
+    private int failures;
+    private int ejections;
+    private long ejectedUntil;
+
+    public Endpoint(String url) {
+        this.url = url;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /** Returns the number of requests in flight to this replica. */
+    public synchronized int getOutstanding() {
+        return outstanding;
+    }
+
+    /**
+     * Returns the moving average of the latency in nanoseconds or -1 if no
+     * request has completed yet.
+     */
+    public synchronized double getLatency() {
+        return latency;
+    }
+
+    /**
+     * Is the replica healthy? A replica that has failed too many times in a
+     * row is left out until its ejection time has passed.
+     */
+    public synchronized boolean isHealthy(long now) {
+        return now >= ejectedUntil;
+    }
+
+    /** Returns the time in milliseconds until which the replica is ejected. */
+    public synchronized long getEjectedUntil() {
+        return ejectedUntil;
+    }
+
+    /** Marks the start of a request. */
+    public synchronized void start() {
+        outstanding++;
+    }
+
+    /**
+     * Marks the successful end of a request.
+     * @param nanos How long the request took.
+     */
+    public synchronized void success(long nanos) {
+        latency = latency < 0 ? nanos
+                : EWMA_ALPHA * nanos + (1 - EWMA_ALPHA) * latency;
+        success();
+    }
+
+    /**
+     * Marks the successful end of a request whose latency is not comparable
+     * to that of the others, e.g. a batch.
+     */
+    public synchronized void success() {
+        outstanding--;
+        failures = 0;
+        ejections = 0;
+    }
+
+    /**
+     * Marks a failed request. After MAX_FAILURES consecutive failures the
+     * replica is ejected, each time for twice as long as the time before.
+     */
+    public synchronized void failure() {
+        outstanding--;
+        if (++failures >= MAX_FAILURES) {
+            failures = 0;
+            long ejection = Math.min(MAX_EJECTION,
+                    BASE_EJECTION << Math.min(ejections, 16));
+            ejections++;
+            ejectedUntil = System.currentTimeMillis() + ejection;
+        }
+    }
+
+    /** Marks the end of a request that says nothing about the replica. */
+    public synchronized void cancel() {
+        outstanding--;
+    }
+
+    @Override
+    public String toString() {
+        return url;
+    }
+
+}
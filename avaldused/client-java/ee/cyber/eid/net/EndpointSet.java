@@ -0,0 +1,121 @@
+package ee.cyber.eid.net;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The replicas of the claim handling service to balance requests between.
+ * A request goes to the healthy replica with the least requests outstanding,
+ * ties are broken by the lower moving average of latency. If no replica is
+ * healthy, the one that comes back first is used anyway.
+ */
+public class EndpointSet {
+
+    /** The number of latency samples kept for percentiles. */
+    private static final int LATENCY_SAMPLES = 512;
+
+    private final List<Endpoint> endpoints;
+
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private int latencyCount;
+    private int latencyNext;
+
+    /** Create a set of the replicas at the given URLs. */
+    public EndpointSet(List<String> urls) {
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("No endpoints given");
+        }
+        List<Endpoint> list = new ArrayList<Endpoint>();
+        for (String url : urls) {
+            list.add(new Endpoint(url));
+        }
+        endpoints = Collections.unmodifiableList(list);
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    public int size() {
+        return endpoints.size();
+    }
+
+    /**
+     * Picks the replica to send the next request to.
+     * @param exclude A replica not to pick (e.g. the one that already has the
+     *                request), may be null.
+     * @return The replica or null if exclude is the only one.
+     */
+    public Endpoint select(Endpoint exclude) {
+        long now = System.currentTimeMillis();
+        Endpoint best = null;
+        Endpoint soonest = null;
+        for (Endpoint ep : endpoints) {
+            if (ep == exclude) {
+                continue;
+            }
+            if (!ep.isHealthy(now)) {
+                if (soonest == null
+                        || ep.getEjectedUntil() < soonest.getEjectedUntil()) {
+                    soonest = ep;
+                }
+                continue;
+            }
+            if (best == null || isBetter(ep, best)) {
+                best = ep;
+            }
+        }
+        return best != null ? best : soonest;
+    }
+
+    /** Returns the number of healthy replicas. */
+    public int countHealthy() {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (Endpoint ep : endpoints) {
+            if (ep.isHealthy(now)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Is a better than b? */
+    private static boolean isBetter(Endpoint a, Endpoint b) {
+        int diff = a.getOutstanding() - b.getOutstanding();
+        if (diff != 0) {
+            return diff < 0;
+        }
+        /* Replicas without a latency yet are tried first. */
+        return a.getLatency() < b.getLatency();
+    }
+
+    /** Records the latency of a successful request for percentiles. */
+    public synchronized void recordLatency(long nanos) {
+        latencies[latencyNext] = nanos;
+        latencyNext = (latencyNext + 1) % LATENCY_SAMPLES;
+        if (latencyCount < LATENCY_SAMPLES) {
+            latencyCount++;
+        }
+    }
+
+    /**
+     * Returns a percentile of the recent latencies in nanoseconds.
+     * @param percentile The percentile between 0 and 1, e.g. 0.95.
+     * @param minSamples The number of samples needed for a meaningful result.
+     * @return The latency or -1 if there are less than minSamples samples.
+     */
+    public synchronized long getLatencyPercentile(double percentile,
+            int minSamples) {
+        if (latencyCount == 0 || latencyCount < minSamples) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * latencyCount) - 1;
+        return sorted[Math.max(0, Math.min(index, latencyCount - 1))];
+    }
+
+}
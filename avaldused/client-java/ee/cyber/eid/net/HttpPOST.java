@@ -14,8 +14,15 @@ import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
 
 import ee.cyber.eid.EidException;
+import ee.cyber.eid.trace.HttpEvent;
+import ee.cyber.eid.trace.Trace;
 import ee.cyber.eid.util.Util;
 
 /** A multipart/form-data HTTP POST request. */
@@ -23,19 +30,47 @@ public class HttpPOST {
 
     private static final byte[] CRLF = new byte[] { '\r', '\n' };
 
+    /** The closing suffix of the last boundary. */
+    private static final byte[] BOUNDARY_END = new byte[] { '-', '-' };
+
+    /** The chunk length to use when the body's length is not known. */
+    private static final int CHUNK_LENGTH = 8192;
+
     private HttpURLConnection connection;
     private List<Part> parts = new ArrayList<Part>();
     private String boundary;
 
+    /** The HTTP status code of the response, -1 until it is known. */
+    private int status = -1;
+
     /** Create a new HTTP POST request for the given url. */
     public HttpPOST(String url) throws IOException {
+        this(url, null);
+    }
+
+    /**
+     * Create a new HTTP POST request for the given url.
+     * HttpURLConnection only reuses a kept-alive HTTPS connection for requests
+     * that use the same SSLSocketFactory instance, so pass the same factory to
+     * all the requests that should share connections and TLS sessions.
+     * @param url The url to post to.
+     * @param sslFactory The factory to create HTTPS sockets with or null to
+     *                   use the default one.
+     */
+    public HttpPOST(String url, SSLSocketFactory sslFactory)
+            throws IOException {
         boundary = generateBoundary();
 
         connection = (HttpURLConnection) new URL(url).openConnection();
+        if (sslFactory != null && connection instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) connection).setSSLSocketFactory(sslFactory);
+        }
         connection.setDoOutput(true);
         connection.setRequestMethod("POST");
         connection.setRequestProperty("Content-Type",
                 "multipart/form-data; boundary=" + boundary);
+        connection.setRequestProperty("Accept-Encoding",
+                Part.ENCODING_GZIP + ", " + Part.ENCODING_DEFLATE);
     }
 
     /** Add a part to the multipart form. */
@@ -59,16 +94,74 @@ public class HttpPOST {
      * The caller needs to close the returned stream itself.
      */
     public InputStream send() throws EidException, IOException {
-        /* Send our request. */
-        OutputStream out = new BufferedOutputStream(connection.getOutputStream());
-        writeTo(out);
-        out.close();
+        /* Stream the body straight into the connection rather than letting
+         * HttpURLConnection buffer all of it to find out its length. */
+        long length = getLength();
+        if (length >= 0) {
+            connection.setFixedLengthStreamingMode(length);
+        } else {
+            connection.setChunkedStreamingMode(CHUNK_LENGTH);
+        }
 
-        /* Check if the server responded with OK. */
-        checkResponse();
+        long start = Trace.start();
+        try {
+            /* Send our request. */
+            OutputStream out = new BufferedOutputStream(
+                    connection.getOutputStream());
+            writeTo(out);
+            out.close();
+
+            /* Check if the server responded with OK. */
+            checkResponse();
+        } finally {
+            if (start != 0) {
+                Trace.emit(new HttpEvent(start, HttpEvent.HTTP,
+                        connection.getURL().toString(), status));
+            }
+        }
 
         /* Return the response stream. */
-        return new BufferedInputStream(connection.getInputStream());
+        return decode(new BufferedInputStream(connection.getInputStream()),
+                connection.getContentEncoding());
+    }
+
+    /**
+     * Returns a stream that decompresses the given stream according to its
+     * content encoding.
+     * @param in The stream to decompress.
+     * @param encoding The content encoding of the stream, null if none.
+     */
+    public static InputStream decode(InputStream in, String encoding)
+            throws IOException {
+        if (Part.ENCODING_GZIP.equalsIgnoreCase(encoding)) {
+            return new GZIPInputStream(in);
+        } else if (Part.ENCODING_DEFLATE.equalsIgnoreCase(encoding)) {
+            return new InflaterInputStream(in);
+        }
+        return in;
+    }
+
+    /**
+     * Returns the value of a header of the response or null if there was no
+     * such header. Only meaningful after the request has been sent.
+     */
+    public String getResponseHeader(String name) {
+        return connection.getHeaderField(name);
+    }
+
+    /**
+     * Reads the rest of a response stream and closes it. A connection is only
+     * returned to the keep-alive pool if its response was read to the end.
+     */
+    public static void drain(InputStream in) throws IOException {
+        try {
+            byte[] buf = new byte[1024];
+            while (in.read(buf) != -1) {
+                /* Discard. */
+            }
+        } finally {
+            in.close();
+        }
     }
 
     /**
@@ -78,27 +171,65 @@ public class HttpPOST {
     private void checkResponse() throws IOException,
             UnsupportedEncodingException, EidException {
         int httpCode = connection.getResponseCode();
+        status = httpCode;
         if (httpCode != HttpURLConnection.HTTP_OK) {
-            /* Check the encoding of the error message. */
-            String charset = connection.getContentEncoding();
+            /* Check the character set of the error message. */
+            String charset = getCharset(connection.getContentType());
             if (charset == null) {
                 charset = StandardCharsets.UTF_8.name();
             }
 
             /* Read the error message the server gave us. */
             BufferedReader in = new BufferedReader(new InputStreamReader(
-                    connection.getErrorStream(), charset));
+                    decode(connection.getErrorStream(),
+                            connection.getContentEncoding()), charset));
             StringBuilder buf = new StringBuilder();
             String err;
             while ((err = in.readLine()) != null) {
                 buf.append(err);
             }
+            in.close();
 
             throw new EidException("Server responded with HTTP " + httpCode
                     + ": " + buf.toString());
         }
     }
 
+    /**
+     * Returns the length of the request's body in bytes or -1 if the length of
+     * any of the parts is not known in advance.
+     */
+    private long getLength() throws IOException {
+        if (parts.isEmpty()) {
+            return 0;
+        }
+        long boundaryLength = getBoundaryBytes().length;
+
+        long length = 0;
+        for (Part part : parts) {
+            long partLength = part.getLength();
+            if (partLength < 0) {
+                return -1;
+            }
+            length += boundaryLength + partLength + 2 * CRLF.length;
+        }
+        return length + boundaryLength + BOUNDARY_END.length;
+    }
+
+    /** Returns the charset parameter of a content type or null. */
+    private static String getCharset(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        for (String param : contentType.split(";")) {
+            param = param.trim();
+            if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+                return param.substring(8).replace("\"", "");
+            }
+        }
+        return null;
+    }
+
     /**
      * Writes the request's body.
      * Appends all the requested parts with multipart/form-data boundaries
@@ -109,19 +240,23 @@ public class HttpPOST {
         if (parts.isEmpty()) {
             return;
         }
-        /* Since we only have [0-9a-f\r\n] in the boundaries we can use
-         * 7bit ASCII. */
-        byte[] boundaryBytes = ("--" + boundary).getBytes(
-                StandardCharsets.US_ASCII);
+        byte[] boundaryBytes = getBoundaryBytes();
 
         for (Part part : parts) {
             out.write(boundaryBytes);
             out.write(CRLF);
-            out.write(part.toByteArray());
+            part.writeTo(out);
             out.write(CRLF);
         }
         out.write(boundaryBytes);
-        out.write(new byte[] { '-', '-' });
+        out.write(BOUNDARY_END);
+    }
+
+    /** Returns the boundary as it is written before each part. */
+    private byte[] getBoundaryBytes() {
+        /* Since we only have [0-9a-f\r\n] in the boundaries we can use
+         * 7bit ASCII. */
+        return ("--" + boundary).getBytes(StandardCharsets.US_ASCII);
     }
 
     /** Generates a multipart boundary. */
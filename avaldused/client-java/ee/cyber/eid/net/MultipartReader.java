@@ -0,0 +1,235 @@
+package ee.cyber.eid.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the parts of a multipart body one after another as they arrive.
+ * Each part's body is itself a stream, so large parts are never held in
+ * memory as a whole.
+ */
+public class MultipartReader {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private InputStream in;
+    private byte[] delimiter;
+    private byte[] buf;
+    private int pos;
+    private int limit;
+    private boolean eof;
+
+    /** The buffer index before which the delimiter is known not to start. */
+    private int scanned;
+
+    /** Are we positioned at the end of a part's body? */
+    private boolean atDelimiter;
+
+    /** Have we read the closing delimiter? */
+    private boolean finished;
+
+    private Map<String, String> headers;
+    private PartInputStream body;
+
+    /**
+     * Create a new reader for a multipart body.
+     * @param in The stream to read the body from.
+     * @param boundary The boundary separating the parts.
+     */
+    public MultipartReader(InputStream in, String boundary) {
+        this.in = in;
+        delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.US_ASCII);
+        buf = new byte[BUFFER_SIZE + delimiter.length];
+
+        /* The first boundary is not preceded by a line break, so pretend that
+         * there was one and handle the preamble as an empty part's body. */
+        buf[0] = '\r';
+        buf[1] = '\n';
+        limit = 2;
+    }
+
+    /**
+     * Returns the boundary parameter of a multipart content type or null if
+     * there is none.
+     */
+    public static String getBoundary(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        for (String param : contentType.split(";")) {
+            param = param.trim();
+            if (param.regionMatches(true, 0, "boundary=", 0, 9)) {
+                String boundary = param.substring(9);
+                if (boundary.length() > 1 && boundary.startsWith("\"")
+                        && boundary.endsWith("\"")) {
+                    boundary = boundary.substring(1, boundary.length() - 1);
+                }
+                return boundary;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves to the next part, skipping whatever is left of the current one.
+     * @return false if there are no more parts.
+     */
+    public boolean next() throws IOException {
+        if (finished) {
+            return false;
+        }
+        if (!atDelimiter) {
+            PartInputStream remaining = new PartInputStream();
+            byte[] skip = new byte[BUFFER_SIZE];
+            while (remaining.read(skip) != -1) {
+                /* Discard. */
+            }
+        }
+
+        /* Consume the delimiter and check whether it was the last one. */
+        pos += delimiter.length;
+        atDelimiter = false;
+        String rest = readLine();
+        if (rest.startsWith("--")) {
+            finished = true;
+            return false;
+        }
+
+        headers = new HashMap<String, String>();
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(),
+                        line.substring(colon + 1).trim());
+            }
+        }
+        body = new PartInputStream();
+        return true;
+    }
+
+    /**
+     * Returns a header of the current part or null if it was not given.
+     * @param name The case-insensitive name of the header.
+     */
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    /** Returns the body of the current part. */
+    public InputStream getBody() {
+        return body;
+    }
+
+    /** Reads an ASCII line terminated by CRLF, without the terminator. */
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            if (pos == limit && !fill()) {
+                /* The closing delimiter need not end with a line break. */
+                if (line.length() > 0) {
+                    return line.toString();
+                }
+                throw new IOException("Unexpected end of multipart body");
+            }
+            byte b = buf[pos++];
+            if (b == '\n') {
+                int len = line.length();
+                if (len > 0 && line.charAt(len - 1) == '\r') {
+                    line.setLength(len - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) (b & 0xff));
+        }
+    }
+
+    /**
+     * Reads more data into the buffer, keeping the unread bytes.
+     * @return false if the stream has ended and nothing more was read.
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            scanned = Math.max(0, scanned - pos);
+            pos = 0;
+        }
+        int n = in.read(buf, limit, buf.length - limit);
+        if (n == -1) {
+            eof = true;
+            return false;
+        }
+        limit += n;
+        return true;
+    }
+
+    /** Returns the index of the delimiter in the buffer or -1. */
+    private int findDelimiter() {
+        outer:
+        for (int i = Math.max(pos, scanned); i <= limit - delimiter.length;
+                i++) {
+            for (int j = 0; j < delimiter.length; j++) {
+                if (buf[i + j] != delimiter[j]) {
+                    continue outer;
+                }
+            }
+            scanned = i;
+            return i;
+        }
+        scanned = Math.max(pos, limit - delimiter.length + 1);
+        return -1;
+    }
+
+    /** The body of one part, ending at the next delimiter. */
+    private class PartInputStream extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (atDelimiter) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+
+            /* Make sure we have enough data to recognize the delimiter. */
+            while (limit - pos < delimiter.length && fill()) {
+                /* Keep reading. */
+            }
+
+            int found = findDelimiter();
+            int available;
+            if (found == pos) {
+                atDelimiter = true;
+                return -1;
+            } else if (found > pos) {
+                available = found - pos;
+            } else if (eof) {
+                throw new IOException("Unexpected end of multipart body");
+            } else {
+                /* The end of the buffer might be the start of a delimiter. */
+                available = limit - pos - delimiter.length + 1;
+            }
+
+            int n = Math.min(len, available);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+    }
+
+}
@@ -0,0 +1,17 @@
+package ee.cyber.eid.net;
+
+import ee.cyber.eid.EidException;
+
+/**
+ * Thrown when a request is not sent, because the service is already loaded
+ * to its current limit and the caller would have to wait too long.
+ */
+public class OverloadException extends EidException {
+
+    private static final long serialVersionUID = 1L;
+
+    public OverloadException(String message) {
+        super(message);
+    }
+
+}
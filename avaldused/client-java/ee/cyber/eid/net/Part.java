@@ -2,7 +2,17 @@ package ee.cyber.eid.net;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import ee.cyber.eid.util.UnclosableOutputStream;
 
 /**
  * A multipart/form-data part.
@@ -10,10 +20,34 @@ import java.nio.charset.StandardCharsets;
  */
 public class Part {
 
+    /** The size of the buffer used when copying streamed content. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** Content encoding for gzip compressed content. */
+    public static final String ENCODING_GZIP = "gzip";
+
+    /** Content encoding for zlib (RFC 1950) compressed content. */
+    public static final String ENCODING_DEFLATE = "deflate";
+
+    /**
+     * The body of a part. Implementations write their data straight into the
+     * request stream, so the content never has to be held in memory as a
+     * whole.
+     */
+    public interface Content {
+
+        /** Returns the length of the content in bytes or -1 if unknown. */
+        long getLength() throws IOException;
+
+        /** Writes the content to the given stream. */
+        void writeTo(OutputStream out) throws IOException;
+
+    }
+
     private String field;
     private String type;
     private String filename;
-    private byte[] content;
+    private Content content;
 
     /**
      * Construct a new multipart/form-data part.
@@ -32,14 +66,104 @@ public class Part {
      * @param content The contents of that field
      */
     public Part(String field, String type, String filename, byte[] content) {
+        this(field, type, filename, new ByteArrayContent(content));
+    }
+
+    /**
+     * Construct a new multipart/form-data part that is read from a stream.
+     * The stream is read only once, when the request is sent, and it is not
+     * closed afterwards.
+     * @param field The name of the form field.
+     * @param type The field's content-type.
+     * @param filename The name of the uploaded file (null if it's not a file).
+     * @param in The stream to read the contents of that field from.
+     * @param length The number of bytes in the stream or -1 if unknown.
+     */
+    public Part(String field, String type, String filename, InputStream in,
+            long length) {
+        this(field, type, filename, new StreamContent(in, length));
+    }
+
+    /**
+     * Construct a new multipart/form-data part that is read from a channel.
+     * The channel is read only once, when the request is sent, and it is not
+     * closed afterwards.
+     * @param field The name of the form field.
+     * @param type The field's content-type.
+     * @param filename The name of the uploaded file (null if it's not a file).
+     * @param channel The channel to read the contents of that field from.
+     * @param length The number of bytes in the channel or -1 if unknown.
+     */
+    public Part(String field, String type, String filename,
+            ReadableByteChannel channel, long length) {
+        this(field, type, filename, new ChannelContent(channel, length));
+    }
+
+    /**
+     * Construct a new multipart/form-data part with the contents of a file.
+     * @param field The name of the form field.
+     * @param type The field's content-type.
+     * @param filename The name of the uploaded file (null if it's not a file).
+     * @param path The file to read the contents of that field from.
+     */
+    public Part(String field, String type, String filename, Path path) {
+        this(field, type, filename, new FileContent(path));
+    }
+
+    /**
+     * Construct a new multipart/form-data part.
+     * @param field The name of the form field.
+     * @param type The field's content-type.
+     * @param filename The name of the uploaded file (null if it's not a file).
+     * @param content The source of the contents of that field.
+     */
+    public Part(String field, String type, String filename, Content content) {
         this.field = field;
         this.type = type;
         this.filename = filename;
         this.content = content;
     }
 
+    /**
+     * Returns content that compresses the given content while it is written.
+     * The compressed length is not known in advance, so a request with such a
+     * part is sent in chunks.
+     * @param content The content to compress.
+     * @param encoding ENCODING_GZIP or ENCODING_DEFLATE.
+     */
+    public static Content encode(Content content, String encoding) {
+        if (!ENCODING_GZIP.equals(encoding)
+                && !ENCODING_DEFLATE.equals(encoding)) {
+            throw new IllegalArgumentException("Unsupported encoding: "
+                    + encoding);
+        }
+        return new EncodedContent(content, encoding);
+    }
+
+    /**
+     * Returns the length of the part, including its headers, in bytes or -1
+     * if the length of the content is not known in advance.
+     */
+    public long getLength() throws IOException {
+        long length = content.getLength();
+        return length < 0 ? -1 : getHeader().length + length;
+    }
+
+    /** Writes the multipart/form-data part to the given stream. */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(getHeader());
+        content.writeTo(out);
+    }
+
     /** Returns the multipart/form-data part as a byte array. */
     public byte[] toByteArray() throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        writeTo(buf);
+        return buf.toByteArray();
+    }
+
+    /** Returns the headers of the part, including the separating CRLF. */
+    private byte[] getHeader() {
         StringBuilder header = new StringBuilder();
         header.append("Content-Disposition: form-data; name=\"" + field + '\"');
         if (filename != null) {
@@ -54,10 +178,133 @@ public class Part {
         /* Since the field names and content types we use in the header are all
          * 7bit ASCII encodable, then we don't need to worry about other
          * character sets. Very unportable, but suits our needs nicely. */
-        ByteArrayOutputStream buf = new ByteArrayOutputStream();
-        buf.write(header.toString().getBytes(StandardCharsets.US_ASCII));
-        buf.write(content);
-        return buf.toByteArray();
+        return header.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /** Content that is already in memory. */
+    private static class ByteArrayContent implements Content {
+
+        private byte[] data;
+
+        ByteArrayContent(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public long getLength() {
+            return data.length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(data);
+        }
+
+    }
+
+    /** Content that is copied from an InputStream. */
+    private static class StreamContent implements Content {
+
+        private InputStream in;
+        private long length;
+
+        StreamContent(InputStream in, long length) {
+            this.in = in;
+            this.length = length;
+        }
+
+        @Override
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            byte[] buf = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+        }
+
+    }
+
+    /** Content that is copied from a ReadableByteChannel. */
+    private static class ChannelContent implements Content {
+
+        private ReadableByteChannel channel;
+        private long length;
+
+        ChannelContent(ReadableByteChannel channel, long length) {
+            this.channel = channel;
+            this.length = length;
+        }
+
+        @Override
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+            while (channel.read(buf) != -1) {
+                out.write(buf.array(), 0, buf.position());
+                buf.clear();
+            }
+        }
+
+    }
+
+    /** Content that is compressed while it is written. */
+    private static class EncodedContent implements Content {
+
+        private Content content;
+        private String encoding;
+
+        EncodedContent(Content content, String encoding) {
+            this.content = content;
+            this.encoding = encoding;
+        }
+
+        @Override
+        public long getLength() {
+            return -1;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            /* Closing the compressing stream finishes it and releases the
+             * native compressor, but must not close the request. */
+            OutputStream unclosable = new UnclosableOutputStream(out);
+            DeflaterOutputStream zip = ENCODING_GZIP.equals(encoding)
+                    ? new GZIPOutputStream(unclosable, BUFFER_SIZE)
+                    : new DeflaterOutputStream(unclosable);
+            content.writeTo(zip);
+            zip.close();
+        }
+
+    }
+
+    /** Content that is copied from a file. */
+    private static class FileContent implements Content {
+
+        private Path path;
+
+        FileContent(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        public long getLength() throws IOException {
+            return Files.size(path);
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            Files.copy(path, out);
+        }
+
     }
 
 }
@@ -0,0 +1,64 @@
+package ee.cyber.eid.trace;
+
+/** A command sent to a card and its response. */
+public class ApduEvent extends TraceEvent {
+
+    private final int ins;
+    private final int p1;
+    private final int p2;
+    private final int responseLength;
+    private final int sw;
+
+    /**
+     * Create a new event.
+     * @param start The start time from Trace.start().
+     * @param ins The instruction byte of the command.
+     * @param p1 The P1 byte of the command.
+     * @param p2 The P2 byte of the command.
+     * @param responseLength The length of the response data, -1 if the
+     *                       exchange failed.
+     * @param sw The status word of the response, -1 if the exchange failed.
+     */
+    public ApduEvent(long start, int ins, int p1, int p2, int responseLength,
+            int sw) {
+        super(start);
+        this.ins = ins;
+        this.p1 = p1;
+        this.p2 = p2;
+        this.responseLength = responseLength;
+        this.sw = sw;
+    }
+
+    @Override
+    public String getType() {
+        return "apdu";
+    }
+
+    @Override
+    public String getDetails() {
+        return String.format("ins=%02X p1=%02X p2=%02X length=%d sw=%s", ins,
+                p1, p2, responseLength,
+                sw < 0 ? "none" : String.format("%04X", sw));
+    }
+
+    public int getIns() {
+        return ins;
+    }
+
+    public int getP1() {
+        return p1;
+    }
+
+    public int getP2() {
+        return p2;
+    }
+
+    public int getResponseLength() {
+        return responseLength;
+    }
+
+    public int getSw() {
+        return sw;
+    }
+
+}
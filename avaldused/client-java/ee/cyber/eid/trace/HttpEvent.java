@@ -0,0 +1,52 @@
+package ee.cyber.eid.trace;
+
+/**
+ * A call to a remote service: an HTTP request to the claim handling service
+ * or an OCSP request.
+ */
+public class HttpEvent extends TraceEvent {
+
+    /** A request to the claim handling service. */
+    public static final String HTTP = "http";
+
+    /** An OCSP request made through JDigiDoc. */
+    public static final String OCSP = "ocsp";
+
+    private final String protocol;
+    private final String target;
+    private final int status;
+
+    /**
+     * Create a new event.
+     * @param start The start time from Trace.start().
+     * @param protocol HTTP or OCSP.
+     * @param target The URL or, for OCSP, the certificate checked.
+     * @param status The HTTP status code, 0 for OCSP and -1 if the call
+     *               failed.
+     */
+    public HttpEvent(long start, String protocol, String target, int status) {
+        super(start);
+        this.protocol = protocol;
+        this.target = target;
+        this.status = status;
+    }
+
+    @Override
+    public String getType() {
+        return protocol;
+    }
+
+    @Override
+    public String getDetails() {
+        return "target=" + target + " status=" + status;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+}
@@ -0,0 +1,57 @@
+package ee.cyber.eid.trace;
+
+/** An operation with a token through JDigiDoc's signature factory. */
+public class TokenEvent extends TraceEvent {
+
+    /** Reading a certificate. */
+    public static final String GET_CERTIFICATE = "getCertificate";
+
+    /** Signing with the authentication or the signing key. */
+    public static final String SIGN = "sign";
+
+    /** Decrypting with the authentication key. */
+    public static final String DECRYPT = "decrypt";
+
+    private final String operation;
+    private final int tokenIndex;
+    private final boolean success;
+
+    /**
+     * Create a new event.
+     * @param start The start time from Trace.start().
+     * @param operation The operation, e.g. SIGN.
+     * @param tokenIndex The index of the token.
+     * @param success Whether the operation succeeded.
+     */
+    public TokenEvent(long start, String operation, int tokenIndex,
+            boolean success) {
+        super(start);
+        this.operation = operation;
+        this.tokenIndex = tokenIndex;
+        this.success = success;
+    }
+
+    @Override
+    public String getType() {
+        return "token";
+    }
+
+    @Override
+    public String getDetails() {
+        return "operation=" + operation + " token=" + tokenIndex + " success="
+                + success;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public int getTokenIndex() {
+        return tokenIndex;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+}
@@ -0,0 +1,87 @@
+package ee.cyber.eid.trace;
+
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Timing events for the card, token and network operations of the client:
+ * every APDU exchanged, every token operation (reading a certificate,
+ * signing, decrypting) and every HTTP and OCSP call.
+ * <p>
+ * Nothing is measured while there are no listeners, so the instrumented code
+ * only pays for reading a volatile flag. The instrumented code follows the
+ * pattern:
+ * <pre>
+ * long start = Trace.start();
+ * ...
+ * if (start != 0) {
+ *     Trace.emit(new SomeEvent(start, ...));
+ * }
+ * </pre>
+ * Setting the system property <tt>ee.cyber.eid.trace</tt> to a file name
+ * (or "-" for stderr) logs all events there with TraceLog, one per line.
+ */
+public class Trace {
+
+    /** The system property naming the file to log the events to. */
+    public static final String LOG_PROPERTY = "ee.cyber.eid.trace";
+
+    private static final List<TraceListener> listeners =
+            new CopyOnWriteArrayList<TraceListener>();
+    private static volatile boolean enabled;
+
+    static {
+        String log = System.getProperty(LOG_PROPERTY);
+        if (log != null && !log.isEmpty()) {
+            try {
+                addListener(new TraceLog("-".equals(log) ? System.err
+                        : new PrintStream(new FileOutputStream(log, true),
+                                true)));
+            } catch (FileNotFoundException e) {
+                System.err.println("Cannot open the trace log: " + e);
+            }
+        }
+    }
+
+    /** Is anybody listening to the events? */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the start time of an operation to trace in nanoseconds, or 0
+     * if tracing is disabled.
+     */
+    public static long start() {
+        if (!enabled) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        return now != 0 ? now : 1;
+    }
+
+    /** Sends an event to the listeners. */
+    public static void emit(TraceEvent event) {
+        for (TraceListener l : listeners) {
+            try {
+                l.traced(event);
+            } catch (RuntimeException e) {
+                System.err.println("Trace listener failed: " + e);
+            }
+        }
+    }
+
+    public static synchronized void addListener(TraceListener listener) {
+        listeners.add(listener);
+        enabled = true;
+    }
+
+    public static synchronized void removeListener(TraceListener listener) {
+        listeners.remove(listener);
+        enabled = !listeners.isEmpty();
+    }
+
+}
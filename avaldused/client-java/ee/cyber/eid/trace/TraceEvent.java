@@ -0,0 +1,49 @@
+package ee.cyber.eid.trace;
+
+/** A timed operation. */
+public abstract class TraceEvent {
+
+    private final long start;
+    private final long duration;
+    private final String thread;
+
+    /**
+     * Create an event for an operation that started at the given time and
+     * ended now.
+     * @param start The start time from Trace.start().
+     */
+    protected TraceEvent(long start) {
+        this.start = start;
+        this.duration = System.nanoTime() - start;
+        this.thread = Thread.currentThread().getName();
+    }
+
+    /** Returns the type of the event, e.g. "apdu". */
+    public abstract String getType();
+
+    /** Returns the details of the event as "key=value" pairs. */
+    public abstract String getDetails();
+
+    /** Returns the start time as given by System.nanoTime(). */
+    public long getStart() {
+        return start;
+    }
+
+    /** Returns the duration in nanoseconds. */
+    public long getDuration() {
+        return duration;
+    }
+
+    /** Returns the name of the thread that did the operation. */
+    public String getThread() {
+        return thread;
+    }
+
+    @Override
+    public String toString() {
+        return getType() + ' ' + getDetails() + " duration="
+                + String.format("%.3fms", duration / 1e6) + " thread="
+                + thread;
+    }
+
+}
@@ -0,0 +1,11 @@
+package ee.cyber.eid.trace;
+
+/**
+ * Receives the events of Trace. Called on the thread that did the operation,
+ * so implementations must be thread-safe and quick.
+ */
+public interface TraceListener {
+
+    void traced(TraceEvent event);
+
+}
@@ -0,0 +1,21 @@
+package ee.cyber.eid.trace;
+
+import java.io.PrintStream;
+
+/** Writes the events to a stream, one per line. */
+public class TraceLog implements TraceListener {
+
+    private PrintStream out;
+
+    public TraceLog(PrintStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void traced(TraceEvent event) {
+        /* println is synchronized, so lines from different threads do not
+         * get mixed. */
+        out.println(event);
+    }
+
+}
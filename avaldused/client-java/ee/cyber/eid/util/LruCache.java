@@ -0,0 +1,109 @@
+package ee.cyber.eid.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache whose entries expire after a while. When the cache is full,
+ * the least recently used entry is evicted. All methods are synchronized.
+ * @param <K> The type of the keys.
+ * @param <V> The type of the values.
+ */
+public class LruCache<K, V> {
+
+    private final int capacity;
+    private long ttl;
+    private final LinkedHashMap<K, CacheEntry<V>> map;
+
+    /**
+     * Create a new cache.
+     * @param capacity The largest number of entries kept.
+     * @param ttl How long an entry is kept, in milliseconds. 0 disables the
+     *            cache.
+     */
+    public LruCache(int capacity, long ttl) {
+        if (capacity < 1 || ttl < 0) {
+            throw new IllegalArgumentException("Invalid cache parameters");
+        }
+        this.capacity = capacity;
+        this.ttl = ttl;
+        map = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<K, CacheEntry<V>> e) {
+                return size() > LruCache.this.capacity;
+            }
+        };
+    }
+
+    /** Returns the value for the key or null if there is none or it expired. */
+    public synchronized V get(K key) {
+        CacheEntry<V> e = map.get(key);
+        if (e == null) {
+            return null;
+        }
+        if (isExpired(e)) {
+            map.remove(key);
+            return null;
+        }
+        return e.value;
+    }
+
+    /** Puts a value into the cache, unless the cache is disabled. */
+    public synchronized void put(K key, V value) {
+        if (ttl > 0) {
+            map.put(key, new CacheEntry<V>(value,
+                    System.currentTimeMillis()));
+        }
+    }
+
+    public synchronized void remove(K key) {
+        map.remove(key);
+    }
+
+    public synchronized void clear() {
+        map.clear();
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    public synchronized long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * Sets how long entries are kept, in milliseconds. 0 disables the cache
+     * and empties it.
+     */
+    public synchronized void setTtl(long ttl) {
+        if (ttl < 0) {
+            throw new IllegalArgumentException("TTL must not be negative");
+        }
+        this.ttl = ttl;
+        if (ttl == 0) {
+            map.clear();
+        }
+    }
+
+    private boolean isExpired(CacheEntry<V> e) {
+        return System.currentTimeMillis() - e.created >= ttl;
+    }
+
+    /** A cached value with the time it was put into the cache. */
+    private static class CacheEntry<V> {
+
+        private final V value;
+        private final long created;
+
+        CacheEntry(V value, long created) {
+            this.value = value;
+            this.created = created;
+        }
+
+    }
+
+}
@@ -3,29 +3,44 @@ package ee.cyber.eid.util;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A helper for creating temporary files, since JDigiDoc insists on handling
  * everything as Files.
  * Uses java.nio.file package classes that require at least JDK 1.7.
+ * <p>
+ * Delete the files with delete() when done with them. The files not deleted
+ * by then are deleted when the JVM exits, together with the temporary
+ * directory.
  */
 public class TempFile {
 
     public static final String MIME_TYPE = "text/plain";
 
     private static Path path;
+
+    /** The files not deleted yet. */
+    private static final Set<TempFile> live = Collections.newSetFromMap(
+            new ConcurrentHashMap<TempFile, Boolean>());
+
     private Path file;
 
     public TempFile(String name) throws IOException {
-        if (path == null) {
-            path = Files.createTempDirectory("eid");
-            path.toFile().deleteOnExit(); // FIXME doesn't seem to work
-        }
-        file = Files.createFile(Paths.get(path.toString(), name));
+        Path root = getRoot();
+        /* Every file gets a directory of its own, so several containers can
+         * be built at once and the file still keeps the given name. */
+        Path dir = Files.createTempDirectory(root, name);
+        file = Files.createFile(dir.resolve(name));
+        live.add(this);
     }
 
     public TempFile(String name, String content) throws IOException {
@@ -33,14 +48,69 @@ public class TempFile {
         writeToFile(content);
     }
 
+    public TempFile(String name, ByteBuffer content) throws IOException {
+        this(name);
+        writeToFile(content);
+    }
+
+    /**
+     * Returns the directory of all the temporary files, creating it the
+     * first time. Also sets up deleting the files left when the JVM exits:
+     * File.deleteOnExit() can't delete a directory that is not empty and its
+     * list of files only grows.
+     */
+    private static synchronized Path getRoot() throws IOException {
+        if (path == null) {
+            path = Files.createTempDirectory("eid");
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (TempFile f : live) {
+                        f.delete();
+                    }
+                    try {
+                        Files.deleteIfExists(path);
+                    } catch (IOException e) {
+                        /* Something else was put there, leave it. */
+                    }
+                }
+            }, "temp-file-cleanup"));
+        }
+        return path;
+    }
+
     public void writeToFile(String content) throws IOException {
         BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
         out.write(content);
         out.close();
     }
 
+    /** Writes the remaining bytes of the buffer to the file. */
+    public void writeToFile(ByteBuffer content) throws IOException {
+        FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            while (content.hasRemaining()) {
+                out.write(content);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
     public File getFile() {
         return file.toFile();
     }
 
+    /** Deletes the file and its directory. */
+    public void delete() {
+        live.remove(this);
+        try {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(file.getParent());
+        } catch (IOException e) {
+            System.err.println("Could not delete " + file + ": " + e);
+        }
+    }
+
 }
@@ -0,0 +1,28 @@
+package ee.cyber.eid.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An OutputStream that only flushes the underlying stream on close.
+ * Useful for handing a stream we keep writing to over to code that insists on
+ * closing it.
+ */
+public class UnclosableOutputStream extends FilterOutputStream {
+
+    public UnclosableOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+}
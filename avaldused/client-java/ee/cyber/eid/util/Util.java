@@ -4,8 +4,8 @@ import java.io.Console;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
 
-import javax.security.auth.x500.X500Principal;
-
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1String;
 import org.bouncycastle.asn1.x500.RDN;
 import org.bouncycastle.asn1.x500.X500Name;
 import org.bouncycastle.asn1.x500.style.BCStyle;
@@ -47,21 +47,23 @@ public class Util {
     }
 
     /**
-     * Get the subject's common name from the certificate.
+     * Get the subject's common name from the certificate. The subject is
+     * parsed every time; CertificateIdentity caches it.
      * @param cert The subject's certificate.
      * @return The subject's CN.
      */
     public static String getSubjectCN(X509Certificate cert) {
-        /* Get the subject's DN. */
-        X500Principal principal = cert.getSubjectX500Principal();
-        X500Name x500dn = new X500Name(principal.getName());
-
-        /* Get the subject's CN from the DN. */
-        RDN cn = x500dn.getRDNs(BCStyle.CN)[0];
-        String escaped = IETFUtils.valueToString(cn.getFirst().getValue());
-
-        /* The returned CN has extra escaping - remove it. */
-        return escaped.replaceAll("\\\\", "");
+        X500Name subject = X500Name.getInstance(
+                cert.getSubjectX500Principal().getEncoded());
+        RDN[] cns = subject.getRDNs(BCStyle.CN);
+        if (cns.length == 0) {
+            return null;
+        }
+        /* A string value is taken as is, IETFUtils would escape the commas
+         * of an EstEID CN. */
+        ASN1Encodable cn = cns[0].getFirst().getValue();
+        return cn instanceof ASN1String ? ((ASN1String) cn).getString()
+                : IETFUtils.valueToString(cn);
     }
 
 }
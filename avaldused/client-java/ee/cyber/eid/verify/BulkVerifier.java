@@ -0,0 +1,369 @@
+package ee.cyber.eid.verify;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ee.sk.digidoc.DigiDocException;
+import ee.sk.utils.ConfigManager;
+
+/**
+ * Verifies all the DDOC and BDOC containers in directory trees again, e.g.
+ * after a change in the trusted certificates, and writes a line of JSON
+ * about each container as soon as it is done.
+ * <p>
+ * The trees are walked as the containers get verified, not listed first, and
+ * the containers being verified may take up only so many bytes in total: the
+ * walk waits until there is room. With a checkpoint file, the paths of the
+ * containers done are recorded in it, and a run started again with the same
+ * checkpoint skips them. A container whose result was written but not yet
+ * recorded when the run was interrupted is verified again, so the output may
+ * have it twice.
+ * Usage: java BulkVerifier [-cfg config] [-out results.ndjson]
+ *        [-checkpoint file] [-threads n] [-memory MB] dir...
+ */
+public class BulkVerifier {
+
+    /** Default place to look for the configuration file. */
+    private static final String DEFAULT_CONF = "jdigidoc.cfg";
+
+    /** How many containers may be in the works per thread. */
+    private static final int QUEUE_PER_THREAD = 4;
+
+    /** How often to report the progress, in milliseconds. */
+    private static final long PROGRESS_INTERVAL = 10000L;
+
+    private final VerificationEngine engine;
+    private final Writer out;
+    private final Writer checkpoint;
+    private final Set<String> done;
+
+    /** The containers in the works and the kilobytes they take up. */
+    private final Semaphore queue;
+    private final Semaphore memory;
+    private final int maxQueue;
+    private final int maxMemory;
+
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong invalid = new AtomicLong();
+    private final AtomicLong signatures = new AtomicLong();
+    private final AtomicLong failedSignatures = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final long start = System.nanoTime();
+    private long lastProgress = System.currentTimeMillis();
+
+    /**
+     * Create a verifier.
+     * @param engine The engine to verify the containers with.
+     * @param out Where to write the results.
+     * @param checkpoint Where to record the containers done, or null.
+     * @param done The paths of the containers done already.
+     * @param threads The number of threads of the engine.
+     * @param memoryKb The total size of the containers in the works.
+     */
+    public BulkVerifier(VerificationEngine engine, Writer out,
+            Writer checkpoint, Set<String> done, int threads, int memoryKb) {
+        this.engine = engine;
+        this.out = out;
+        this.checkpoint = checkpoint;
+        this.done = done;
+        maxQueue = threads * QUEUE_PER_THREAD;
+        maxMemory = memoryKb;
+        queue = new Semaphore(maxQueue);
+        memory = new Semaphore(maxMemory);
+    }
+
+    /** Walks the directory tree, verifying every container in it. */
+    public void verifyTree(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file,
+                    BasicFileAttributes attrs) throws IOException {
+                if (attrs.isRegularFile() && isContainer(file)) {
+                    submit(file, attrs.size());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file,
+                    IOException e) {
+                /* An unreadable directory must not end the whole run. */
+                System.err.println("Skipping " + file + ": " + e);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /** Waits until all the containers submitted are done. */
+    public void await() throws InterruptedException {
+        queue.acquire(maxQueue);
+        queue.release(maxQueue);
+    }
+
+    /** Verifies a container once there is room for it. */
+    private void submit(Path file, long size) throws IOException {
+        String path = file.toString();
+        if (done.contains(path)) {
+            skipped.incrementAndGet();
+            return;
+        }
+        /* A container bigger than the limit gets it all to itself. */
+        final int kb = (int) Math.max(1, Math.min(maxMemory, size >> 10));
+        try {
+            queue.acquire();
+            memory.acquire(kb);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        }
+        engine.submit(file, new VerificationEngine.Listener() {
+            @Override
+            public void containerVerified(ContainerResult result) {
+                try {
+                    record(result);
+                } finally {
+                    memory.release(kb);
+                    queue.release();
+                }
+            }
+        });
+    }
+
+    /** Writes the result of a container and counts it. */
+    private void record(ContainerResult result) {
+        files.incrementAndGet();
+        if (!result.isValid()) {
+            invalid.incrementAndGet();
+        }
+        signatures.addAndGet(result.getSignatures().size());
+        failedSignatures.addAndGet(result.countFailedSignatures());
+
+        String line = toJson(result);
+        synchronized (this) {
+            try {
+                out.write(line);
+                out.write('\n');
+                out.flush();
+                if (checkpoint != null) {
+                    checkpoint.write(result.getName());
+                    checkpoint.write('\n');
+                    checkpoint.flush();
+                }
+            } catch (IOException e) {
+                System.err.println("Could not write the result of "
+                        + result.getName() + ": " + e);
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastProgress >= PROGRESS_INTERVAL) {
+                lastProgress = now;
+                System.err.println(getProgress());
+            }
+        }
+    }
+
+    /** Returns the counts so far and the rates. */
+    public String getProgress() {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return String.format("%d files (%d invalid, %d skipped), "
+                + "%d signatures (%d failed) in %.1f s: %.1f files/s, "
+                + "%.1f signatures/s", files.get(), invalid.get(),
+                skipped.get(), signatures.get(), failedSignatures.get(),
+                seconds, files.get() / seconds, signatures.get() / seconds);
+    }
+
+    public long getInvalid() {
+        return invalid.get();
+    }
+
+    /** Is the file a DDOC or BDOC container, judging by its name? */
+    public static boolean isContainer(Path file) {
+        return file.getFileName().toString().toLowerCase().endsWith(".ddoc")
+                || VerificationEngine.isBdoc(file);
+    }
+
+    /** Returns the result of a container as one line of JSON. */
+    static String toJson(ContainerResult result) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"file\":");
+        appendString(sb, result.getName());
+        sb.append(",\"valid\":").append(result.isValid());
+        sb.append(",\"millis\":").append(result.getNanos() / 1000000);
+        sb.append(",\"errors\":");
+        appendErrors(sb, result.getErrors());
+        sb.append(",\"signatures\":[");
+        for (int i = 0; i < result.getSignatures().size(); i++) {
+            SignatureResult s = result.getSignatures().get(i);
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"id\":");
+            appendString(sb, s.getId());
+            sb.append(",\"valid\":").append(s.isValid());
+            sb.append(",\"errors\":");
+            appendErrors(sb, s.getErrors());
+            sb.append('}');
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    private static void appendErrors(StringBuilder sb,
+            List<DigiDocException> errors) {
+        sb.append('[');
+        for (int i = 0; i < errors.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"code\":").append(errors.get(i).getCode())
+                    .append(",\"message\":");
+            appendString(sb, errors.get(i).getMessage());
+            sb.append('}');
+        }
+        sb.append(']');
+    }
+
+    /** Appends a JSON string, escaped. */
+    private static void appendString(StringBuilder sb, String s) {
+        if (s == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    /** Reads the paths of the containers done from a checkpoint file. */
+    private static Set<String> readCheckpoint(Path file) throws IOException {
+        Set<String> done = new HashSet<String>();
+        if (!Files.exists(file)) {
+            return done;
+        }
+        BufferedReader in = Files.newBufferedReader(file,
+                StandardCharsets.UTF_8);
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    done.add(line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return done;
+    }
+
+    public static void main(String[] argv) throws Exception {
+        String cfg = DEFAULT_CONF;
+        String outFile = null;
+        String checkpointFile = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int memoryMb = 256;
+        List<Path> dirs = new ArrayList<Path>();
+
+        /* Parse the arguments. */
+        for (int i = 0; i < argv.length; i++) {
+            String option = argv[i];
+            if (!option.startsWith("-")) {
+                dirs.add(Paths.get(option));
+                continue;
+            }
+            if (i + 1 == argv.length) {
+                System.err.println("No parameter given after '" + option
+                        + "'.");
+                return;
+            }
+            String value = argv[++i];
+            if ("-cfg".equals(option)) {
+                cfg = value;
+            } else if ("-out".equals(option)) {
+                outFile = value;
+            } else if ("-checkpoint".equals(option)) {
+                checkpointFile = value;
+            } else if ("-threads".equals(option)) {
+                threads = Integer.parseInt(value);
+            } else if ("-memory".equals(option)) {
+                memoryMb = Integer.parseInt(value);
+            } else {
+                System.err.println("Unknown option '" + option + "'.");
+                return;
+            }
+        }
+        if (dirs.isEmpty()) {
+            System.err.println("Usage: java BulkVerifier [-cfg config] "
+                    + "[-out results.ndjson] [-checkpoint file] "
+                    + "[-threads n] [-memory MB] dir...");
+            return;
+        }
+
+        if (!ConfigManager.init(cfg)) {
+            System.err.println("Add " + DEFAULT_CONF + " to the current "
+                    + "directory or specify a configuration file with -cfg.");
+            return;
+        }
+
+        /* When resuming, add to the results of the earlier run. */
+        Set<String> done = new HashSet<String>();
+        Writer checkpoint = null;
+        if (checkpointFile != null) {
+            done = readCheckpoint(Paths.get(checkpointFile));
+            checkpoint = Files.newBufferedWriter(Paths.get(checkpointFile),
+                    StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+        }
+        Writer out = outFile == null
+                ? new BufferedWriter(new OutputStreamWriter(System.out,
+                        StandardCharsets.UTF_8))
+                : Files.newBufferedWriter(Paths.get(outFile),
+                        StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                        StandardOpenOption.APPEND);
+
+        VerificationEngine engine = new VerificationEngine(threads);
+        BulkVerifier verifier = new BulkVerifier(engine, out, checkpoint,
+                done, threads, memoryMb << 10);
+        try {
+            for (Path dir : dirs) {
+                verifier.verifyTree(dir);
+            }
+            verifier.await();
+        } finally {
+            engine.shutdown();
+            out.close();
+            if (checkpoint != null) {
+                checkpoint.close();
+            }
+        }
+        System.err.println(verifier.getProgress());
+        if (verifier.getInvalid() > 0) {
+            System.exit(1);
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+package ee.cyber.eid.verify;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import ee.sk.digidoc.DigiDocException;
+
+/**
+ * The result of verifying a container: the problems with the container
+ * itself, e.g. it could not be parsed or did not validate, and the results
+ * of its signatures.
+ */
+public class ContainerResult {
+
+    private final String name;
+    private final List<DigiDocException> errors;
+    private final List<SignatureResult> signatures;
+    private final long nanos;
+
+    ContainerResult(String name, List<DigiDocException> errors,
+            List<SignatureResult> signatures, long nanos) {
+        this.name = name;
+        this.errors = Collections.unmodifiableList(errors);
+        this.signatures = Collections.unmodifiableList(signatures);
+        this.nanos = nanos;
+    }
+
+    /** Returns the name of the container, e.g. its path. */
+    public String getName() {
+        return name;
+    }
+
+    /** Returns the problems with the container itself. */
+    public List<DigiDocException> getErrors() {
+        return errors;
+    }
+
+    public List<SignatureResult> getSignatures() {
+        return signatures;
+    }
+
+    /** Returns how long verifying took, parsing included, in nanoseconds. */
+    public long getNanos() {
+        return nanos;
+    }
+
+    /** Returns the number of signatures that did not verify. */
+    public int countFailedSignatures() {
+        int n = 0;
+        for (SignatureResult s : signatures) {
+            if (!s.isValid()) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /** Is the container valid and do all of its signatures verify? */
+    public boolean isValid() {
+        return errors.isEmpty() && countFailedSignatures() == 0;
+    }
+
+    /** Returns all the problems, those of the signatures included. */
+    public List<DigiDocException> getAllErrors() {
+        List<DigiDocException> all = new ArrayList<DigiDocException>(errors);
+        for (SignatureResult s : signatures) {
+            all.addAll(s.getErrors());
+        }
+        return all;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(name);
+        sb.append(isValid() ? ": valid" : ": INVALID");
+        for (DigiDocException e : errors) {
+            sb.append("\n  ").append(e.getMessage());
+        }
+        for (SignatureResult s : signatures) {
+            if (!s.isValid()) {
+                sb.append("\n  signature ").append(s.getId()).append(':');
+                for (DigiDocException e : s.getErrors()) {
+                    sb.append("\n    ").append(e.getMessage());
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+}
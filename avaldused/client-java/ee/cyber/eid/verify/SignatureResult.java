@@ -0,0 +1,40 @@
+package ee.cyber.eid.verify;
+
+import java.util.Collections;
+import java.util.List;
+
+import ee.sk.digidoc.DigiDocException;
+
+/** The result of verifying one signature of a container. */
+public class SignatureResult {
+
+    private final String id;
+    private final List<DigiDocException> errors;
+    private final long nanos;
+
+    SignatureResult(String id, List<DigiDocException> errors, long nanos) {
+        this.id = id;
+        this.errors = Collections.unmodifiableList(errors);
+        this.nanos = nanos;
+    }
+
+    /** Returns the id of the signature, e.g. S0. */
+    public String getId() {
+        return id;
+    }
+
+    /** Returns the problems found, an empty list if none. */
+    public List<DigiDocException> getErrors() {
+        return errors;
+    }
+
+    /** Returns how long verifying took, in nanoseconds. */
+    public long getNanos() {
+        return nanos;
+    }
+
+    public boolean isValid() {
+        return errors.isEmpty();
+    }
+
+}
@@ -0,0 +1,257 @@
+package ee.cyber.eid.verify;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+
+import ee.sk.digidoc.DigiDocException;
+import ee.sk.digidoc.Signature;
+import ee.sk.digidoc.SignedDoc;
+import ee.sk.digidoc.factory.DigiDocFactory;
+import ee.sk.utils.ConfigManager;
+
+/**
+ * Verifies containers in parallel on a bounded fork-join pool: every
+ * container is a task, which parses and validates the container and then
+ * verifies its signatures.
+ * <p>
+ * The JDigiDoc parsers keep the state of the document being parsed in the
+ * factory, so every worker thread gets a factory of its own from the
+ * ConfigManager. Validating a container computes the digests of its data
+ * files, as does verifying a signature, and the DataFile keeps what it
+ * computed without any locking: the signatures of a container are verified
+ * one after another, on the thread that validated it, and only different
+ * containers are verified at once. The problems found are collected into
+ * ContainerResults rather than printed.
+ */
+public class VerificationEngine {
+
+    /** Receives the result of each container as soon as it is verified. */
+    public interface Listener {
+
+        /** Called on the worker thread, so keep it short. */
+        void containerVerified(ContainerResult result);
+
+    }
+
+    private static VerificationEngine defaultEngine;
+
+    /** The parser of each worker thread. */
+    private static final ThreadLocal<DigiDocFactory> factories =
+            new ThreadLocal<DigiDocFactory>();
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Create an engine.
+     * @param parallelism The number of worker threads.
+     */
+    public VerificationEngine(int parallelism) {
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    /** Returns an engine with a worker for every processor. */
+    public static synchronized VerificationEngine getDefault() {
+        if (defaultEngine == null) {
+            defaultEngine = new VerificationEngine(
+                    Runtime.getRuntime().availableProcessors());
+        }
+        return defaultEngine;
+    }
+
+    /** Verifies the signatures of a container parsed already. */
+    public ContainerResult verify(String name, SignedDoc sdoc) {
+        return pool.invoke(new ContainerTask(name, null, sdoc, null));
+    }
+
+    /** Parses a container file and verifies it. */
+    public ContainerResult verify(Path file) {
+        return pool.invoke(new ContainerTask(file.toString(), file, null,
+                null));
+    }
+
+    /**
+     * Starts verifying a container file and returns right away. Use this to
+     * keep a bounded number of containers in the works.
+     */
+    public Future<ContainerResult> submit(Path file) {
+        return submit(file, null);
+    }
+
+    /**
+     * Starts verifying a container file and returns right away. The result
+     * is given to the listener, also if the file can't be read.
+     */
+    public Future<ContainerResult> submit(Path file, Listener listener) {
+        return pool.submit(new ContainerTask(file.toString(), file, null,
+                listener));
+    }
+
+    /** Parses and verifies all the given container files. */
+    public VerificationReport verifyAll(final List<Path> files) {
+        final long start = System.nanoTime();
+        return pool.invoke(new RecursiveTask<VerificationReport>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected VerificationReport compute() {
+                List<ContainerTask> tasks = new ArrayList<ContainerTask>();
+                for (Path file : files) {
+                    tasks.add(new ContainerTask(file.toString(), file, null,
+                            null));
+                }
+                ForkJoinTask.invokeAll(tasks);
+                List<ContainerResult> results =
+                        new ArrayList<ContainerResult>();
+                for (ContainerTask t : tasks) {
+                    results.add(t.join());
+                }
+                return new VerificationReport(results,
+                        System.nanoTime() - start);
+            }
+        });
+    }
+
+    /** Stops the worker threads once the work given to them is done. */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /** Returns the parser of the current thread. */
+    private static DigiDocFactory getFactory() throws DigiDocException {
+        DigiDocFactory fac = factories.get();
+        if (fac == null) {
+            fac = ConfigManager.instance().getDigiDocFactory();
+            factories.set(fac);
+        }
+        return fac;
+    }
+
+    /** Is the file a BDOC container, judging by its name? */
+    public static boolean isBdoc(Path file) {
+        String name = file.getFileName().toString().toLowerCase();
+        return name.endsWith(".bdoc") || name.endsWith(".asice")
+                || name.endsWith(".sce");
+    }
+
+    /** Parses a container file with the parser of the current thread. */
+    private static SignedDoc read(Path file) throws DigiDocException {
+        try {
+            InputStream in = new BufferedInputStream(
+                    Files.newInputStream(file));
+            try {
+                return getFactory().readSignedDocFromStreamOfType(in,
+                        isBdoc(file));
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new DigiDocException(DigiDocException.ERR_READ_FILE,
+                    "Could not read " + file, e);
+        }
+    }
+
+    /** Parses, validates and verifies one container. */
+    private static class ContainerTask extends RecursiveTask<ContainerResult> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+        private final Path file;
+        private SignedDoc sdoc;
+        private final Listener listener;
+
+        ContainerTask(String name, Path file, SignedDoc sdoc,
+                Listener listener) {
+            this.name = name;
+            this.file = file;
+            this.sdoc = sdoc;
+            this.listener = listener;
+        }
+
+        @Override
+        protected ContainerResult compute() {
+            long start = System.nanoTime();
+            ContainerResult result;
+            Error error = null;
+            try {
+                result = check(start);
+            } catch (RuntimeException e) {
+                /* A container JDigiDoc chokes on must not stop the rest. */
+                result = failed(e, start);
+            } catch (Error e) {
+                /* E.g. out of memory or stack on a huge or malformed
+                 * container. The listener still gets a result, as it may be
+                 * waiting for one to go on, and the error is passed on. */
+                result = failed(e, start);
+                error = e;
+            }
+            if (listener != null) {
+                listener.containerVerified(result);
+            }
+            if (error != null) {
+                throw error;
+            }
+            return result;
+        }
+
+        private ContainerResult failed(Throwable e, long start) {
+            List<DigiDocException> errors = new ArrayList<DigiDocException>();
+            errors.add(new DigiDocException(DigiDocException.ERR_VERIFY,
+                    "Could not verify: " + e, e));
+            return new ContainerResult(name, errors,
+                    Collections.<SignatureResult>emptyList(),
+                    System.nanoTime() - start);
+        }
+
+        @SuppressWarnings("unchecked")
+        private ContainerResult check(long start) {
+            List<DigiDocException> errors = new ArrayList<DigiDocException>();
+            if (sdoc == null) {
+                try {
+                    sdoc = read(file);
+                } catch (DigiDocException e) {
+                    errors.add(e);
+                    return new ContainerResult(name, errors,
+                            Collections.<SignatureResult>emptyList(),
+                            System.nanoTime() - start);
+                }
+            }
+
+            /* Validate first, it takes little time next to the
+             * signatures. */
+            List<DigiDocException> invalid = sdoc.validate(true);
+            if (invalid != null) {
+                errors.addAll(invalid);
+            }
+            List<SignatureResult> signatures =
+                    new ArrayList<SignatureResult>();
+            for (int i = 0; i < sdoc.countSignatures(); i++) {
+                signatures.add(verify(sdoc, sdoc.getSignature(i)));
+            }
+            return new ContainerResult(name, errors, signatures,
+                    System.nanoTime() - start);
+        }
+
+    }
+
+    /** Verifies one signature of a container. */
+    @SuppressWarnings("unchecked")
+    private static SignatureResult verify(SignedDoc sdoc, Signature sig) {
+        long start = System.nanoTime();
+        List<DigiDocException> errors = sig.verify(sdoc, false, true);
+        return new SignatureResult(sig.getId(),
+                errors != null ? errors : new ArrayList<DigiDocException>(),
+                System.nanoTime() - start);
+    }
+
+}
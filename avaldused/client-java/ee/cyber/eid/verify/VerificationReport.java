@@ -0,0 +1,68 @@
+package ee.cyber.eid.verify;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** The results of verifying a number of containers. */
+public class VerificationReport {
+
+    private final List<ContainerResult> containers;
+    private final long nanos;
+
+    VerificationReport(List<ContainerResult> containers, long nanos) {
+        this.containers = Collections.unmodifiableList(containers);
+        this.nanos = nanos;
+    }
+
+    /** Returns the results in the order the containers were given. */
+    public List<ContainerResult> getContainers() {
+        return containers;
+    }
+
+    /** Returns the results of the containers that are not valid. */
+    public List<ContainerResult> getInvalid() {
+        List<ContainerResult> invalid = new ArrayList<ContainerResult>();
+        for (ContainerResult c : containers) {
+            if (!c.isValid()) {
+                invalid.add(c);
+            }
+        }
+        return invalid;
+    }
+
+    public int countSignatures() {
+        int n = 0;
+        for (ContainerResult c : containers) {
+            n += c.getSignatures().size();
+        }
+        return n;
+    }
+
+    public int countFailedSignatures() {
+        int n = 0;
+        for (ContainerResult c : containers) {
+            n += c.countFailedSignatures();
+        }
+        return n;
+    }
+
+    /** Returns how long verifying all of them took, in nanoseconds. */
+    public long getNanos() {
+        return nanos;
+    }
+
+    /** Are all the containers valid? */
+    public boolean isValid() {
+        return getInvalid().isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return containers.size() + " containers, " + getInvalid().size()
+                + " invalid; " + countSignatures() + " signatures, "
+                + countFailedSignatures() + " failed; "
+                + nanos / 1000000 + " ms";
+    }
+
+}
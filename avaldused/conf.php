@@ -24,6 +24,12 @@ define('DD_TIMEOUT', '9000');
  * changes, then this file needs to be deleted so it will be regenerated. */
 define('DD_WSDL_FILE', dirname(__FILE__) . '/wsdl.class.php');
 
+/* The maximum number of claims accepted in one batch request. */
+define('DD_MAX_BATCH', 16);
+
+/* How long the response to a claim is kept for resubmissions, in seconds. */
+define('DD_CLAIM_TTL', 3600);
+
 /* Location of the claim handling service. */
 define('DD_RESPONSE_SERVER', 'http://'. $_SERVER['SERVER_NAME'] .'/eid/avaldused/submit.php');
 
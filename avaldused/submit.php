@@ -12,6 +12,23 @@
  * "nocrypt" is unused.
  * The response is in DIGIDOC-XML format, since the C library does not support
  * BDOC.
+ * Several claims can be submitted in one request by indexing the fields, i.e.
+ * "cert[0]", "claim[0]", "cert[1]", "claim[1]" and so on (up to
+ * DD_MAX_BATCH claims). The responses are then sent back in the same order as
+ * the parts of a multipart/mixed body, each part having the headers
+ * "X-Claim-Index" (the index of the claim) and "X-Claim-Status" (the HTTP
+ * status code that would have been returned for that claim alone).
+ * Every response carries the "X-Claim-Protocol" header with the newest
+ * protocol version the service understands. If the request has a field
+ * "protocol" with the value 2, then the certificates are uploaded as raw DER
+ * files instead of base64 text, the claims are compressed with the content
+ * encoding given in the field "encoding" (gzip or deflate) and the response
+ * is compressed if the client accepts it.
+ * A claim may have an ID in the field "claim_id" ("claim_id[0]" and so on in
+ * a batch). The response to a claim with an ID is kept for DD_CLAIM_TTL
+ * seconds and a resubmission of the same claim gets the same response instead
+ * of being handled again, so clients can safely resend claims to another
+ * replica of the service.
  */
 require_once "conf.php";
 require_once "digidoc.php";
@@ -22,44 +39,275 @@ DigiDoc_WSDL::load_WSDL();
 
 session_start();
 
-if (handle_claim()) {
-    send_response();
+header("X-Claim-Protocol: 2");
+$protocol = isset($_POST["protocol"]) ? intval($_POST["protocol"]) : 1;
+$nocrypt = isset($_POST["nocrypt"]);
+if (isset($_FILES["claim"]) && is_array($_FILES["claim"]["name"])) {
+    handle_batch($protocol, $nocrypt);
+} else {
+    $file = $_FILES["claim"];
+    $file["encoding"] = get_claim_encoding($protocol);
+    $id = isset($_POST["claim_id"]) ? $_POST["claim_id"] : NULL;
+    send_response(handle_claim_once($id, $file, get_cert($protocol), $nocrypt),
+            get_response_encoding($protocol));
 }
 
-/* Cleanup */
-foreach (glob(File::getFilePrefix("*")) as $f) {
-    @unlink($f);
-}
+cleanup();
 session_destroy();
 
+/* Every now and then, remove the responses that are kept for too long. */
+if (mt_rand(1, 100) == 1) {
+    expire_claims();
+}
+
 /**
- * Checks if the file uploaded successfully and if the signatures are valid.
- * @return boolean Did the checks succeed?
+ * Removes the temporary files of the current session.
  */
-function handle_claim() {
-    $file = $_FILES["claim"];
+function cleanup() {
+    foreach (glob(File::getFilePrefix("*")) as $f) {
+        @unlink($f);
+    }
+}
 
-    if (!check_upload(&$file)) {
-        header("HTTP/1.1 400 Bad Request");
-        echo "Uploaded file missing or of wrong type!\n";
-        return false;
+/**
+ * Checks the claim and creates the response to it.
+ * @return array The HTTP status code, the content type, the file name and the
+ *               body of the response.
+ */
+function handle_claim($file, $cert, $nocrypt) {
+    if (!check_upload($file)) {
+        return error_response(400, "Uploaded file missing or of wrong type!\n");
     }
 
-    if (($err = verify_signature(&$file)) !== "OK") {
-        header("HTTP/1.1 400 Bad Request");
-        echo "The claim's signature is invalid!\n$err\n";
-        return false;
+    if (($err = verify_signature($file)) !== "OK") {
+        return error_response(400, "The claim's signature is invalid!\n$err\n");
     }
 
     extract_claim($file);
-    return true;
+    return create_response($cert, $nocrypt);
+}
+
+/**
+ * Handles a claim with the given ID only once. If the same claim is submitted
+ * again while it is being handled, the second request waits for the first one
+ * and then gets the same response.
+ * @param string $id The claim's ID or NULL if it has none.
+ * @return array The same as handle_claim().
+ */
+function handle_claim_once($id, $file, $cert, $nocrypt) {
+    if (!is_string($id) || !preg_match('/^[0-9a-f]{1,64}$/', $id)) {
+        return handle_claim($file, $cert, $nocrypt);
+    }
+
+    /* The response depends on the recipient as well as on the claim. */
+    $path = DD_FILES . "claim_" . sha1($id . "|" . $cert . "|"
+            . ($nocrypt ? 1 : 0));
+    $lock = fopen("$path.lock", "c");
+    if (!$lock || !flock($lock, LOCK_EX)) {
+        return handle_claim($file, $cert, $nocrypt);
+    }
+
+    $response = FALSE;
+    if (is_readable($path) && filemtime($path) > time() - DD_CLAIM_TTL) {
+        $response = unserialize(file_get_contents($path));
+    }
+    if ($response === FALSE) {
+        $response = handle_claim($file, $cert, $nocrypt);
+
+        /* Errors might be temporary, so only keep the successes. */
+        if ($response[0] == 200) {
+            file_put_contents($path, serialize($response));
+        }
+    }
+
+    flock($lock, LOCK_UN);
+    fclose($lock);
+    return $response;
+}
+
+/**
+ * Removes the kept responses that are older than DD_CLAIM_TTL.
+ */
+function expire_claims() {
+    foreach (glob(DD_FILES . "claim_*") as $f) {
+        if (@filemtime($f) < time() - DD_CLAIM_TTL) {
+            @unlink($f);
+        }
+    }
+}
+
+/**
+ * Handles all the claims of a batch request one by one and streams the
+ * responses back as soon as each one is ready.
+ */
+function handle_batch($protocol, $nocrypt) {
+    $files = $_FILES["claim"];
+    $ids = isset($_POST["claim_id"]) ? $_POST["claim_id"] : array();
+    $encoding = get_response_encoding($protocol);
+
+    $indexes = array_keys($files["name"]);
+    sort($indexes, SORT_NUMERIC);
+    if (count($indexes) > DD_MAX_BATCH) {
+        header("HTTP/1.1 413 Request Entity Too Large");
+        echo "At most " . DD_MAX_BATCH . " claims can be submitted at once.\n";
+        return;
+    }
+
+    /* Send every part as soon as it is ready instead of buffering. */
+    while (ob_get_level() > 0) {
+        ob_end_flush();
+    }
+    $boundary = md5(uniqid(mt_rand(), TRUE));
+    header("Content-Type: multipart/mixed; boundary=$boundary");
+
+    foreach ($indexes as $i) {
+        $file = array(
+            "type" => $files["type"][$i],
+            "tmp_name" => $files["tmp_name"][$i],
+            "encoding" => get_claim_encoding($protocol),
+        );
+        $id = isset($ids[$i]) ? $ids[$i] : NULL;
+        list($status, $type, $name, $body) = handle_claim_once($id, $file,
+                get_cert($protocol, $i), $nocrypt);
+        cleanup();
+
+        echo "--$boundary\r\n";
+        echo "X-Claim-Index: $i\r\n";
+        echo "X-Claim-Status: $status\r\n";
+        echo "Content-Type: $type\r\n";
+        if ($encoding) {
+            echo "Content-Encoding: $encoding\r\n";
+            $body = encode_content($body, $encoding);
+        }
+        echo "\r\n";
+        echo $body;
+        echo "\r\n";
+        flush();
+    }
+    echo "--$boundary--\r\n";
+}
+
+/**
+ * Creates a response describing an error.
+ * @return array The same as handle_claim().
+ */
+function error_response($status, $message) {
+    return array($status, "text/plain; charset=utf-8", NULL, $message);
+}
+
+/**
+ * Sends the response to a single claim.
+ * @param array $response The response from handle_claim().
+ * @param string $encoding The content encoding to use or NULL for none.
+ */
+function send_response($response, $encoding) {
+    list($status, $type, $name, $body) = $response;
+    if ($encoding) {
+        header("Content-Encoding: $encoding");
+        $body = encode_content($body, $encoding);
+    }
+    if ($status != 200) {
+        $reasons = array(400 => "Bad Request", 500 => "Internal Server Error");
+        header("HTTP/1.1 $status " . $reasons[$status]);
+        header("Content-Type: $type");
+        echo $body;
+        return;
+    }
+    File::saveAs($name, $body, $type, "utf-8");
+}
+
+/**
+ * Returns the recipient's certificate as base64 encoded DER.
+ * @param int $protocol The protocol version of the request.
+ * @param mixed $i The index of the claim in a batch or NULL.
+ * @return string The certificate or "" if none was given.
+ */
+function get_cert($protocol, $i = NULL) {
+    /* Protocol v2 uploads the certificate as a raw DER file. */
+    if ($protocol >= 2) {
+        if (!isset($_FILES["cert"])) {
+            return "";
+        }
+        $tmp = $_FILES["cert"]["tmp_name"];
+        if ($i !== NULL) {
+            $tmp = isset($tmp[$i]) ? $tmp[$i] : "";
+        }
+        if (!$tmp || !is_uploaded_file($tmp)) {
+            return "";
+        }
+        return base64_encode(File::readLocalFile($tmp));
+    }
+
+    if (!isset($_POST["cert"])) {
+        return "";
+    }
+    $cert = $_POST["cert"];
+    if ($i !== NULL) {
+        $cert = is_array($cert) && isset($cert[$i]) ? $cert[$i] : "";
+    }
+    return trim($cert);
+}
+
+/**
+ * @param int $protocol The protocol version of the request.
+ * @return string The content encoding of the uploaded claims or NULL.
+ */
+function get_claim_encoding($protocol) {
+    if ($protocol >= 2 && isset($_POST["encoding"])) {
+        return $_POST["encoding"];
+    }
+    return NULL;
+}
+
+/**
+ * Picks the content encoding of the response from the encodings the client
+ * accepts. Only clients speaking protocol v2 get compressed responses.
+ * @param int $protocol The protocol version of the request.
+ * @return string "gzip", "deflate" or NULL for no compression.
+ */
+function get_response_encoding($protocol) {
+    if ($protocol < 2 || !isset($_SERVER["HTTP_ACCEPT_ENCODING"])) {
+        return NULL;
+    }
+    $accepted = strtolower($_SERVER["HTTP_ACCEPT_ENCODING"]);
+    if (strpos($accepted, "gzip") !== FALSE) {
+        return "gzip";
+    } else if (strpos($accepted, "deflate") !== FALSE) {
+        return "deflate";
+    }
+    return NULL;
+}
+
+/**
+ * Compresses content with the given HTTP content encoding.
+ */
+function encode_content($content, $encoding) {
+    return $encoding === "gzip" ? gzencode($content) : gzcompress($content);
+}
+
+/**
+ * Decompresses content with the given HTTP content encoding.
+ * @return mixed The decompressed content or FALSE on error.
+ */
+function decode_content($content, $encoding) {
+    if ($encoding === "gzip") {
+        /* gzdecode() appeared in PHP 5.4, before that strip the header and
+         * trailer that Java's GZIPOutputStream writes and inflate the rest. */
+        return function_exists("gzdecode") ? gzdecode($content)
+                : gzinflate(substr($content, 10, -8));
+    } else if ($encoding === "deflate") {
+        return gzuncompress($content);
+    } else if ($encoding) {
+        return FALSE;
+    }
+    return $content;
 }
 
 /**
  * Checks the file type and if the upload succeeded.
  * @return boolean Did the checks succeed?
  */
-function check_upload($file) {
+function check_upload(&$file) {
     if (preg_match(":^application/vnd.bdoc-:", $file["type"])) {
         $file["format"] = "bdoc";
     } else if ($file["type"] === "application/x-ddoc") {
@@ -75,10 +323,14 @@ function check_upload($file) {
  * Checks the signatures on the claim.
  * @return string SignatureInfo Status field ("OK") or an error message.
  */
-function verify_signature($file) {
+function verify_signature(&$file) {
     $dds = new WebService_DigiDocService_DigiDocService();
-    $file["content"] = File::readLocalFile($file["tmp_name"]);
+    $file["content"] = decode_content(File::readLocalFile($file["tmp_name"]),
+            $file["encoding"]);
     unlink($file["tmp_name"]);
+    if ($file["content"] === FALSE) {
+        return "ERROR: Could not decode the claim.";
+    }
 
     if ($file["format"] === "bdoc") {
         $ret = $dds->StartSession("", base64_encode($file["content"]), FALSE, "");
@@ -119,58 +371,50 @@ function extract_claim($file) {
 }
 
 /**
- * Creates, signs, encrypts and sends the response.
+ * Creates, signs and encrypts the response.
+ * @return array The same as handle_claim().
  */
-function send_response() {
-    $nocrypt = isset($_POST["nocrypt"]);
-    $cert = isset($_POST["cert"]) ? trim($_POST["cert"]) : "";
+function create_response($cert, $nocrypt) {
     if (!$nocrypt && !$cert) {
-        header("HTTP/1.1 400 Bad Request");
-        echo "No recipient certificate specified!\n";
-        return;
+        return error_response(400, "No recipient certificate specified!\n");
     }
 
-    if (!create_response()) {
-        header("HTTP/1.1 500 Internal Server Error");
-        echo "Error creating response";
-        return;
+    if (!save_response()) {
+        return error_response(500, "Error creating response");
     }
 
     $err = digidoc::initialize();
     if ($err != digidoc::ERR_OK) {
-        header("HTTP/1.1 500 Internal Server Error");
-        echo "Error initializing libdigidoc: " . digidoc::get_error($err);
-        return;
+        return error_response(500, "Error initializing libdigidoc: "
+                . digidoc::get_error($err));
     }
     $err = sign_response();
     if ($err != digidoc::ERR_OK) {
-        header("HTTP/1.1 500 Internal Server Error");
-        echo "Error signing response: " . digidoc::get_error($err);
+        $resp = error_response(500, "Error signing response: "
+                . digidoc::get_error($err));
         digidoc::finalize();
-        return;
+        return $resp;
     }
     if (!$nocrypt) {
         $err = encrypt_response($cert);
         if ($err != digidoc::ERR_OK) {
-            header("HTTP/1.1 500 Internal Server Error");
-            echo "Error encrypting response: " . digidoc::get_error($err);
+            $resp = error_response(500, "Error encrypting response: "
+                    . digidoc::get_error($err));
             digidoc::finalize();
-            return;
+            return $resp;
         }
     }
     digidoc::finalize();
 
-    if ($err == digidoc::ERR_OK) {
-        $ext = $nocrypt ? "ddoc" : "cdoc";
-        $resp = File::readLocalFile(get_response_prefix() . ".$ext");
-        File::saveAs("response.$ext", $resp, "application/x-$ext", "utf-8");
-    }
+    $ext = $nocrypt ? "ddoc" : "cdoc";
+    $resp = File::readLocalFile(get_response_prefix() . ".$ext");
+    return array(200, "application/x-$ext", "response.$ext", $resp);
 }
 
 /**
  * Saves the response file to disk.
  */
-function create_response() {
+function save_response() {
     return File::saveLocalFile(get_response_prefix(), "A response.");
 }
 
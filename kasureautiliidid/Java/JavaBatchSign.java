@@ -0,0 +1,605 @@
+// vim: set sw=4 et:
+/**
+ * Small utility for signing many documents with one PIN2 signature.
+ *
+ * Every document is put into a container of its own and a signature is
+ * prepared for each. The digests of the SignedInfo elements of the signatures
+ * are put into a hash tree (a Merkle tree) and only the root of the tree is
+ * signed on the card, so signing N documents takes one card operation instead
+ * of N. Every container gets the signature of the root as its signature value
+ * and a proof file next to it. The proof holds the hashes needed to get from
+ * the container's digest to the root.
+ *
+ * Note that the containers are not valid on their own: a DigiDoc verifier
+ * expects the signature value to be over the SignedInfo digest itself. Use
+ * -verify to check a container together with its proof.
+ *
+ * The tree is built like in RFC 6962: leaves are hashed as H(0x00 || digest),
+ * inner nodes as H(0x01 || left || right). The hash function is the one used
+ * for the SignedInfo digest, i.e. SHA-1 for DIGIDOC-XML and SHA-256 for BDOC.
+ * A node without a sibling is moved up a level as it is.
+ *
+ * Compilation:
+ * javac -cp $JAVA_LIB/jdigidoc.jar JavaBatchSign.java
+ *
+ * Execution:
+ * java -cp .:$JAVA_LIB/* JavaBatchSign [-cfg config] [-bdoc] outdir infile...
+ * java -cp .:$JAVA_LIB/* JavaBatchSign [-cfg config] -verify container...
+ */
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import ee.sk.digidoc.DataFile;
+import ee.sk.digidoc.DigiDocException;
+import ee.sk.digidoc.Signature;
+import ee.sk.digidoc.SignatureProductionPlace;
+import ee.sk.digidoc.SignedDoc;
+import ee.sk.digidoc.factory.DigiDocGenFactory;
+import ee.sk.digidoc.factory.DigiDocVerifyFactory;
+import ee.sk.digidoc.factory.SignatureFactory;
+import ee.sk.utils.ConfigManager;
+
+public class JavaBatchSign {
+
+    /** Default place to look for the configuration file. */
+    public static final String DEFAULT_CONF = "jdigidoc.cfg";
+
+    /** The extension of the proof files. */
+    public static final String PROOF_EXTENSION = ".proof";
+
+    /**
+     * The message of the error JDigiDoc gives when the signature value does
+     * not verify over the SignedInfo digest.
+     */
+    private static final String VALUE_ERROR = "Invalid signature value";
+
+    private static final byte LEAF_PREFIX = 0x00;
+    private static final byte NODE_PREFIX = 0x01;
+
+    private String format;
+    private List<String> names = new ArrayList<String>();
+    private List<SignedDoc> sdocs = new ArrayList<SignedDoc>();
+    private List<Signature> sigs = new ArrayList<Signature>();
+    private List<Proof> proofs = new ArrayList<Proof>();
+
+    /**
+     * Constructor for a batch signer.
+     */
+    public JavaBatchSign(String format) {
+        this.format = format;
+    }
+
+    /**
+     * Add a document for signing, in a container of its own.
+     * The MIME type of the file will be determined by the Files class.
+     */
+    public void addDocument(String path) {
+        /* Can we read the file. */
+        File file = new File(path);
+        if (!file.isFile() || !file.canRead()) {
+            System.err.println("File not found: " + path);
+            return;
+        }
+
+        /* Determine the MIME type. */
+        String mime = null;
+        try {
+            mime = Files.probeContentType(Paths.get(path));
+        } catch (IOException e) {
+            System.err.println("An error occured trying to guess the MIME type "
+                    + "for " + path + ". Using \"file\".");
+        }
+        if (mime == null) {
+            mime = "file";
+        }
+
+        /* Add it to a new container. */
+        try {
+            SignedDoc sdoc = DigiDocGenFactory.createSignedDoc(format, null,
+                    null);
+            sdoc.addDataFile(file, mime, DataFile.CONTENT_EMBEDDED_BASE64);
+            sdocs.add(sdoc);
+            names.add(file.getName());
+        } catch (DigiDocException e) {
+            System.err.println("Error adding " + path + " to a container:");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Read the PIN from the console.
+     */
+    private String getPin() {
+        Console cons = System.console();
+        if (cons == null) {
+            throw new RuntimeException("No console to enter PIN with.");
+        }
+        return new String(cons.readPassword("Please enter PIN2 or leave blank "
+                + "to cancel: "));
+    }
+
+    /**
+     * Sign all the containers with one signature on the card.
+     */
+    public void sign() {
+        if (sdocs.isEmpty()) {
+            System.err.println("No containers to sign.");
+            return;
+        }
+
+        /* The containers are saved by the names of the files, so two files
+         * of the same name would overwrite each other's container. Refuse
+         * them before asking for the PIN. */
+        Set<String> seen = new HashSet<String>();
+        for (String name : names) {
+            if (!seen.add(name)) {
+                System.err.println("More than one file named " + name
+                        + ", sign them separately.");
+                return;
+            }
+        }
+
+        try {
+            /* Create a new signature factory. */
+            SignatureFactory sigFac = ConfigManager.instance()
+                    .getSignatureFactory();
+
+            String pin = getPin();
+            if (pin.isEmpty()) {
+                return;
+            }
+
+            /* Read the certificate used for signing. */
+            X509Certificate cert = sigFac.getCertificate(0, pin);
+
+            /* Roles and SPP are optional, but add something for demonstration
+             * purposes. */
+            String[] roles = new String[] { "role" };
+            SignatureProductionPlace spp = new SignatureProductionPlace(
+                    "city", "state", "country", "postal");
+
+            /* Prepare a signature in every container and collect the digests
+             * to sign. */
+            byte[][] digests = new byte[sdocs.size()][];
+            for (int i = 0; i < sdocs.size(); i++) {
+                Signature sig = sdocs.get(i).prepareSignature(cert, roles,
+                        spp);
+                sigs.add(sig);
+                digests[i] = sig.calculateSignedInfoDigest();
+            }
+
+            /* Build the tree and sign its root. The root is a digest of the
+             * same type as the leaves, so the card signs it like one. */
+            String alg = getDigestAlgorithm(digests[0].length);
+            byte[][][] tree = buildTree(digests, alg);
+            byte[] root = tree[tree.length - 1][0];
+            byte[] sigVal = sigFac.sign(root, 0, pin, sigs.get(0));
+
+            /* Give every container the signature and its proof. */
+            for (int i = 0; i < sigs.size(); i++) {
+                sigs.get(i).setSignatureValue(sigVal);
+                proofs.add(new Proof(alg, i, digests.length, digests[i],
+                        getPath(tree, i), root));
+            }
+
+            /* Get OCSP confirmations for the signatures. The card is not
+             * needed for these. */
+            for (Signature sig : sigs) {
+                sig.getConfirmation();
+            }
+        } catch (DigiDocException | NoSuchAlgorithmException e) {
+            System.err.println("Error signing the containers:");
+            e.printStackTrace();
+            proofs.clear();
+        }
+    }
+
+    /**
+     * Save the signed containers and their proofs to the given directory.
+     */
+    public boolean saveTo(String dir) {
+        File out = new File(dir);
+        if (!out.isDirectory() && !out.mkdirs()) {
+            System.err.println("Can't create directory " + dir);
+            return false;
+        }
+        String ext = SignedDoc.FORMAT_BDOC.equals(format) ? ".bdoc" : ".ddoc";
+        try {
+            for (int i = 0; i < proofs.size(); i++) {
+                File file = new File(out, names.get(i) + ext);
+                sdocs.get(i).writeToFile(file);
+                proofs.get(i).writeTo(new File(file.getPath()
+                        + PROOF_EXTENSION));
+            }
+            return true;
+        } catch (DigiDocException | IOException e) {
+            System.err.println("Error saving to file:");
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    public boolean isSigned() {
+        return !proofs.isEmpty();
+    }
+
+    /**
+     * Verify a container signed in a batch, using the proof file next to it.
+     */
+    @SuppressWarnings("unchecked")
+    public static boolean verify(String path) {
+        try {
+            Proof proof = Proof.readFrom(new File(path + PROOF_EXTENSION));
+            SignedDoc sdoc = ConfigManager.instance().getDigiDocFactory()
+                    .readSignedDoc(path);
+            if (sdoc.countSignatures() != 1) {
+                System.err.println(path + ": expected one signature.");
+                return false;
+            }
+            Signature sig = sdoc.getSignature(0);
+
+            /* The proof must be for this signature and lead to the root. */
+            if (!Arrays.equals(sig.calculateSignedInfoDigest(), proof.leaf)) {
+                System.err.println(path + ": the proof is for another "
+                        + "signature.");
+                return false;
+            }
+            byte[] root = getRoot(proof.leaf, proof.index, proof.count,
+                    proof.path, proof.algorithm);
+            if (!Arrays.equals(root, proof.root)) {
+                System.err.println(path + ": the proof does not lead to the "
+                        + "root.");
+                return false;
+            }
+
+            /* The signature value must be over the root. */
+            X509Certificate cert = sig.getKeyInfo().getSignersCertificate();
+            if (!DigiDocVerifyFactory.verify(root,
+                    sig.getSignatureValue().getValue(), cert, false, null)) {
+                System.err.println(path + ": the signature of the root does "
+                        + "not verify.");
+                return false;
+            }
+
+            /* The signature must have its OCSP confirmation. */
+            if (sig.getUnsignedProperties() == null
+                    || sig.getUnsignedProperties().getNotary() == null) {
+                System.err.println(path + ": the signature has no OCSP "
+                        + "confirmation.");
+                return false;
+            }
+
+            /* Check everything else the usual way. The signature value is
+             * bound to fail the usual check, as it is over the root, but that
+             * is the one error to expect, told apart by its message: any
+             * other failure fails, another ERR_VERIFY included. */
+            List<DigiDocException> errors = new ArrayList<DigiDocException>();
+            boolean valueFailed = false;
+            for (DigiDocException e : (List<DigiDocException>) sig.verify(
+                    sdoc, false, true)) {
+                if (!valueFailed && isValueError(e)) {
+                    valueFailed = true;
+                } else {
+                    errors.add(e);
+                }
+            }
+            for (DigiDocException e : errors) {
+                System.err.println(path + ": " + e.getMessage());
+            }
+            return errors.isEmpty();
+        } catch (DigiDocException | IOException | NoSuchAlgorithmException
+                | IllegalArgumentException e) {
+            System.err.println(path + ": " + e);
+            return false;
+        }
+    }
+
+    /** Tells whether the error is of the signature value not verifying. */
+    private static boolean isValueError(DigiDocException e) {
+        return e.getCode() == DigiDocException.ERR_VERIFY
+                && e.getMessage() != null
+                && e.getMessage().contains(VALUE_ERROR);
+    }
+
+    /** Returns the name of the digest algorithm of the given length. */
+    private static String getDigestAlgorithm(int length)
+            throws NoSuchAlgorithmException {
+        switch (length) {
+        case 20:
+            return "SHA-1";
+        case 28:
+            return "SHA-224";
+        case 32:
+            return "SHA-256";
+        case 48:
+            return "SHA-384";
+        case 64:
+            return "SHA-512";
+        default:
+            throw new NoSuchAlgorithmException("No digest algorithm of length "
+                    + length);
+        }
+    }
+
+    private static byte[] hashLeaf(MessageDigest md, byte[] digest) {
+        md.update(LEAF_PREFIX);
+        return md.digest(digest);
+    }
+
+    private static byte[] hashNode(MessageDigest md, byte[] left,
+            byte[] right) {
+        md.update(NODE_PREFIX);
+        md.update(left);
+        return md.digest(right);
+    }
+
+    /**
+     * Build a hash tree of the given digests. Returns the levels of the tree,
+     * from the hashed leaves to the root.
+     */
+    static byte[][][] buildTree(byte[][] digests, String alg)
+            throws NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance(alg);
+        List<byte[][]> levels = new ArrayList<byte[][]>();
+        byte[][] level = new byte[digests.length][];
+        for (int i = 0; i < digests.length; i++) {
+            level[i] = hashLeaf(md, digests[i]);
+        }
+        levels.add(level);
+        while (level.length > 1) {
+            byte[][] up = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < up.length; i++) {
+                up[i] = 2 * i + 1 < level.length
+                        ? hashNode(md, level[2 * i], level[2 * i + 1])
+                        : level[2 * i];
+            }
+            levels.add(up);
+            level = up;
+        }
+        return levels.toArray(new byte[levels.size()][][]);
+    }
+
+    /** Returns the siblings on the way from leaf i to the root. */
+    static List<byte[]> getPath(byte[][][] tree, int i) {
+        List<byte[]> path = new ArrayList<byte[]>();
+        for (int l = 0; l < tree.length - 1; i /= 2, l++) {
+            int sibling = i ^ 1;
+            if (sibling < tree[l].length) {
+                path.add(tree[l][sibling]);
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Compute the root of a tree of <tt>count</tt> leaves from the digest on
+     * index <tt>i</tt> and the siblings on the way up.
+     */
+    static byte[] getRoot(byte[] digest, int i, int count,
+            List<byte[]> path, String alg) throws NoSuchAlgorithmException {
+        if (i < 0 || i >= count) {
+            throw new IllegalArgumentException("Leaf index out of range");
+        }
+        MessageDigest md = MessageDigest.getInstance(alg);
+        byte[] hash = hashLeaf(md, digest);
+        int p = 0;
+        for (int n = count; n > 1; i /= 2, n = (n + 1) / 2) {
+            int sibling = i ^ 1;
+            if (sibling >= n) {
+                /* No sibling, the node moves up as it is. */
+                continue;
+            }
+            if (p >= path.size()) {
+                throw new IllegalArgumentException("The proof is too short");
+            }
+            byte[] s = path.get(p++);
+            hash = (i & 1) == 0 ? hashNode(md, hash, s) : hashNode(md, s, hash);
+        }
+        if (p != path.size()) {
+            throw new IllegalArgumentException("The proof is too long");
+        }
+        return hash;
+    }
+
+    /**
+     * The proof that a signature's digest is in the signed tree. Saved as
+     * text, one "name=value" per line, with the hashes in hex.
+     */
+    private static class Proof {
+
+        private String algorithm;
+        private int index;
+        private int count;
+        private byte[] leaf;
+        private List<byte[]> path;
+        private byte[] root;
+
+        Proof(String algorithm, int index, int count, byte[] leaf,
+                List<byte[]> path, byte[] root) {
+            this.algorithm = algorithm;
+            this.index = index;
+            this.count = count;
+            this.leaf = leaf;
+            this.path = path;
+            this.root = root;
+        }
+
+        void writeTo(File file) throws IOException {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                    new FileOutputStream(file), "US-ASCII"));
+            try {
+                out.println("algorithm=" + algorithm);
+                out.println("index=" + index);
+                out.println("count=" + count);
+                out.println("leaf=" + toHex(leaf));
+                StringBuilder sb = new StringBuilder();
+                for (byte[] s : path) {
+                    if (sb.length() > 0) {
+                        sb.append(',');
+                    }
+                    sb.append(toHex(s));
+                }
+                out.println("path=" + sb);
+                out.println("root=" + toHex(root));
+            } finally {
+                out.close();
+            }
+            if (out.checkError()) {
+                throw new IOException("Error writing " + file);
+            }
+        }
+
+        static Proof readFrom(File file) throws IOException {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file), "US-ASCII"));
+            Proof p = new Proof(null, -1, 0, null, new ArrayList<byte[]>(),
+                    null);
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int eq = line.indexOf('=');
+                    if (eq < 0) {
+                        continue;
+                    }
+                    String name = line.substring(0, eq);
+                    String value = line.substring(eq + 1).trim();
+                    if ("algorithm".equals(name)) {
+                        p.algorithm = value;
+                    } else if ("index".equals(name)) {
+                        p.index = Integer.parseInt(value);
+                    } else if ("count".equals(name)) {
+                        p.count = Integer.parseInt(value);
+                    } else if ("leaf".equals(name)) {
+                        p.leaf = fromHex(value);
+                    } else if ("path".equals(name) && !value.isEmpty()) {
+                        for (String s : value.split(",")) {
+                            p.path.add(fromHex(s));
+                        }
+                    } else if ("root".equals(name)) {
+                        p.root = fromHex(value);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            if (p.algorithm == null || p.leaf == null || p.root == null) {
+                throw new IOException("Incomplete proof " + file);
+            }
+            return p;
+        }
+
+    }
+
+    private static String toHex(byte[] b) {
+        StringBuilder sb = new StringBuilder(b.length * 2);
+        for (byte x : b) {
+            sb.append(Character.forDigit((x >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(x & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] fromHex(String s) {
+        if (s.length() % 2 != 0) {
+            throw new IllegalArgumentException("Odd length hex string");
+        }
+        byte[] b = new byte[s.length() / 2];
+        for (int i = 0; i < b.length; i++) {
+            int hi = Character.digit(s.charAt(2 * i), 16);
+            int lo = Character.digit(s.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                throw new IllegalArgumentException("Invalid hex string");
+            }
+            b[i] = (byte) (hi << 4 | lo);
+        }
+        return b;
+    }
+
+    public static void printUsage() {
+        System.out.println("Usage: java JavaBatchSign [-cfg config] [-bdoc] "
+                + "outdir infile...");
+        System.out.println("       java JavaBatchSign [-cfg config] -verify "
+                + "container...");
+    }
+
+    public static void main(String[] argv) {
+        List<String> files = new ArrayList<String>();
+        String cfg = null;
+        boolean bdoc = false;
+        boolean verify = false;
+        for (int i = 0; i < argv.length; i++) {
+            if ("-cfg".equals(argv[i])) {
+                if (cfg != null || i + 1 >= argv.length) {
+                    printUsage();
+                    return;
+                }
+                cfg = argv[++i];
+            } else if ("-bdoc".equals(argv[i])) {
+                bdoc = true;
+            } else if ("-verify".equals(argv[i])) {
+                verify = true;
+            } else if (!argv[i].isEmpty()) {
+                files.add(argv[i]);
+            }
+        }
+        if (files.size() < (verify ? 1 : 2)) {
+            printUsage();
+            return;
+        }
+
+        if (!ConfigManager.init(cfg != null ? cfg : DEFAULT_CONF)) {
+            System.err.println("Add jdigidoc.cfg to the current directory or "
+                    + "specify one with the '-cfg' argument.");
+            return;
+        }
+
+        if (verify) {
+            int failed = 0;
+            for (String file : files) {
+                if (verify(file)) {
+                    System.out.println(file + ": Ok.");
+                } else {
+                    failed++;
+                }
+            }
+            System.out.println((files.size() - failed) + " of " + files.size()
+                    + " containers verified.");
+            return;
+        }
+
+        String out = files.remove(0);
+        JavaBatchSign jbs = new JavaBatchSign(bdoc ? SignedDoc.FORMAT_BDOC
+                : SignedDoc.FORMAT_DIGIDOC_XML);
+        for (String file : files) {
+            jbs.addDocument(file);
+        }
+
+        jbs.sign();
+        if (!jbs.isSigned()) {
+            return;
+        }
+
+        if (jbs.saveTo(out)) {
+            System.out.println("Signed " + jbs.sdocs.size() + " documents with "
+                    + "one signature. Ok.");
+        }
+    }
+
+}
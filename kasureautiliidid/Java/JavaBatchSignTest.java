@@ -0,0 +1,135 @@
+// vim: set sw=4 et:
+/**
+ * Checks the hash tree of JavaBatchSign: that the root computed from every
+ * leaf and its path is the root of the tree, and that a tampered leaf, path
+ * or index does not lead to it.
+ *
+ * Compilation:
+ * javac -cp $JAVA_LIB/jdigidoc.jar JavaBatchSign.java JavaBatchSignTest.java
+ *
+ * Execution:
+ * java -cp .:$JAVA_LIB/* JavaBatchSignTest
+ */
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class JavaBatchSignTest {
+
+    private static final String ALG = "SHA-256";
+
+    /** The sizes of the trees checked. */
+    private static final int[] COUNTS = { 1, 2, 3, 5, 8 };
+
+    private static int failed;
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            System.err.println("FAILED: " + what);
+            failed++;
+        }
+    }
+
+    /** Returns the root from the proof, or null if the proof is refused. */
+    private static byte[] root(byte[] leaf, int i, int count,
+            List<byte[]> path) throws NoSuchAlgorithmException {
+        try {
+            return JavaBatchSign.getRoot(leaf, i, count, path, ALG);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static byte[] hash(int prefix, byte[]... parts)
+            throws NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance(ALG);
+        md.update((byte) prefix);
+        for (byte[] b : parts) {
+            md.update(b);
+        }
+        return md.digest();
+    }
+
+    private static void checkTree(int count) throws NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance(ALG);
+        byte[][] digests = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            digests[i] = md.digest(new byte[] { (byte) i });
+        }
+        byte[][][] tree = JavaBatchSign.buildTree(digests, ALG);
+        byte[] top = tree[tree.length - 1][0];
+        check(tree[tree.length - 1].length == 1, count + ": one root");
+
+        for (int i = 0; i < count; i++) {
+            String leaf = count + " leaves, leaf " + i;
+            List<byte[]> path = JavaBatchSign.getPath(tree, i);
+            check(Arrays.equals(root(digests[i], i, count, path), top),
+                    leaf + ": leads to the root");
+
+            /* Another leaf on the same path. */
+            byte[] other = digests[i].clone();
+            other[0] ^= 1;
+            check(!Arrays.equals(root(other, i, count, path), top),
+                    leaf + ": tampered leaf");
+
+            /* A changed hash on the path. */
+            for (int p = 0; p < path.size(); p++) {
+                List<byte[]> tampered = new ArrayList<byte[]>(path);
+                byte[] s = tampered.get(p).clone();
+                s[s.length - 1] ^= 1;
+                tampered.set(p, s);
+                check(!Arrays.equals(root(digests[i], i, count, tampered),
+                        top), leaf + ": tampered path at " + p);
+            }
+
+            /* A path with a hash missing or added. */
+            if (!path.isEmpty()) {
+                check(root(digests[i], i, count,
+                        path.subList(0, path.size() - 1)) == null,
+                        leaf + ": short path");
+            }
+            List<byte[]> longer = new ArrayList<byte[]>(path);
+            longer.add(top);
+            check(root(digests[i], i, count, longer) == null,
+                    leaf + ": long path");
+
+            /* The same leaf and path claimed for another place. */
+            for (int j = 0; j < count; j++) {
+                if (j != i) {
+                    check(!Arrays.equals(root(digests[i], j, count, path),
+                            top), leaf + ": moved to " + j);
+                }
+            }
+            check(root(digests[i], count, count, path) == null,
+                    leaf + ": index out of range");
+        }
+    }
+
+    public static void main(String[] argv) throws NoSuchAlgorithmException {
+        for (int count : COUNTS) {
+            checkTree(count);
+        }
+
+        /* The layout of the tree: leaf 2 of 3 has no sibling and moves up
+         * as it is. */
+        MessageDigest md = MessageDigest.getInstance(ALG);
+        byte[][] d = new byte[3][];
+        for (int i = 0; i < d.length; i++) {
+            d[i] = md.digest(new byte[] { (byte) i });
+        }
+        byte[][][] tree = JavaBatchSign.buildTree(d, ALG);
+        byte[] expected = hash(1, hash(1, hash(0, d[0]), hash(0, d[1])),
+                hash(0, d[2]));
+        check(Arrays.equals(tree[tree.length - 1][0], expected),
+                "3 leaves: root as in RFC 6962");
+
+        if (failed > 0) {
+            System.err.println(failed + " checks failed.");
+            System.exit(1);
+        }
+        System.out.println("Ok.");
+    }
+
+}
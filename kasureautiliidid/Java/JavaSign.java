@@ -5,6 +5,11 @@
  * Determines the format to use based on the extension of outfile. BDOC if it
  * ends with .bdoc, DIGIDOC-XML otherwise.
  *
+ * For BDOC, the files are digested in parallel before they are added to the
+ * container, large ones through memory mapping. DIGIDOC-XML digests the
+ * base64-encoded XML element of a file rather than the file itself, so there
+ * the files are added one by one and jdigidoc digests them.
+ *
  * Compilation:
  * javac -cp $JAVA_LIB/jdigidoc.jar JavaSign.java
  *
@@ -13,12 +18,24 @@
  */
 import java.io.Console;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.cert.X509Certificate;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import ee.sk.digidoc.DataFile;
 import ee.sk.digidoc.DigiDocException;
@@ -34,6 +51,15 @@ public class JavaSign {
     /** Default place to look for the configuration file. */
     public static final String DEFAULT_CONF = "jdigidoc.cfg";
 
+    /** Files larger than this are digested through memory mapping. */
+    private static final long MMAP_THRESHOLD = 16L * 1024 * 1024;
+
+    /** How much of a file to map at a time. */
+    private static final long MMAP_WINDOW = 256L * 1024 * 1024;
+
+    /** The buffer size for digesting smaller files. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     private SignedDoc sdoc;
 
     /**
@@ -66,7 +92,20 @@ public class JavaSign {
             return;
         }
 
-        /* Determine the MIME type. */
+        /* Add it to the container. */
+        try {
+            sdoc.addDataFile(file, getMimeType(path),
+                    DataFile.CONTENT_EMBEDDED_BASE64);
+        } catch (DigiDocException e) {
+            System.err.println("Error adding file to container:");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Determine the MIME type of a file with the Files class.
+     */
+    private static String getMimeType(String path) {
         String mime = "file";
         try {
             mime = Files.probeContentType(Paths.get(path)); // Since Java 1.7
@@ -74,21 +113,135 @@ public class JavaSign {
             System.err.println("An error occured trying to guess the MIME type "
                     + "for " + path + ". Using \"file\".");
         }
+        return mime;
+    }
 
-        /* Add it to the container. */
+    /**
+     * Add a list of documents for signing. For BDOC, the files are first
+     * digested in parallel.
+     */
+    public void addDocuments(List<String> files) {
+        if (!hasSignedDoc() || files.size() < 2
+                || !SignedDoc.FORMAT_BDOC.equals(sdoc.getFormat())) {
+            for (String file : files) {
+                addDocument(file);
+            }
+            return;
+        }
+
+        /* Digest the files on as many threads as there are processors, or
+         * files if there are fewer of them. */
+        int threads = Math.min(files.size(),
+                Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
         try {
-            sdoc.addDataFile(file, mime, DataFile.CONTENT_EMBEDDED_BASE64);
+            List<Future<Digested>> digested = new ArrayList<Future<Digested>>();
+            for (final String path : files) {
+                digested.add(pool.submit(new Callable<Digested>() {
+                    @Override
+                    public Digested call() throws Exception {
+                        return digest(path);
+                    }
+                }));
+            }
+
+            /* Add the files in the order given, with the digests computed. */
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    addDocument(digested.get(i).get());
+                } catch (ExecutionException e) {
+                    System.err.println("Error digesting " + files.get(i)
+                            + ":");
+                    e.getCause().printStackTrace();
+                }
+            }
+        } catch (InterruptedException e) {
+            /* Drop the container, so the files added so far are not signed
+             * without the rest. */
+            Thread.currentThread().interrupt();
+            System.err.println("Interrupted while digesting the files.");
+            sdoc = null;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Add a digested file to the container. The digest is given to jdigidoc,
+     * so it does not read the file for it again.
+     */
+    private void addDocument(Digested d) {
+        if (d == null) {
+            return;
+        }
+        try {
+            DataFile df = sdoc.addDataFile(d.file, d.mime,
+                    DataFile.CONTENT_EMBEDDED_BASE64);
+            df.setSize(d.size);
+            df.setDigestType(SignedDoc.SHA256_DIGEST_TYPE);
+            df.setDigestValueOfType(SignedDoc.SHA256_DIGEST_TYPE, d.digest);
         } catch (DigiDocException e) {
             System.err.println("Error adding file to container:");
             e.printStackTrace();
         }
     }
 
-    /** Add a list of documents for signing. */
-    public void addDocuments(List<String> files) {
-        for (String file : files) {
-            addDocument(file);
+    /**
+     * Digest a file with SHA-256 and determine its MIME type. Returns null if
+     * the file can't be read.
+     */
+    private static Digested digest(String path) throws IOException,
+            NoSuchAlgorithmException {
+        File file = new File(path);
+        if (!file.isFile() || !file.canRead()) {
+            System.err.println("File not found: " + path);
+            return null;
+        }
+
+        MessageDigest md = MessageDigest.getInstance(
+                SignedDoc.SHA256_DIGEST_TYPE);
+        long size;
+        if (file.length() > MMAP_THRESHOLD) {
+            /* Map the file a window at a time: the digest is computed
+             * straight from the page cache, without copying the data. */
+            try (FileChannel ch = FileChannel.open(file.toPath(),
+                    StandardOpenOption.READ)) {
+                size = ch.size();
+                for (long pos = 0; pos < size; pos += MMAP_WINDOW) {
+                    MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY,
+                            pos, Math.min(MMAP_WINDOW, size - pos));
+                    md.update(buf);
+                }
+            }
+        } else {
+            size = 0;
+            byte[] buf = new byte[BUFFER_SIZE];
+            try (InputStream in = new FileInputStream(file)) {
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    md.update(buf, 0, n);
+                    size += n;
+                }
+            }
         }
+        return new Digested(file, getMimeType(path), size, md.digest());
+    }
+
+    /** A file digested before adding it to the container. */
+    private static class Digested {
+
+        private File file;
+        private String mime;
+        private long size;
+        private byte[] digest;
+
+        Digested(File file, String mime, long size, byte[] digest) {
+            this.file = file;
+            this.mime = mime;
+            this.size = size;
+            this.digest = digest;
+        }
+
     }
 
     /**
@@ -166,11 +319,11 @@ public class JavaSign {
     }
 
     public boolean hasDataFiles() {
-        return sdoc.countDataFiles() > 0;
+        return sdoc != null && sdoc.countDataFiles() > 0;
     }
 
     public boolean hasSignatures() {
-        return sdoc.countSignatures() > 0;
+        return sdoc != null && sdoc.countSignatures() > 0;
     }
 
     /**